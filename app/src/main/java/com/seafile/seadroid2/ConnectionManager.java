@@ -0,0 +1,67 @@
+package com.seafile.seadroid2;
+
+import com.github.kevinsawicki.http.HttpRequest;
+import com.google.common.collect.Maps;
+import com.seafile.seadroid2.account.Account;
+import com.seafile.seadroid2.ssl.SSLTrustManager;
+
+import java.net.HttpURLConnection;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+
+/**
+ * Reuse the HTTP connections of an account across API, upload and download calls.
+ * <p/>
+ * HttpURLConnection keeps idle keep-alive connections in a process wide pool, keyed by address and
+ * SSL socket factory. A connection only goes back to the pool once its response has been read to the end.
+ * So all requests of an account share one socket factory, whose SSLContext also caches TLS sessions
+ * for resumption, and {@link SeafConnection} drains the responses it does not need.
+ * The number of idle connections is bounded by {@link #MAX_IDLE_CONNECTIONS}.
+ */
+public final class ConnectionManager {
+    private static final int MAX_IDLE_CONNECTIONS = 8;
+    private static final long KEEP_ALIVE_DURATION = 5 * 60 * 1000;
+
+    private static final Map<Account, ConnectionManager> managers = Maps.newHashMap();
+
+    private final Account account;
+
+    private ConnectionManager(Account account) {
+        this.account = account;
+    }
+
+    /**
+     * Configure the platform connection pool, must run before the first connection of the process
+     */
+    public static void init() {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(MAX_IDLE_CONNECTIONS));
+        System.setProperty("http.keepAliveDuration", String.valueOf(KEEP_ALIVE_DURATION));
+    }
+
+    public static synchronized ConnectionManager forAccount(Account account) {
+        ConnectionManager manager = managers.get(account);
+        if (manager == null) {
+            manager = new ConnectionManager(account);
+            managers.put(account, manager);
+        }
+        return manager;
+    }
+
+    /**
+     * Attach the account's SSL socket factory to a request
+     */
+    HttpRequest prepare(HttpRequest req) {
+        HttpURLConnection conn = req.getConnection();
+        if (conn instanceof HttpsURLConnection) {
+            // Tell HttpRequest to trust all hosts, and then the user will get a dialog
+            // where he needs to confirm the SSL certificate for the account,
+            // and the accepted certificate will be stored, so he is not prompted to accept later on.
+            // This is handled by SSLTrustManager and CertsManager
+            req.trustAllHosts();
+            ((HttpsURLConnection) conn).setSSLSocketFactory(SSLTrustManager.instance().getSSLSocketFactory(account));
+        }
+        return req;
+    }
+}
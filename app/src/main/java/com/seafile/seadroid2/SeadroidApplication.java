@@ -22,11 +22,16 @@ public class SeadroidApplication extends Application {
     
     public void onCreate() {
         super.onCreate();
+        // before anything opens a connection
+        ConnectionManager.init();
         Iconify.with(new MaterialCommunityModule());
 
         SeadroidApplication.context = getApplicationContext();
         initImageLoader(getApplicationContext());
 
+        // the pinyin table used to be copied there, it is kept in memory now
+        new File(getFilesDir(), "pinyin4android").delete();
+
         // set gesture lock if available
         AppLockManager.getInstance().enableDefaultAppLockIfAvailable(this);
     }
@@ -5,23 +5,27 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.os.Build;
 import android.provider.Settings.Secure;
+import android.text.TextUtils;
 import android.util.Log;
 import android.util.Pair;
 
 import com.github.kevinsawicki.http.HttpRequest;
 import com.github.kevinsawicki.http.HttpRequest.HttpRequestException;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.seafile.seadroid2.account.Account;
-import com.seafile.seadroid2.data.Block;
+import com.seafile.seadroid2.crypto.CryptoContext;
+import com.seafile.seadroid2.data.BlockUploadPipeline;
 import com.seafile.seadroid2.data.DataManager;
 import com.seafile.seadroid2.data.FileBlocks;
 import com.seafile.seadroid2.data.ProgressMonitor;
-import com.seafile.seadroid2.ssl.SSLTrustManager;
 import com.seafile.seadroid2.util.Utils;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -31,10 +35,10 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Map;
 
-import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLHandshakeException;
 
 /**
@@ -80,25 +84,26 @@ public class SeafConnection {
     }
 
     private HttpRequest prepareHttpsCheck(HttpRequest req) {
-        HttpURLConnection conn = req.getConnection();
-        if (conn instanceof HttpsURLConnection) {
-            // Tell HttpRequest to trust all hosts, and then the user will get a dialog
-            // where he needs to confirm the SSL certificate for the account,
-            // and the accepted certificate will be stored, so he is not prompted to accept later on.
-            // This is handled by SSLTrustManager and CertsManager
-            req.trustAllHosts();
-            HttpsURLConnection sconn = (HttpsURLConnection)conn;
-            sconn.setSSLSocketFactory(SSLTrustManager.instance().getSSLSocketFactory(account));
-        }
+        return ConnectionManager.forAccount(account).prepare(req);
+    }
 
-        return req;
+    /**
+     * Read the rest of a response we are not interested in, so its keep-alive connection
+     * goes back to the pool instead of being held until garbage collection.
+     */
+    private static void releaseConnection(HttpRequest req) {
+        try {
+            req.bytes();
+        } catch (HttpRequestException e) {
+            // the connection is lost anyway
+        }
     }
 
     private HttpRequest prepareApiGetRequest(String apiPath) throws IOException {
         return prepareApiGetRequest(apiPath, null);
     }
 
-    private HttpRequest prepareApiFileGetRequest(String url) throws HttpRequestException {
+    HttpRequest prepareApiFileGetRequest(String url) throws HttpRequestException {
         HttpRequest req =  HttpRequest.get(url).connectTimeout(CONNECTION_TIMEOUT).followRedirects(true);
 
         return prepareHttpsCheck(req);
@@ -252,14 +257,18 @@ public class SeafConnection {
         }
     }
 
-    public String getRepos() throws SeafException {
+    /**
+     * Get the repo list, written to a file as it is received
+     *
+     * @param dst file to write the response to
+     */
+    public void getRepos(File dst) throws SeafException {
         HttpRequest req = null;
         try {
             req = prepareApiGetRequest("api2/repos/");
             checkRequestResponseStatus(req, HttpURLConnection.HTTP_OK);
 
-            String result = new String(req.bytes(), "UTF-8");
-            return result;
+            req.receive(dst);
         } catch (SeafException e) {
             throw e;
         } catch (HttpRequestException e) {
@@ -367,14 +376,16 @@ public class SeafConnection {
     }
 
     /**
-     * Get the contents of a directory.
+     * Get the dirents of a directory, written to a file as they are received
+     *
      * @param repoID
      * @param path
      * @param cachedDirID The local cached dirID.
-     * @return A non-null Pair of (dirID, content). If the local cache is up to date, the "content" is null.
+     * @param dst file to write the dirents to, untouched if the local cache is up to date
+     * @return The latest dirID. If it equals cachedDirID the local cache is up to date.
      * @throws SeafException
      */
-    public Pair<String, String> getDirents(String repoID, String path, String cachedDirID)
+    public String getDirents(String repoID, String path, String cachedDirID, File dst)
                                         throws SeafException {
         try {
             String apiPath = String.format("api2/repos/%s/dir/", repoID);
@@ -387,7 +398,6 @@ public class SeafConnection {
             checkRequestResponseStatus(req, HttpURLConnection.HTTP_OK);
 
             String dirID = req.header("oid");
-            String content;
             if (dirID == null) {
                 throw SeafException.unknownException;
             }
@@ -395,19 +405,15 @@ public class SeafConnection {
             if (dirID.equals(cachedDirID)) {
                 // local cache is valid
                 // Log.d(DEBUG_TAG, String.format("dir %s is cached", path));
-                content = null;
+                releaseConnection(req);
             } else {
                 /*Log.d(DEBUG_TAG,
                       String.format("dir %s will be downloaded from server, latest %s, local cache %s",
                                     path, dirID, cachedDirID != null ? cachedDirID : "null"));*/
-                byte[] rawBytes = req.bytes();
-                if (rawBytes == null) {
-                    throw SeafException.unknownException;
-                }
-                content = new String(rawBytes, "UTF-8");
+                req.receive(dst);
             }
 
-            return new Pair<String, String>(dirID, content);
+            return dirID;
 
         } catch (SeafException e) {
             throw e;
@@ -478,13 +484,13 @@ public class SeafConnection {
      * @throws SeafException
      * @throws IOException
      */
-    private String getBlockDownloadLink(String repoID, String fileId, String blockId) throws SeafException, IOException {
+    public String getBlockDownloadLink(String repoID, String fileId, String blockId) throws SeafException, IOException {
         try {
             String apiPath = String.format("api2/repos/%s/files/%s/blks/%s/download-link/", repoID, fileId, blockId);
             HttpRequest req = prepareApiGetRequest(apiPath, null);
             checkRequestResponseStatus(req, HttpURLConnection.HTTP_OK);
 
-            return new String(req.bytes(), "UTF-8");
+            return new String(req.bytes(), "UTF-8").replaceAll("\"", "");
         } catch (SeafException | IOException e) {
             throw e;
         } catch (HttpRequestException e) {
@@ -493,44 +499,35 @@ public class SeafConnection {
     }
 
     /**
-     * Get the latest version of the file from server
-     * @param repoID
-     * @param fileBlocks
-     * @param blockId
-     * @param localPath
-     * @param monitor
-     * @return A two tuple of (fileID, file). If the local cached version is up to date, the returned file is null.
+     * Upload the blocks produced by a {@link BlockUploadPipeline}, streaming them into the request body.
      */
-    public Pair<String, File> getBlock(String repoID,
-                                       FileBlocks fileBlocks,
-                                       String blockId,
-                                       String localPath,
-                                       ProgressMonitor monitor) throws SeafException, IOException, JSONException {
-
-        String dlink = getBlockDownloadLink(repoID, fileBlocks.fileID, blockId).replaceAll("\"", "");
-
-        File block = getBlockFromLink(dlink, fileBlocks, blockId, localPath, monitor);
-        if (block != null) {
-            return new Pair<>(blockId, block);
-        } else {
-            throw SeafException.unknownException;
-        }
-    }
-
-    public String uploadByBlocks(String repoID, String dir, String filePath, List<Block> blocks, boolean update, ProgressMonitor monitor) throws IOException, SeafException {
+    public String uploadByBlocks(String repoID, String dir, String filePath, BlockUploadPipeline pipeline, boolean update, ProgressMonitor monitor) throws IOException, SeafException {
         try {
             String url = getUploadLink(repoID, update, true);
             Log.d(DEBUG_TAG, "UploadLink " + url);
-            return uploadBlocksCommon(url, repoID, dir, filePath, blocks, monitor, update);
+            return uploadBlocksCommon(url, dir, filePath, pipeline, monitor, update);
         } catch (SeafException e) {
+            if (e == SeafException.userCancelledException) {
+                throw e;
+            }
             // do again
             String url = getUploadLink(repoID, update, true);
             Log.d(DEBUG_TAG, "do again UploadLink " + url);
-            return uploadBlocksCommon(url, repoID, dir, filePath, blocks, monitor, update);
+            return uploadBlocksCommon(url, dir, filePath, pipeline, monitor, update);
         }
     }
 
-    private File getFileFromLink(String dlink, String path, String localPath,
+    /**
+     * Download a file from a file server link into the local path.
+     * <p/>
+     * The content goes to a partial file keyed by repo, path and file id, which is kept when the
+     * download fails. The next attempt on the same version of the file asks for the remaining bytes
+     * only, and starts from scratch if the server ignores the range or serves another version.
+     * <p/>
+     * Fresh downloads of large files are split over several connections by {@link SegmentedDownloader}
+     * if the server supports ranges.
+     */
+    private File getFileFromLink(String dlink, String repoID, String path, String localPath,
                                  String oid, ProgressMonitor monitor)
                                     throws SeafException {
         if (dlink == null)
@@ -543,8 +540,42 @@ public class SeafConnection {
             String quoted = dlink.substring(0, i) + "/" +
                     URLEncoder.encode(dlink.substring(i+1), "UTF-8");
 
+            File partial = DataManager.getPartialDownloadFile(repoID, path, oid);
+            long savedTotal = SegmentedDownloader.getSavedTotal(partial);
+            if (savedTotal > 0) {
+                Log.d(DEBUG_TAG, "resume segmented download of " + path);
+                int connections = SettingsManager.instance().getSegmentedDownloadConnections();
+                return new SegmentedDownloader(this, quoted, oid, savedTotal, monitor, connections)
+                        .download(null, partial, file);
+            }
+            long offset = partial.length();
+
             HttpRequest req = prepareApiFileGetRequest(quoted);
-            checkRequestResponseStatus(req, HttpURLConnection.HTTP_OK);
+            if (offset > 0) {
+                req.header("Range", "bytes=" + offset + "-");
+                if (req.code() == HttpURLConnection.HTTP_PARTIAL && isResumable(req, offset, oid)) {
+                    Log.d(DEBUG_TAG, "resume download of " + path + " at " + offset);
+                } else if (req.code() == HttpURLConnection.HTTP_OK) {
+                    Log.d(DEBUG_TAG, "range ignored, download " + path + " from scratch");
+                    offset = 0;
+                } else {
+                    Log.d(DEBUG_TAG, "can't resume download of " + path + ", " + req.code());
+                    req.disconnect();
+                    offset = 0;
+                    req = prepareApiFileGetRequest(quoted);
+                }
+            } else {
+                long threshold = SettingsManager.instance().getSegmentedDownloadThreshold();
+                if (threshold > 0 && req.code() == HttpURLConnection.HTTP_OK && acceptsRanges(req, oid)) {
+                    long total = getContentLength(req);
+                    if (total >= threshold) {
+                        int connections = SettingsManager.instance().getSegmentedDownloadConnections();
+                        return new SegmentedDownloader(this, quoted, oid, total, monitor, connections)
+                                .download(req, partial, file);
+                    }
+                }
+            }
+            checkRequestResponseStatus(req, offset > 0 ? HttpURLConnection.HTTP_PARTIAL : HttpURLConnection.HTTP_OK);
 
             if (monitor != null) {
                 /*if (req.header(HttpRequest.HEADER_CONTENT_LENGTH) == null) {
@@ -552,21 +583,25 @@ public class SeafConnection {
                 }
                 Long size = Long.parseLong(req.header(HttpRequest.HEADER_CONTENT_LENGTH));*/
                 if (req.contentLength() > 0) {
-                    Long size =  Long.valueOf(req.contentLength());
+                    Long size =  Long.valueOf(offset + req.contentLength());
                     monitor.onProgressNotify(size, false);
                 }
             }
 
-            File tmp = DataManager.createTempFile();
-            // Log.d(DEBUG_TAG, "write to " + tmp.getAbsolutePath());
-            if (monitor == null) {
-                req.receive(tmp);
-            } else {
-                req.bufferSize(MonitoredFileOutputStream.BUFFER_SIZE);
-                req.receive(new MonitoredFileOutputStream(tmp, monitor));
+            // Log.d(DEBUG_TAG, "write to " + partial.getAbsolutePath());
+            OutputStream out = new FileOutputStream(partial, offset > 0);
+            try {
+                if (monitor == null) {
+                    req.receive(out);
+                } else {
+                    req.bufferSize(MonitoredFileOutputStream.BUFFER_SIZE);
+                    req.receive(new MonitoredFileOutputStream(out, offset, monitor));
+                }
+            } finally {
+                out.close();
             }
 
-            if (!tmp.renameTo(file)) {
+            if (!partial.renameTo(file)) {
                 Log.w(DEBUG_TAG, "Rename file error");
                 return null;
             }
@@ -589,44 +624,106 @@ public class SeafConnection {
         }
     }
 
-    private File getBlockFromLink(String dlink, FileBlocks fileBlocks, String blkId, String localPath, ProgressMonitor monitor)
-                                    throws SeafException {
-        if (dlink == null)
-            return null;
+    /**
+     * Check that a partial response continues the partial file: it must start at the given offset
+     * and, if the server tags it, belong to the same version of the file.
+     */
+    static boolean isResumable(HttpRequest req, long offset, String oid) {
+        String etag = req.eTag();
+        if (etag != null && !etag.contains(oid)) {
+            return false;
+        }
 
+        // Content-Range: bytes 1000-1999/2000
+        String range = req.header("Content-Range");
+        if (range == null || !range.startsWith("bytes ")) {
+            return false;
+        }
+        int dash = range.indexOf('-');
+        if (dash < 0) {
+            return false;
+        }
         try {
+            return Long.parseLong(range.substring("bytes ".length(), dash).trim()) == offset;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Check that the server serves ranges of this version of the file, as announced in a plain answer
+     */
+    private static boolean acceptsRanges(HttpRequest req, String oid) {
+        String etag = req.eTag();
+        return "bytes".equalsIgnoreCase(req.header("Accept-Ranges"))
+                && (etag == null || etag.contains(oid));
+    }
+
+    /**
+     * @return the size of the response body, or -1 if unknown. Unlike {@link HttpRequest#contentLength()}
+     * this works for files larger than 2 GB.
+     */
+    private static long getContentLength(HttpRequest req) {
+        String length = req.header(HttpRequest.HEADER_CONTENT_LENGTH);
+        if (length == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(length.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
 
+    /**
+     * Download a block from the file server, decrypting it as it arrives
+     *
+     * @param dlink block download link, see {@link #getBlockDownloadLink(String, String, String)}
+     * @param fileBlocks
+     * @param blkId
+     * @param crypto key of the repo
+     * @param monitor
+     * @return the plaintext of the block
+     * @throws SeafException
+     */
+    public ByteBuffer getBlockDecrypted(String dlink, FileBlocks fileBlocks, String blkId, CryptoContext crypto,
+                                        ProgressMonitor monitor) throws SeafException {
+        try {
             HttpRequest req = prepareApiFileGetRequest(dlink);
             checkRequestResponseStatus(req, HttpURLConnection.HTTP_OK);
 
-            if (monitor != null) {
-                /*if (req.header(HttpRequest.HEADER_CONTENT_LENGTH) == null) {
-                    throw SeafException.illFormatException;
-                }
-                Long size = Long.parseLong(req.header(HttpRequest.HEADER_CONTENT_LENGTH));*/
-                if (req.contentLength() > 0) {
-                    fileBlocks.getBlock(blkId).size = req.contentLength();
-                    monitor.onProgressNotify(fileBlocks.getSize(), true);
+            int contentLength = req.contentLength();
+            if (monitor != null && contentLength > 0) {
+                long total;
+                synchronized (fileBlocks) {
+                    fileBlocks.getBlock(blkId).size = contentLength;
+                    total = fileBlocks.getSize();
                 }
+                monitor.onProgressNotify(total, true);
             }
 
-            File block = new File(localPath);
-            // Log.d(DEBUG_TAG, "write to " + block.getAbsolutePath());
+            // the plaintext is shorter than the encrypted block, so this is never resized
+            PlainBuffer plain = new PlainBuffer(contentLength > 0 ? contentLength : MonitoredFileOutputStream.BUFFER_SIZE);
+            OutputStream out = crypto.decryptingStream(plain);
             if (monitor == null) {
-                req.receive(block);
+                req.receive(out);
             } else {
-                req.bufferSize(DataManager.BUFFER_SIZE);
-                req.receive(new MonitoredFileOutputStream(fileBlocks, blkId, block, monitor));
+                req.bufferSize(MonitoredFileOutputStream.BUFFER_SIZE);
+                req.receive(new MonitoredFileOutputStream(fileBlocks, blkId, out, monitor));
             }
 
-            return block;
+            try {
+                out.close();
+            } catch (IOException e) {
+                Log.e(DEBUG_TAG, "Failed to decrypt block " + blkId + ": " + e.getMessage());
+                throw SeafException.decryptException;
+            }
+            return plain.toByteBuffer();
 
         } catch (SeafException e) {
             throw e;
-        } catch (UnsupportedEncodingException e) {
-            throw SeafException.encodingException;
         } catch (IOException e) {
-            e.printStackTrace();
+            // only a failed close means the block could not be decrypted
             throw SeafException.networkException;
         } catch (HttpRequestException e) {
             if (e.getCause() instanceof MonitorCancelledException) {
@@ -638,6 +735,23 @@ public class SeafConnection {
         }
     }
 
+    /**
+     * Gives access to what was written without the copy of toByteArray()
+     * <p/>
+     * The plaintext of a block is held here rather than written to the file as it is decrypted:
+     * blocks arrive out of order, and where a block goes in the file is only known once the padding
+     * of all blocks before it has been removed.
+     */
+    private static class PlainBuffer extends ByteArrayOutputStream {
+        PlainBuffer(int size) {
+            super(size);
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
     /**
      * Get the latest version of the file from server
      * @param repoID
@@ -665,7 +779,7 @@ public class SeafConnection {
                   String.format("file %s will be downloaded from server, latest %s, local cache %s",
                                 path, fileID, cachedFileID != null ? cachedFileID : "null"));*/
 
-            File file = getFileFromLink(dlink, path, localPath, fileID, monitor);
+            File file = getFileFromLink(dlink, repoID, path, localPath, fileID, monitor);
             if (file != null) {
                 return new Pair<String, File>(fileID, file);
             } else {
@@ -681,6 +795,7 @@ public class SeafConnection {
 
             req.form("password", passwd);
             checkRequestResponseStatus(req, HttpURLConnection.HTTP_OK);
+            releaseConnection(req);
         } catch (SeafException e) {
             Log.d(DEBUG_TAG, "Set Password err: " + e.getCode());
             throw e;
@@ -763,6 +878,8 @@ public class SeafConnection {
     private static final String CRLF = "\r\n";
     private static final String TWO_HYPENS = "--";
     private static final String BOUNDARY = "----SeafileAndroidBound$_$";
+    // block ids are SHA-1 hex digests
+    private static final String BLOCK_ID_PLACEHOLDER = "0000000000000000000000000000000000000000";
 
     /**
      * Upload a file to seafile httpserver
@@ -837,7 +954,6 @@ public class SeafConnection {
             totalLen += end.length();
 
             req.contentLength(totalLen);
-            req.header("Connection", "close");
             req.header("Cache-Control", "no-cache");
             req.header("Content-Type", "multipart/form-data;boundary=" + BOUNDARY);
 
@@ -877,12 +993,47 @@ public class SeafConnection {
     }
 
     /**
-     * Upload file blocks to server
+     * Build a multipart form field
      */
-    private String uploadBlocksCommon(String link, String repoID, String dir,
-                                      String filePath, List<Block> blocks,
+    private static byte[] formField(String name, String value) throws UnsupportedEncodingException {
+        StringBuilder builder = new StringBuilder();
+        // line 1, ------SeafileAndroidBound$_$
+        builder.append(TWO_HYPENS + BOUNDARY + CRLF);
+        // line 2
+        builder.append("Content-Disposition: form-data; name=\"" + name + "\"" + CRLF);
+        // line 3
+        builder.append(CRLF);
+        // line 4
+        builder.append(value + CRLF);
+        return builder.toString().getBytes("UTF-8");
+    }
+
+    /**
+     * Build the multipart header of a block, the block is named after its id
+     */
+    private static byte[] blockPartHeader(String blockId) throws UnsupportedEncodingException {
+        StringBuilder builder = new StringBuilder();
+        // line 1
+        builder.append(TWO_HYPENS + BOUNDARY + CRLF);
+        // line 2
+        builder.append("Content-Disposition: form-data; name=\"file\";filename=\"" + blockId + "\"" + CRLF);
+        // line 3
+        builder.append("Content-Type: text/plain" + CRLF);
+        // line 4
+        builder.append(CRLF);
+        return builder.toString().getBytes("UTF-8");
+    }
+
+    /**
+     * Upload file blocks to server, encrypting them on the fly.
+     *
+     * Block ids are SHA-1 hex strings and the size of each encrypted block is known in advance,
+     * so the content length can be computed before the first block is encrypted.
+     */
+    private String uploadBlocksCommon(String link, String dir, String filePath,
+                                      BlockUploadPipeline pipeline,
                                       ProgressMonitor monitor, boolean update)
-                                        throws SeafException {
+                                        throws SeafException, IOException {
 
         try {
             File file = new File(filePath);
@@ -894,134 +1045,153 @@ public class SeafConnection {
 
             prepareHttpsCheck(req);
 
+            byte[] replaceParam = update ? formField("replace", "1") : new byte[0];
+            byte[] parentDirParam = formField("parent_dir", dir);
+            byte[] fileNameParam = formField("file_name", file.getName());
+            byte[] fileSizeParam = formField("file_size", String.valueOf(pipeline.getFileSize()));
+            byte[] end = (TWO_HYPENS + BOUNDARY + TWO_HYPENS + CRLF).getBytes("UTF-8");
+
+            long totalLen = replaceParam.length + parentDirParam.length + fileNameParam.length + fileSizeParam.length + end.length;
+            long blockHeaderLen = blockPartHeader(BLOCK_ID_PLACEHOLDER).length;
+            for (int i = 0; i < pipeline.getBlockCount(); i++) {
+                totalLen += blockHeaderLen + pipeline.getEncryptedLength(i) + CRLF.length();
+            }
+
             /**
              * We have to set the content-length header, otherwise the whole
-             * request would be buffered by android. So we have to format the
-             * multipart form-data request ourselves in order to calculate the
-             * content length.
+             * request would be buffered by android. Fixed length streaming
+             * only takes an int, so fall back to chunked mode for larger bodies.
              */
-            int totalLen = 0;
-            byte[] dirParam = {};
-            StringBuilder updateBuilder = new StringBuilder();
-            if (update) {
-                // line 1, ------SeafileAndroidBound$_$
-                updateBuilder.append(TWO_HYPENS + BOUNDARY + CRLF);
-                // line 2
-                updateBuilder.append("Content-Disposition: form-data; name=\"replace\"" + CRLF);
-                // line 3
-                updateBuilder.append(CRLF);
-                // line 4
-                updateBuilder.append("1" + CRLF);
-                dirParam = updateBuilder.toString().getBytes("UTF-8");
-                totalLen += dirParam.length;
-            }
-
-            StringBuilder parentDirBuilder = new StringBuilder();
-            // line 1, ------SeafileAndroidBound$_$
-            parentDirBuilder.append(TWO_HYPENS + BOUNDARY + CRLF);
-            // line 2
-            parentDirBuilder.append("Content-Disposition: form-data; name=\"parent_dir\"" + CRLF);
-            // line 3
-            parentDirBuilder.append(CRLF);
-            // line 4
-            parentDirBuilder.append(dir + CRLF);
-            totalLen += parentDirBuilder.toString().getBytes("UTF-8").length;
-
-            StringBuilder fileNameBuilder = new StringBuilder();
-            // line 1, ------SeafileAndroidBound$_$
-            fileNameBuilder.append(TWO_HYPENS + BOUNDARY + CRLF);
-            // line 2
-            fileNameBuilder.append("Content-Disposition: form-data; name=\"file_name\"" + CRLF);
-            // line 3
-            fileNameBuilder.append(CRLF);
-            // line 4
-            fileNameBuilder.append(file.getName() + CRLF);
-            totalLen += fileNameBuilder.toString().getBytes("UTF-8").length;
-
-            StringBuilder fileSizeBuilder = new StringBuilder();
-            // line 1, ------SeafileAndroidBound$_$
-            fileSizeBuilder.append(TWO_HYPENS + BOUNDARY + CRLF);
-            // line 2
-            fileSizeBuilder.append("Content-Disposition: form-data; name=\"file_size\"" + CRLF);
-            // line 3
-            fileSizeBuilder.append(CRLF);
-            // line 4
-            fileSizeBuilder.append(file.length() + CRLF);
-            totalLen += fileSizeBuilder.toString().getBytes("UTF-8").length;
-
-            for (Block block : blocks) {
-                // line 1
-                String l1 = TWO_HYPENS + BOUNDARY + CRLF;
-
-                File blk = new File(block.path);
-
-                // line 2
-                String contentDisposition = "Content-Disposition: form-data; name=\"file\";filename=\"" + blk.getName() + "\"" + CRLF;
-                byte[] l2 = contentDisposition.getBytes("UTF-8");
-
-                // line 3
-                String l3 = "Content-Type: text/plain" + CRLF;
-
-                // line 4
-                String l4 = CRLF;
-                totalLen += l1.length() + l2.length + l3.length() + l4.length() + blk.length() + 2;
+            if (totalLen <= Integer.MAX_VALUE) {
+                req.contentLength((int) totalLen);
+            } else {
+                req.chunk(MonitoredFileInputStream.BUFFER_SIZE);
             }
-
-            String end = TWO_HYPENS + BOUNDARY + TWO_HYPENS + CRLF;
-            totalLen += end.getBytes().length;
-
-            req.contentLength(totalLen);
             req.header("Connection", "Keep-Alive");
             req.header("Cache-Control", "no-cache");
             req.header("Content-Type", "multipart/form-data;boundary=" + BOUNDARY);
 
-            if (update) {
-                req.send(updateBuilder);
-                Log.d(DEBUG_TAG, updateBuilder.toString());
+            pipeline.open();
+            try {
+                req.send(replaceParam);
+                req.send(parentDirParam);
+                req.send(fileNameParam);
+                req.send(fileSizeParam);
+
+                long sent = 0;
+                BlockUploadPipeline.EncryptedBlock block;
+                while ((block = pipeline.next()) != null) {
+                    req.send(blockPartHeader(block.blockId));
+                    if (monitor != null) {
+                        req.bufferSize(MonitoredFileInputStream.BUFFER_SIZE);
+                        req.send(new MonitoredFileInputStream(block.openStream(), sent, monitor));
+                    } else {
+                        req.send(block.openStream());
+                    }
+                    req.send(CRLF);
+                    sent += block.length;
+                    block.release();
+                }
+
+                req.send(end);
+            } finally {
+                pipeline.close();
             }
 
-            req.send(parentDirBuilder);
-            req.send(fileNameBuilder);
-            req.send(fileSizeBuilder);
+            checkRequestResponseStatus(req, HttpURLConnection.HTTP_OK);
 
-            for (Block block : blocks) {
-                // line 1
-                String l1 = TWO_HYPENS + BOUNDARY + CRLF;
+            //result file_id "3f0da9a0709c5fb9f23957608dabef01becc3a8c"
+            return new String(req.bytes(), "UTF-8").replaceAll("\"","");
+        } catch (HttpRequestException e) {
+            if (e.getCause() instanceof MonitorCancelledException) {
+                Log.d(DEBUG_TAG, "upload is cancelled");
+                throw SeafException.userCancelledException;
+            } else {
+                throw getSeafExceptionFromHttpRequestException(e);
+            }
+        }
+    }
 
-                File blk = new File(block.path);
+    /**
+     * Ask the server for block upload links and which of the given blocks it is missing.
+     *
+     * @return the json response, or null if the server does not support uploading raw blocks
+     */
+    public String getBlockUploadInfo(String repoID, List<String> blkIds) throws SeafException {
+        try {
+            String apiPath = "api2/repos/" + repoID + "/upload-blks-link/";
+            HttpRequest req = prepareApiPostRequest(apiPath, true, null);
+            req.form("blklist", TextUtils.join(",", blkIds));
+
+            int code = req.code();
+            if (code == HttpURLConnection.HTTP_BAD_REQUEST
+                    || code == HttpURLConnection.HTTP_NOT_FOUND
+                    || code == HttpURLConnection.HTTP_BAD_METHOD) {
+                Log.d(DEBUG_TAG, "raw block upload not supported by server: " + code);
+                return null;
+            }
+            checkRequestResponseStatus(req, HttpURLConnection.HTTP_OK);
 
-                // line 2
-                String contentDisposition = "Content-Disposition: form-data; name=\"file\";filename=\"" + blk.getName() + "\"" + CRLF;
-                byte[] l2 = contentDisposition.getBytes("UTF-8");
+            return new String(req.bytes(), "UTF-8");
+        } catch (SeafException e) {
+            throw e;
+        } catch (UnsupportedEncodingException e) {
+            throw SeafException.encodingException;
+        } catch (HttpRequestException e) {
+            throw getSeafExceptionFromHttpRequestException(e);
+        }
+    }
 
-                // line 3
-                String l3 = "Content-Type: text/plain" + CRLF;
+    /**
+     * Upload some of the blocks produced by a {@link BlockUploadPipeline}, without creating the file.
+     * The pipeline must have been opened with the blocks to send.
+     *
+     * @param count how many blocks to take from the pipeline
+     * @param alreadySent bytes of the file sent before this request, for progress reporting
+     * @return the ids of the blocks acknowledged by the server
+     */
+    public List<String> uploadRawBlocks(String link, BlockUploadPipeline pipeline, int count,
+                                        long alreadySent, ProgressMonitor monitor)
+                                            throws SeafException, IOException {
+        List<BlockUploadPipeline.EncryptedBlock> blocks = Lists.newArrayListWithCapacity(count);
+        try {
+            BlockUploadPipeline.EncryptedBlock block;
+            while (blocks.size() < count && (block = pipeline.next()) != null) {
+                blocks.add(block);
+            }
 
-                // line 4
-                String l4 = CRLF;
-                totalLen += l1.length() + l2.length + l3.length() + l4.length() + blk.length() + 2;
+            HttpRequest req = HttpRequest.post(link, null, false).followRedirects(true).connectTimeout(CONNECTION_TIMEOUT);
+            prepareHttpsCheck(req);
 
-                StringBuilder chunkReq = new StringBuilder();
-                chunkReq.append(l1).append(contentDisposition).append(l3).append(l4);
-                req.send(chunkReq);
+            byte[] end = (TWO_HYPENS + BOUNDARY + TWO_HYPENS + CRLF).getBytes("UTF-8");
+            long totalLen = end.length;
+            for (BlockUploadPipeline.EncryptedBlock b : blocks) {
+                totalLen += blockPartHeader(b.blockId).length + b.length + CRLF.length();
+            }
+            req.contentLength((int) totalLen);
+            req.header("Connection", "Keep-Alive");
+            req.header("Cache-Control", "no-cache");
+            req.header("Content-Type", "multipart/form-data;boundary=" + BOUNDARY);
 
+            long sent = alreadySent;
+            List<String> blkIds = Lists.newArrayListWithCapacity(blocks.size());
+            for (BlockUploadPipeline.EncryptedBlock b : blocks) {
+                req.send(blockPartHeader(b.blockId));
                 if (monitor != null) {
                     req.bufferSize(MonitoredFileInputStream.BUFFER_SIZE);
-                    req.send(new MonitoredFileInputStream(blk, monitor));
+                    req.send(new MonitoredFileInputStream(b.openStream(), sent, monitor));
                 } else {
-                    req.send(new FileInputStream(blk));
+                    req.send(b.openStream());
                 }
                 req.send(CRLF);
+                sent += b.length;
+                blkIds.add(b.blockId);
             }
-
             req.send(end);
 
             checkRequestResponseStatus(req, HttpURLConnection.HTTP_OK);
-
-            //result file_id "3f0da9a0709c5fb9f23957608dabef01becc3a8c"
-            return new String(req.bytes(), "UTF-8").replaceAll("\"","");
-        } catch (IOException e) {
-            throw SeafException.networkException;
+            releaseConnection(req);
+            return blkIds;
         } catch (HttpRequestException e) {
             if (e.getCause() instanceof MonitorCancelledException) {
                 Log.d(DEBUG_TAG, "upload is cancelled");
@@ -1029,6 +1199,48 @@ public class SeafConnection {
             } else {
                 throw getSeafExceptionFromHttpRequestException(e);
             }
+        } finally {
+            for (BlockUploadPipeline.EncryptedBlock b : blocks) {
+                b.release();
+            }
+        }
+    }
+
+    /**
+     * Create or update a file from blocks which have all been uploaded already.
+     *
+     * @return the file id
+     */
+    public String commitBlocks(String link, String dir, String fileName, long fileSize,
+                               List<String> blkIds, boolean update) throws SeafException {
+        try {
+            HttpRequest req = HttpRequest.post(link, null, false).followRedirects(true).connectTimeout(CONNECTION_TIMEOUT);
+            prepareHttpsCheck(req);
+
+            req.form("parent_dir", dir);
+            req.form("file_name", fileName);
+            req.form("file_size", String.valueOf(fileSize));
+            req.form("blockids", new JSONArray(blkIds).toString());
+            if (update) {
+                req.form("replace", "1");
+            }
+
+            checkRequestResponseStatus(req, HttpURLConnection.HTTP_OK);
+
+            String result = new String(req.bytes(), "UTF-8");
+            // either the plain file id, or a json list like [{"name": ..., "id": ..., "size": ...}]
+            if (result.startsWith("[")) {
+                return new JSONArray(result).getJSONObject(0).optString("id");
+            }
+            return result.replaceAll("\"", "");
+        } catch (SeafException e) {
+            throw e;
+        } catch (UnsupportedEncodingException e) {
+            throw SeafException.encodingException;
+        } catch (JSONException e) {
+            throw SeafException.illFormatException;
+        } catch (HttpRequestException e) {
+            throw getSeafExceptionFromHttpRequestException(e);
         }
     }
 
@@ -1127,6 +1339,15 @@ public class SeafConnection {
             this.monitor = monitor;
         }
 
+        /**
+         * @param bytesRead bytes already sent before this stream, so progress accumulates across blocks
+         */
+        public MonitoredFileInputStream(InputStream src, long bytesRead, ProgressMonitor monitor) {
+            this.src = src;
+            this.bytesRead = bytesRead;
+            this.monitor = monitor;
+        }
+
         @Override
         public int read(byte[] buffer) throws IOException {
             int read = src.read(buffer);
@@ -1190,8 +1411,17 @@ public class SeafConnection {
             this.monitor = monitor;
         }
 
-        public MonitoredFileOutputStream(FileBlocks fileBlocks, String blockId, File file, ProgressMonitor monitor) throws IOException {
-            this.dst = new FileOutputStream(file);
+        /**
+         * @param bytesWritten bytes already downloaded before this stream, when resuming a download
+         */
+        public MonitoredFileOutputStream(OutputStream dst, long bytesWritten, ProgressMonitor monitor) {
+            this.dst = dst;
+            this.bytesWritten = bytesWritten;
+            this.monitor = monitor;
+        }
+
+        public MonitoredFileOutputStream(FileBlocks fileBlocks, String blockId, OutputStream dst, ProgressMonitor monitor) {
+            this.dst = dst;
             this.monitor = monitor;
             if (fileBlocks != null) {
                 this.fileBlocks = fileBlocks;
@@ -1235,8 +1465,13 @@ public class SeafConnection {
 
             if (System.currentTimeMillis() > nextUpdate) {
                 if (fileBlocks != null) {
-                    fileBlocks.getBlock(blockId).finished = bytesWritten;
-                    monitor.onProgressNotify(fileBlocks.getFinished(), false);
+                    // blocks of the same file may be downloaded concurrently
+                    long finished;
+                    synchronized (fileBlocks) {
+                        fileBlocks.getBlock(blockId).finished = bytesWritten;
+                        finished = fileBlocks.getFinished();
+                    }
+                    monitor.onProgressNotify(finished, false);
                 } else {
                     monitor.onProgressNotify(bytesWritten, false);
                 }
@@ -1261,6 +1496,7 @@ public class SeafConnection {
             req.form("p", path);
             req.form("type", isdir ? "d": "f");
             checkRequestResponseStatus(req, HttpURLConnection.HTTP_CREATED);
+            releaseConnection(req);
 
             String result = req.header("Location");
             if (result == null) {
@@ -1283,6 +1519,7 @@ public class SeafConnection {
             HttpRequest req = prepareApiPostRequest("api2/device-wiped/", true, null);
             req.form("token", token);
             checkRequestResponseStatus(req, HttpURLConnection.HTTP_CREATED);
+            releaseConnection(req);
         } catch (SeafException e) {
             throw e;
         } catch (HttpRequestException e) {
@@ -1298,6 +1535,7 @@ public class SeafConnection {
             req.form("p", path);
 
             checkRequestResponseStatus(req, HttpURLConnection.HTTP_CREATED);
+            releaseConnection(req);
 
         } catch (SeafException e) {
             throw e;
@@ -1314,6 +1552,7 @@ public class SeafConnection {
             HttpRequest req = prepareApiDeleteRequest("api2/starredfiles/", params);
 
             checkRequestResponseStatus(req, HttpURLConnection.HTTP_OK);
+            releaseConnection(req);
 
         } catch (SeafException e) {
             throw e;
@@ -1410,6 +1649,7 @@ public class SeafConnection {
             req.form("file_names", srcFn);
 
             checkRequestResponseStatus(req, HttpURLConnection.HTTP_OK);
+            releaseConnection(req);
 
         } catch (SeafException e) {
             throw e;
@@ -1443,6 +1683,7 @@ public class SeafConnection {
             req.form("file_names", srcFn);
 
             checkRequestResponseStatus(req, HttpURLConnection.HTTP_OK);
+            releaseConnection(req);
 
         } catch (SeafException e) {
             throw e;
@@ -1498,6 +1739,7 @@ public class SeafConnection {
     private void checkRequestResponseStatus(HttpRequest req, int expectedStatusCode) throws SeafException {
         if (req.code() != expectedStatusCode) {
             Log.d(DEBUG_TAG, "HTTP request failed : " + req.url() + ", " + req.code() + ", " + req.message());
+            releaseConnection(req);
 
             if (req.message() == null) {
                 throw SeafException.networkException;
@@ -0,0 +1,378 @@
+package com.seafile.seadroid2;
+
+import android.util.Log;
+
+import com.github.kevinsawicki.http.HttpRequest;
+import com.google.common.collect.Lists;
+import com.seafile.seadroid2.data.ProgressMonitor;
+import com.seafile.seadroid2.util.NamedThreadFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Download a large file over several connections.
+ * <p/>
+ * The file is split into one byte range per connection. The ranges are fetched in parallel and
+ * written at their offset through a single {@link FileChannel} into the partial download file,
+ * preallocated to the full size. The first range is read from the plain request of the file, which
+ * announced that the server supports ranges, and the rest of that answer is dropped.
+ * <p/>
+ * How much of each range is done is saved next to the partial file every few seconds and when the
+ * download fails, after the data is flushed. A later attempt on the same version of the file fetches
+ * only what is missing of each range.
+ */
+class SegmentedDownloader {
+    private static final String DEBUG_TAG = "SegmentedDownloader";
+
+    /**
+     * ranges smaller than this are not worth an extra connection
+     */
+    private static final long MIN_SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long PROGRESS_UPDATE_INTERVAL = 500;
+    private static final long CHECKPOINT_INTERVAL = 3000;
+
+    private static final int STATE_MAGIC = 0x53454753; // "SEGS"
+
+    private final SeafConnection sc;
+    private final String link;
+    private final String oid;
+    private final long total;
+    private final ProgressMonitor monitor;
+    private final int connections;
+
+    private final AtomicLong received = new AtomicLong();
+    private long nextUpdate;
+    private long nextCheckpoint;
+
+    private List<Segment> segments;
+    private File stateFile;
+    private FileChannel channel;
+
+    /**
+     * A byte range of the file, and how many of its bytes are in the partial file
+     */
+    private static class Segment {
+        final long start;
+        final long end;
+        final AtomicLong done;
+
+        Segment(long start, long end, long done) {
+            this.start = start;
+            this.end = end;
+            this.done = new AtomicLong(done);
+        }
+    }
+
+    SegmentedDownloader(SeafConnection sc, String link, String oid, long total,
+                        ProgressMonitor monitor, int connections) {
+        this.sc = sc;
+        this.link = link;
+        this.oid = oid;
+        this.total = total;
+        this.monitor = monitor;
+        this.connections = (int) Math.max(1, Math.min(connections, total / MIN_SEGMENT_SIZE));
+    }
+
+    private static File getStateFile(File partial) {
+        return new File(partial.getPath() + ".segments");
+    }
+
+    /**
+     * @return the size of the file an interrupted segmented download into this partial file was
+     * fetching, or -1 if there is none. A partial file whose saved ranges are unusable is deleted,
+     * its content can't be resumed from its length.
+     */
+    static long getSavedTotal(File partial) {
+        File stateFile = getStateFile(partial);
+        if (!stateFile.exists()) {
+            return -1;
+        }
+        List<Segment> saved = loadState(stateFile);
+        if (saved != null) {
+            long savedTotal = saved.get(saved.size() - 1).end + 1;
+            if (partial.length() == savedTotal) {
+                return savedTotal;
+            }
+        }
+        stateFile.delete();
+        partial.delete();
+        return -1;
+    }
+
+    private static List<Segment> loadState(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != STATE_MAGIC) {
+                return null;
+            }
+            int count = in.readInt();
+            if (count <= 0) {
+                return null;
+            }
+            List<Segment> saved = Lists.newArrayListWithCapacity(count);
+            long next = 0;
+            for (int i = 0; i < count; i++) {
+                long start = in.readLong();
+                long end = in.readLong();
+                long done = in.readLong();
+                if (start != next || end < start || done < 0 || done > end - start + 1) {
+                    return null;
+                }
+                saved.add(new Segment(start, end, done));
+                next = end + 1;
+            }
+            return saved;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Flush the data received so far, then record how much of each range it covers
+     */
+    private synchronized void saveState() throws IOException {
+        channel.force(false);
+        File tmp = new File(stateFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(STATE_MAGIC);
+            out.writeInt(segments.size());
+            for (Segment segment : segments) {
+                out.writeLong(segment.start);
+                out.writeLong(segment.end);
+                out.writeLong(segment.done.get());
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(stateFile)) {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Download the file into the partial file, resuming the ranges saved there if any, then move it
+     * to the target path.
+     *
+     * @param first a request for the whole file, answered from offset 0, or null
+     * @param partial the partial download file of this version of the file
+     * @param target the local file
+     * @return the local file
+     */
+    File download(HttpRequest first, File partial, File target) throws SeafException, IOException {
+        stateFile = getStateFile(partial);
+        segments = loadState(stateFile);
+        if (segments == null || partial.length() != total
+                || segments.get(segments.size() - 1).end != total - 1) {
+            final long segmentSize = (total + connections - 1) / connections;
+            segments = Lists.newArrayList();
+            for (long start = 0; start < total; start += segmentSize) {
+                segments.add(new Segment(start, Math.min(total, start + segmentSize) - 1, 0));
+            }
+            Log.d(DEBUG_TAG, String.format("%s: %d bytes over %d connections", target.getName(), total, segments.size()));
+        } else {
+            for (Segment segment : segments) {
+                received.addAndGet(segment.done.get());
+            }
+            Log.d(DEBUG_TAG, String.format("%s: resume at %d of %d bytes", target.getName(), received.get(), total));
+        }
+
+        if (monitor != null) {
+            monitor.onProgressNotify(total, false);
+        }
+
+        // the first request can only serve the first range from its start
+        if (first != null && segments.get(0).done.get() > 0) {
+            first.disconnect();
+            first = null;
+        }
+
+        ExecutorService executor = null;
+        RandomAccessFile raf = null;
+        boolean succeeded = false;
+        try {
+            raf = new RandomAccessFile(partial, "rw");
+            raf.setLength(total);
+            channel = raf.getChannel();
+            // from now on the length of the partial file says nothing, the saved ranges do
+            saveState();
+            nextCheckpoint = System.currentTimeMillis() + CHECKPOINT_INTERVAL;
+
+            List<Future<Void>> futures = Lists.newArrayList();
+            if (segments.size() > 1) {
+                executor = Executors.newFixedThreadPool(segments.size() - 1, new NamedThreadFactory(DEBUG_TAG));
+                for (int i = 1; i < segments.size(); i++) {
+                    futures.add(executor.submit(new SegmentFetcher(null, segments.get(i))));
+                }
+            }
+
+            // the first range on the calling thread
+            new SegmentFetcher(first, segments.get(0)).call();
+            for (Future<Void> future : futures) {
+                await(future);
+            }
+
+            succeeded = true;
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+                try {
+                    // stop the writers before saving what they wrote
+                    executor.awaitTermination(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (!succeeded && channel != null) {
+                try {
+                    saveState();
+                } catch (IOException e) {
+                    Log.w(DEBUG_TAG, "Could not save the download state of " + target.getName());
+                    stateFile.delete();
+                    partial.delete();
+                }
+            }
+            if (raf != null) {
+                raf.close();
+            }
+        }
+
+        stateFile.delete();
+        if (target.exists() && !target.delete()) {
+            Log.w(DEBUG_TAG, "Failed to delete old file " + target.getName());
+        }
+        if (!partial.renameTo(target)) {
+            Log.w(DEBUG_TAG, "Rename file error");
+            partial.delete();
+            return null;
+        }
+        return target;
+    }
+
+    private void await(Future<Void> future) throws SeafException, IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw SeafException.userCancelledException;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SeafException) {
+                throw (SeafException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof HttpRequest.HttpRequestException) {
+                throw (HttpRequest.HttpRequestException) cause;
+            }
+            Log.e(DEBUG_TAG, "Segment download failed", cause);
+            throw SeafException.unknownException;
+        }
+    }
+
+    private void onReceived(long bytes) throws SeafException, IOException {
+        long current = received.addAndGet(bytes);
+        if (monitor != null && (monitor.isCancelled() || Thread.currentThread().isInterrupted())) {
+            throw SeafException.userCancelledException;
+        }
+
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (monitor != null && now > nextUpdate) {
+                monitor.onProgressNotify(current, false);
+                nextUpdate = now + PROGRESS_UPDATE_INTERVAL;
+            }
+            if (now > nextCheckpoint) {
+                saveState();
+                nextCheckpoint = now + CHECKPOINT_INTERVAL;
+            }
+        }
+    }
+
+    /**
+     * Fetch the rest of one byte range into the file
+     */
+    private class SegmentFetcher implements Callable<Void> {
+        private HttpRequest req;
+        private final Segment segment;
+
+        /**
+         * @param req a request already answered from the start of the range, or null to open one
+         */
+        SegmentFetcher(HttpRequest req, Segment segment) {
+            this.req = req;
+            this.segment = segment;
+        }
+
+        @Override
+        public Void call() throws SeafException, IOException {
+            long position = segment.start + segment.done.get();
+            long end = segment.end;
+            if (position > end) {
+                return null;
+            }
+            if (req == null) {
+                req = sc.prepareApiFileGetRequest(link);
+                req.header("Range", "bytes=" + position + "-" + end);
+                if (req.code() != HttpURLConnection.HTTP_PARTIAL || !SeafConnection.isResumable(req, position, oid)) {
+                    Log.d(DEBUG_TAG, "unexpected answer for range " + position + "-" + end + ", " + req.code());
+                    req.disconnect();
+                    throw SeafException.networkException;
+                }
+            }
+
+            InputStream in = req.stream();
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                while (position <= end) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, end - position + 1));
+                    if (read == -1) {
+                        throw SeafException.networkException;
+                    }
+                    ByteBuffer src = ByteBuffer.wrap(buffer, 0, read);
+                    while (src.hasRemaining()) {
+                        position += channel.write(src, position);
+                    }
+                    segment.done.addAndGet(read);
+                    onReceived(read);
+                }
+            } finally {
+                // the first request may have more to send than its range
+                req.disconnect();
+            }
+            return null;
+        }
+    }
+}
@@ -71,6 +71,8 @@ public final class SettingsManager {
     public static final String CAMERA_UPLOAD_CATEGORY_KEY = "category_camera_upload_key";
     public static final String CAMERA_UPLOAD_CUSTOM_BUCKETS_KEY = "camera_upload_buckets_switch_key";
     public static final String SHARED_PREF_CAMERA_UPLOAD_BUCKETS = PKG + ".camera.buckets";
+    public static final String SHARED_PREF_CAMERA_UPLOAD_LAST_FULL_SCAN = PKG + ".camera.lastFullScan";
+    public static final String SHARED_PREF_CAMERA_UPLOAD_VIDEOS_DEFERRED = PKG + ".camera.videosDeferred";
 
     // About tab
     public static final String SETTINGS_ABOUT_VERSION_KEY = "settings_about_version_key";
@@ -86,6 +88,18 @@ public final class SettingsManager {
     public static final String SORT_FILES_TYPE = "sort_files_type";
     public static final String SORT_FILES_ORDER = "sort_files_order";
 
+    // Transfer
+    public static final String TRANSFER_BLOCK_DOWNLOAD_CONCURRENCY_KEY = "transfer_block_download_concurrency_key";
+    public static final int DEFAULT_BLOCK_DOWNLOAD_CONCURRENCY = 4;
+    public static final String TRANSFER_SEGMENTED_DOWNLOAD_THRESHOLD_KEY = "transfer_segmented_download_threshold_key";
+    public static final long DEFAULT_SEGMENTED_DOWNLOAD_THRESHOLD = 32 * 1024 * 1024;
+    public static final String TRANSFER_SEGMENTED_DOWNLOAD_CONNECTIONS_KEY = "transfer_segmented_download_connections_key";
+    public static final int DEFAULT_SEGMENTED_DOWNLOAD_CONNECTIONS = 4;
+    public static final String TRANSFER_MIN_CONCURRENCY_KEY = "transfer_min_concurrency_key";
+    public static final int DEFAULT_TRANSFER_MIN_CONCURRENCY = 1;
+    public static final String TRANSFER_MAX_CONCURRENCY_KEY = "transfer_max_concurrency_key";
+    public static final int DEFAULT_TRANSFER_MAX_CONCURRENCY = 6;
+
     public static long lock_timestamp = 0;
     public static final long LOCK_EXPIRATION_MSECS = 5 * 60 * 1000;
 
@@ -247,6 +261,83 @@ public final class SettingsManager {
         return sharedPref.getString(SettingsManager.SHARED_PREF_CAMERA_UPLOAD_REPO_ID, null);
     }
 
+    /**
+     * Time of the last camera upload sync which scanned all media, not only the new ones
+     */
+    public long getCameraUploadLastFullScan() {
+        return sharedPref.getLong(SHARED_PREF_CAMERA_UPLOAD_LAST_FULL_SCAN, 0);
+    }
+
+    public void saveCameraUploadLastFullScan(long time) {
+        editor.putLong(SHARED_PREF_CAMERA_UPLOAD_LAST_FULL_SCAN, time).commit();
+    }
+
+    /**
+     * Whether camera upload left large videos for when the device is charging on an unmetered network
+     */
+    public boolean isCameraUploadVideosDeferred() {
+        return sharedPref.getBoolean(SHARED_PREF_CAMERA_UPLOAD_VIDEOS_DEFERRED, false);
+    }
+
+    public void saveCameraUploadVideosDeferred(boolean deferred) {
+        editor.putBoolean(SHARED_PREF_CAMERA_UPLOAD_VIDEOS_DEFERRED, deferred).commit();
+    }
+
+    /**
+     * Number of blocks of an encrypted file which are downloaded in parallel
+     */
+    public int getBlockDownloadConcurrency() {
+        int concurrency = settingsSharedPref.getInt(TRANSFER_BLOCK_DOWNLOAD_CONCURRENCY_KEY, DEFAULT_BLOCK_DOWNLOAD_CONCURRENCY);
+        return concurrency > 0 ? concurrency : DEFAULT_BLOCK_DOWNLOAD_CONCURRENCY;
+    }
+
+    public void saveBlockDownloadConcurrency(int concurrency) {
+        settingsSharedPref.edit().putInt(TRANSFER_BLOCK_DOWNLOAD_CONCURRENCY_KEY, concurrency).commit();
+    }
+
+    /**
+     * Files at least this large are downloaded over several connections, 0 to always use a single one
+     */
+    public long getSegmentedDownloadThreshold() {
+        return settingsSharedPref.getLong(TRANSFER_SEGMENTED_DOWNLOAD_THRESHOLD_KEY, DEFAULT_SEGMENTED_DOWNLOAD_THRESHOLD);
+    }
+
+    public void saveSegmentedDownloadThreshold(long threshold) {
+        settingsSharedPref.edit().putLong(TRANSFER_SEGMENTED_DOWNLOAD_THRESHOLD_KEY, threshold).commit();
+    }
+
+    /**
+     * Number of parallel connections of a segmented download
+     */
+    public int getSegmentedDownloadConnections() {
+        int connections = settingsSharedPref.getInt(TRANSFER_SEGMENTED_DOWNLOAD_CONNECTIONS_KEY, DEFAULT_SEGMENTED_DOWNLOAD_CONNECTIONS);
+        return connections > 0 ? connections : DEFAULT_SEGMENTED_DOWNLOAD_CONNECTIONS;
+    }
+
+    public void saveSegmentedDownloadConnections(int connections) {
+        settingsSharedPref.edit().putInt(TRANSFER_SEGMENTED_DOWNLOAD_CONNECTIONS_KEY, connections).commit();
+    }
+
+    /**
+     * Bounds for the number of concurrent transfer tasks, which is adapted to the measured throughput
+     */
+    public int getTransferMinConcurrency() {
+        int min = settingsSharedPref.getInt(TRANSFER_MIN_CONCURRENCY_KEY, DEFAULT_TRANSFER_MIN_CONCURRENCY);
+        return min > 0 ? min : DEFAULT_TRANSFER_MIN_CONCURRENCY;
+    }
+
+    public int getTransferMaxConcurrency() {
+        int max = settingsSharedPref.getInt(TRANSFER_MAX_CONCURRENCY_KEY, DEFAULT_TRANSFER_MAX_CONCURRENCY);
+        return max > 0 ? max : DEFAULT_TRANSFER_MAX_CONCURRENCY;
+    }
+
+    public void saveTransferConcurrencyBounds(int min, int max) {
+        settingsSharedPref.edit()
+                .putInt(TRANSFER_MIN_CONCURRENCY_KEY, min)
+                .putInt(TRANSFER_MAX_CONCURRENCY_KEY, max)
+                .commit();
+    }
+
     public int getStorageDir() {
         return sharedPref.getInt(SHARED_PREF_STORAGE_DIR, Integer.MIN_VALUE);
     }
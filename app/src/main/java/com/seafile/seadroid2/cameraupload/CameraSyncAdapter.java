@@ -11,6 +11,7 @@ import android.content.Intent;
 import android.content.ServiceConnection;
 import android.content.SyncResult;
 import android.database.Cursor;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.provider.MediaStore;
@@ -18,6 +19,9 @@ import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 
 import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.seafile.seadroid2.R;
 import com.seafile.seadroid2.SeafException;
 import com.seafile.seadroid2.SettingsManager;
@@ -27,18 +31,21 @@ import com.seafile.seadroid2.account.AccountManager;
 import com.seafile.seadroid2.data.DataManager;
 import com.seafile.seadroid2.data.SeafDirent;
 import com.seafile.seadroid2.data.SeafRepo;
-import com.seafile.seadroid2.transfer.TaskState;
 import com.seafile.seadroid2.transfer.TransferService;
-import com.seafile.seadroid2.transfer.UploadTaskInfo;
+import com.seafile.seadroid2.transfer.TransferBatch;
+import com.seafile.seadroid2.transfer.TransferTaskInfo;
 import com.seafile.seadroid2.ui.activity.AccountsActivity;
 import com.seafile.seadroid2.ui.activity.SettingsActivity;
 import com.seafile.seadroid2.util.Utils;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 /**
@@ -62,6 +69,25 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
 
     private final String BASE_DIR = "My Photos";
 
+    private static final String MEDIA_IMAGES = "images";
+    private static final String MEDIA_VIDEOS = "videos";
+
+    /**
+     * Longest time between two syncs scanning all media instead of only the new ones
+     */
+    private static final long FULL_SCAN_INTERVAL = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * Videos larger than this wait until the device is charging on an unmetered network, if the user
+     * does not allow uploads over the data plan
+     */
+    private static final long LARGE_VIDEO_SIZE = 100 * 1024 * 1024;
+
+    /**
+     * Will be set to true if the current sync ignores the scan watermarks.
+     */
+    private boolean fullScan;
+
     /**
      * Will be set to true if the current sync has been cancelled.
      */
@@ -70,7 +96,7 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
     /**
      * Media files we have sent over to the TransferService. Thread-safe.
      */
-    private List<Integer> tasksInProgress = new ArrayList<>();
+    private TransferBatch uploadBatch;
 
     TransferService txService = null;
 
@@ -127,8 +153,14 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
     public void onSyncCanceled() {
         super.onSyncCanceled();
         // Log.d(DEBUG_TAG, "onPerformSync will be cancelled ");
+        TransferBatch batch;
         synchronized (this) {
             cancelled = true;
+            batch = uploadBatch;
+        }
+        // wake up the sync thread if it waits for uploads
+        if (batch != null) {
+            batch.cancel();
         }
     }
 
@@ -241,6 +273,12 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
             dbHelper.cleanPhotoCache();
         }
 
+        // now and then look at all media again, to catch files edited or deleted since they were scanned
+        long now = System.currentTimeMillis();
+        long lastFullScan = settingsMgr.getCameraUploadLastFullScan();
+        fullScan = extras.getBoolean(ContentResolver.SYNC_EXTRAS_INITIALIZE)
+                || now < lastFullScan || now - lastFullScan > FULL_SCAN_INTERVAL;
+
         if (!settingsMgr.checkCameraUploadNetworkAvailable()) {
             // Log.d(DEBUG_TAG, "Not syncing because of data plan restriction.");
             // treat dataPlan abort the same way as a network connection error
@@ -307,10 +345,21 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
                 return;
             }
 
-            uploadImages(syncResult, dataManager);
+            uploadMedia(syncResult, dataManager, MEDIA_IMAGES, MediaStore.Images.Media.EXTERNAL_CONTENT_URI);
 
             if (settingsMgr.isVideosUploadAllowed()) {
-                uploadVideos(syncResult, dataManager);
+                uploadMedia(syncResult, dataManager, MEDIA_VIDEOS, MediaStore.Video.Media.EXTERNAL_CONTENT_URI);
+            }
+
+            if (!isCancelled()) {
+                // while the uploaded files are most likely still there
+                dbHelper.hashUploadedFiles();
+            }
+
+            if (fullScan && !isCancelled()) {
+                int removed = dbHelper.removeMissingFiles();
+                settingsMgr.saveCameraUploadLastFullScan(System.currentTimeMillis());
+                Log.d(DEBUG_TAG, "Full scan done, forgot " + removed + " deleted files");
             }
 
             if (isCancelled()) {
@@ -345,10 +394,15 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
             Log.e(DEBUG_TAG, "sync aborted because an unknown error", e);
             syncResult.stats.numParseExceptions++;
         } finally {
+            // write what was uploaded before an error or cancellation
+            dbHelper.flush();
+
+            TransferBatch batch = setUploadBatch(null);
             if (txService != null) {
 
                 // Log.d(DEBUG_TAG, "Cancelling remaining pending tasks (if any)");
-                txService.cancelUploadTasksByIds(tasksInProgress);
+                if (batch != null)
+                    txService.cancelUploadTasksByIds(batch.getPendingIds());
 
                 // Log.d(DEBUG_TAG, "disconnecting from TransferService");
                 getContext().unbindService(mConnection);
@@ -357,9 +411,19 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
         }
     }
 
-    private void uploadImages(SyncResult syncResult, DataManager dataManager) throws SeafException, InterruptedException {
+    /**
+     * Upload the images or videos of the selected buckets.
+     * <p/>
+     * Only the media store rows added after the watermark of their bucket are scanned, unless this is a
+     * full scan. The watermarks are moved forward once all uploads of the scan succeeded.
+     *
+     * @param media {@link #MEDIA_IMAGES} or {@link #MEDIA_VIDEOS}
+     * @param uri the media store table to scan
+     */
+    private void uploadMedia(SyncResult syncResult, DataManager dataManager, String media, Uri uri)
+            throws SeafException, InterruptedException {
 
-        // Log.d(DEBUG_TAG, "Starting to upload images...");
+        // Log.d(DEBUG_TAG, "Starting to upload " + media + "...");
 
         if (isCancelled())
             return;
@@ -374,23 +438,29 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
                     selectedBuckets.add(bucket.id);
             }
         }
+        if (selectedBuckets.isEmpty())
+            return;
 
-        String[] selectionArgs = selectedBuckets.toArray(new String[]{});
-        String selection = MediaStore.Images.ImageColumns.BUCKET_ID + " IN " + varArgs(selectedBuckets.size());
+        Map<String, CameraUploadDBHelper.Watermark> watermarks = fullScan
+                ? Maps.<String, CameraUploadDBHelper.Watermark>newHashMap()
+                : dbHelper.getWatermarks(media);
 
-        // Log.d(DEBUG_TAG, "ContentResolver selection='"+selection+"' selectionArgs='"+Arrays.deepToString(selectionArgs)+"'");
+        List<String> selectionArgs = Lists.newArrayList();
+        String selection = buildSelection(selectedBuckets, watermarks, selectionArgs);
 
-        // fetch all new images from the ContentProvider since our last sync
+        // fetch all new media from the ContentProvider since our last sync
         Cursor cursor = contentResolver.query(
-                MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
+                uri,
                 new String[]{
-                        MediaStore.Images.Media._ID,
-                        MediaStore.Images.Media.DATA,
+                        MediaStore.MediaColumns._ID,
+                        MediaStore.MediaColumns.DATA,
+                        MediaStore.MediaColumns.DATE_ADDED,
+                        MediaStore.Images.ImageColumns.BUCKET_ID,
                         MediaStore.Images.ImageColumns.BUCKET_DISPLAY_NAME
                 },
                 selection,
-                selectionArgs,
-                MediaStore.Images.ImageColumns.DATE_ADDED + " ASC"
+                selectionArgs.toArray(new String[selectionArgs.size()]),
+                MediaStore.MediaColumns.DATE_ADDED + " ASC, " + MediaStore.MediaColumns._ID + " ASC"
         );
 
         try {
@@ -398,86 +468,60 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
                 Log.e(DEBUG_TAG, "ContentResolver query failed!");
                 return;
             }
-            // Log.d(DEBUG_TAG, "i see " + cursor.getCount() + " new images.");
-            if (cursor.getCount() > 0) {
-                // create directories for media buckets
-                createDirectories(dataManager);
-
-                iterateCursor(syncResult, dataManager, cursor);
-
-                if (isCancelled())
-                    return;
-
-            }
-        } finally {
-            if (cursor != null)
-                cursor.close();
-        }
-    }
-
-    private void uploadVideos(SyncResult syncResult, DataManager dataManager) throws SeafException, InterruptedException {
-
-        // Log.d(DEBUG_TAG, "Starting to upload videos...");
-
-        if (isCancelled())
-            return;
-
-        List<String> selectedBuckets = new ArrayList<>();
-        if (bucketList.size() > 0) {
-            selectedBuckets = bucketList;
-        } else {
-            List<GalleryBucketUtils.Bucket> allBuckets = GalleryBucketUtils.getMediaBuckets(getContext());
-            for (GalleryBucketUtils.Bucket bucket: allBuckets) {
-                if (bucket.isCameraBucket)
-                    selectedBuckets.add(bucket.id);
-            }
-        }
-
-        String[] selectionArgs = selectedBuckets.toArray(new String[]{});
-        String selection = MediaStore.Video.VideoColumns.BUCKET_ID + " IN " + varArgs(selectedBuckets.size());
-
-        // Log.d(DEBUG_TAG, "ContentResolver selection='"+selection+"' selectionArgs='"+Arrays.deepToString(selectionArgs)+"'");
+            Log.d(DEBUG_TAG, String.format("%s scan of %s: %d rows", fullScan ? "full" : "incremental",
+                    media, cursor.getCount()));
 
-        // fetch all new videos from the ContentProvider since our last sync
-        Cursor cursor = contentResolver.query(
-                MediaStore.Video.Media.EXTERNAL_CONTENT_URI,
-                new String[]{
-                        MediaStore.Video.Media._ID,
-                        MediaStore.Video.Media.DATA,
-                        MediaStore.Video.VideoColumns.BUCKET_DISPLAY_NAME
-                },
-                selection,
-                selectionArgs,
-                MediaStore.Video.VideoColumns.DATE_ADDED + " ASC"
-        );
+            boolean deferLargeVideos = MEDIA_VIDEOS.equals(media) && !settingsMgr.isDataPlanAllowed()
+                    && !CameraSyncScheduler.canUploadDeferredVideos();
+            boolean deferred = false;
 
-        try {
-            if (cursor == null) {
-                Log.e(DEBUG_TAG, "ContentResolver query failed!");
-                return;
-            }
-            // Log.d(DEBUG_TAG, "i see " + cursor.getCount() + " new videos.");
             if (cursor.getCount() > 0) {
                 // create directories for media buckets
                 createDirectories(dataManager);
 
-                iterateCursor(syncResult, dataManager, cursor);
+                deferred = iterateCursor(syncResult, dataManager, cursor, watermarks, deferLargeVideos);
 
                 if (isCancelled())
                     return;
 
+                dbHelper.saveWatermarks(media, watermarks);
+            }
+
+            if (MEDIA_VIDEOS.equals(media) && settingsMgr.isCameraUploadVideosDeferred() != deferred) {
+                // CameraSyncScheduler syncs again once charging on an unmetered network
+                settingsMgr.saveCameraUploadVideosDeferred(deferred);
             }
         } finally {
             if (cursor != null)
                 cursor.close();
         }
-
     }
 
-    private String varArgs(int count) {
-        String[] chars = new String[count];
-        Arrays.fill(chars, "?");
-        return "( " + Joiner.on(", ").join(chars) + " )";
+    /**
+     * Select the rows of each bucket after its watermark, or all of them if it has none
+     *
+     * @param args filled with the selection arguments
+     */
+    private static String buildSelection(List<String> buckets,
+                                         Map<String, CameraUploadDBHelper.Watermark> watermarks,
+                                         List<String> args) {
+        List<String> clauses = Lists.newArrayList();
+        for (String bucket : buckets) {
+            CameraUploadDBHelper.Watermark watermark = watermarks.get(bucket);
+            args.add(bucket);
+            if (watermark == null) {
+                clauses.add("(" + MediaStore.Images.ImageColumns.BUCKET_ID + " = ?)");
+            } else {
+                clauses.add("(" + MediaStore.Images.ImageColumns.BUCKET_ID + " = ? AND ("
+                        + MediaStore.MediaColumns.DATE_ADDED + " > ? OR ("
+                        + MediaStore.MediaColumns.DATE_ADDED + " = ? AND "
+                        + MediaStore.MediaColumns._ID + " > ?)))");
+                args.add(Long.toString(watermark.dateAdded));
+                args.add(Long.toString(watermark.dateAdded));
+                args.add(Long.toString(watermark.mediaId));
+            }
+        }
+        return Joiner.on(" OR ").join(clauses);
     }
 
     /**
@@ -486,17 +530,36 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
      * @param syncResult
      * @param dataManager
      * @param cursor
+     * @param watermarks updated with the last row seen of each bucket, up to the first deferred video
+     * @param deferLargeVideos whether to leave videos larger than {@link #LARGE_VIDEO_SIZE} for later
+     * @return whether large videos were left for later
      * @throws SeafException
      */
-    private void iterateCursor(SyncResult syncResult, DataManager dataManager, Cursor cursor) throws SeafException, InterruptedException {
+    private boolean iterateCursor(SyncResult syncResult, DataManager dataManager, Cursor cursor,
+                                  Map<String, CameraUploadDBHelper.Watermark> watermarks, boolean deferLargeVideos)
+            throws SeafException, InterruptedException {
+
+        setUploadBatch(txService.newUploadBatch());
+
+        int idColumn = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns._ID);
+        int dataColumn = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.DATA);
+        int dateAddedColumn = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.DATE_ADDED);
+        int bucketIdColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.ImageColumns.BUCKET_ID);
+        int bucketColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.ImageColumns.BUCKET_DISPLAY_NAME);
 
-        tasksInProgress.clear();
+        // buckets whose watermark stays before a deferred video, so the next scan finds it again
+        Set<String> heldBuckets = Sets.newHashSet();
 
         // upload them one by one
         while (!isCancelled() && cursor.moveToNext()) {
 
-            int dataColumn = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.DATA);
-            int bucketColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.ImageColumns.BUCKET_DISPLAY_NAME);
+            // rows come by date added, so this is the furthest row of the bucket so far
+            String bucketId = cursor.getString(bucketIdColumn);
+            CameraUploadDBHelper.Watermark before = null;
+            if (!heldBuckets.contains(bucketId)) {
+                before = watermarks.put(bucketId,
+                        new CameraUploadDBHelper.Watermark(cursor.getLong(dateAddedColumn), cursor.getLong(idColumn)));
+            }
 
             // some inconsistency in the Media Provider? Ignore and continue
             if (cursor.getString(dataColumn) == null) {
@@ -525,49 +588,104 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
                 continue;
             }
 
+            if (deferLargeVideos && file.length() > LARGE_VIDEO_SIZE) {
+                Log.d(DEBUG_TAG, "Deferring " + file + ", " + file.length() + " bytes");
+                if (heldBuckets.add(bucketId)) {
+                    // back to the row before this one
+                    if (before != null) {
+                        watermarks.put(bucketId, before);
+                    } else {
+                        watermarks.remove(bucketId);
+                    }
+                }
+                continue;
+            }
+
+            if (isContentUploaded(file)) {
+                Log.d(DEBUG_TAG, "Skipping media " + file + " because its content was uploaded under another path.");
+                dbHelper.markAsUploaded(file);
+                syncResult.stats.numSkippedEntries++;
+                continue;
+            }
+
             uploadFile(dataManager, file, bucketName);
         }
 
-        waitForUploads();
-        checkUploadResult(syncResult);
+        // woken up by the transfer service when the last upload ends, or by onSyncCanceled
+        uploadBatch.await();
+        checkUploadResult(syncResult, uploadBatch);
+        return !heldBuckets.isEmpty();
     }
 
-    private void waitForUploads() throws InterruptedException {
-        // Log.d(DEBUG_TAG, "wait for transfer service to finish our tasks");
-        WAITLOOP: while (!isCancelled()) {
-            Thread.sleep(100); // wait
+    /**
+     * Replace the batch of uploads to wait for, and stop following the previous one
+     *
+     * @return the previous batch
+     */
+    private synchronized TransferBatch setUploadBatch(TransferBatch batch) {
+        TransferBatch previous = uploadBatch;
+        uploadBatch = batch;
+        if (previous != null) {
+            previous.close();
+        }
+        if (batch != null && cancelled) {
+            batch.cancel();
+        }
+        return previous;
+    }
 
-            for (int id: tasksInProgress) {
-                UploadTaskInfo info = txService.getUploadTaskInfo(id);
-                if (info.state == TaskState.INIT || info.state == TaskState.TRANSFERRING) {
-                    // there is still at least one task pending
-                    continue  WAITLOOP;
-                }
-            }
-            break;
+    /**
+     * @return whether a file with the same content was uploaded before, false if it can't be read
+     */
+    private boolean isContentUploaded(File file) {
+        try {
+            return dbHelper.isContentUploaded(file);
+        } catch (IOException e) {
+            Log.w(DEBUG_TAG, "Could not fingerprint " + file + ": " + e.getMessage());
+            return false;
         }
     }
 
     /**
-     * Upload is finished. Go through task infos and mark files as uploaded in our DB
+     * Uploads are over. Mark the files uploaded in our DB, then report the failures if any.
      *
      * @param syncResult
-     * @throws SeafException
+     * @throws SeafException the error of a failed upload, an auth error first,
+     *                       or unknownException if uploads were cancelled or are not done
      */
-    private void checkUploadResult(SyncResult syncResult) throws SeafException {
-        for (int id: tasksInProgress) {
-            UploadTaskInfo info = txService.getUploadTaskInfo(id);
-            if (info.err != null) {
+    private void checkUploadResult(SyncResult syncResult, TransferBatch batch) throws SeafException {
+        for (TransferTaskInfo info : batch.getFinished()) {
+            File file = new File(info.localFilePath);
+            dbHelper.markAsUploaded(file);
+            try {
+                dbHelper.addFingerprint(file);
+            } catch (IOException e) {
+                Log.w(DEBUG_TAG, "Could not fingerprint " + file + ": " + e.getMessage());
+            }
+            syncResult.stats.numInserts++;
+        }
+
+        List<TransferTaskInfo> failed = batch.getFailed();
+        int notDone = batch.getPendingIds().size() + batch.getUnknownCount();
+        if (failed.isEmpty() && notDone == 0) {
+            return;
+        }
+        Log.d(DEBUG_TAG, String.format("%d uploads failed or cancelled, %d not done",
+                failed.size(), notDone));
+
+        SeafException err = null;
+        for (TransferTaskInfo info : failed) {
+            if (info.err == null) {
+                continue;
+            }
+            if (info.err.getCode() == HttpURLConnection.HTTP_UNAUTHORIZED) {
                 throw info.err;
             }
-            if (info.state == TaskState.FINISHED) {
-                File file = new File(info.localFilePath);
-                dbHelper.markAsUploaded(file);
-                syncResult.stats.numInserts++;
-            } else {
-                throw SeafException.unknownException;
+            if (err == null) {
+                err = info.err;
             }
         }
+        throw err != null ? err : SeafException.unknownException;
     }
 
     /**
@@ -611,7 +729,7 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
         // Log.d(DEBUG_TAG, "uploading file " + file.getName() + " to " + serverPath);
         int taskID = txService.addUploadTask(dataManager.getAccount(), targetRepoId, targetRepoName,
                 serverPath, file.getAbsolutePath(), false, false);
-        tasksInProgress.add(taskID);
+        uploadBatch.add(taskID);
     }
 
     /**
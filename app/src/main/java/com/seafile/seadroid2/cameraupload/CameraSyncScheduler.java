@@ -0,0 +1,115 @@
+package com.seafile.seadroid2.cameraupload;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.seafile.seadroid2.SettingsManager;
+import com.seafile.seadroid2.util.Utils;
+
+/**
+ * Turn media store changes into camera upload syncs.
+ * <p/>
+ * A burst of photos, or an app rewriting the tags of many files, notifies every single change.
+ * Instead of a sync per notification, changes are collected until none came for {@link #QUIET_MS},
+ * and then synced at once. A steady stream of changes is still synced every {@link #MAX_DELAY_MS}.
+ * <p/>
+ * {@link CameraSyncAdapter} leaves large batches of videos for when the device is charging on an
+ * unmetered network. The scheduler watches for that moment and syncs them then.
+ */
+public class CameraSyncScheduler {
+    private static final String DEBUG_TAG = "CameraSyncScheduler";
+
+    /**
+     * Sync once no change came for this long
+     */
+    private static final long QUIET_MS = 5000;
+
+    /**
+     * Don't hold back changes longer than this
+     */
+    private static final long MAX_DELAY_MS = 60000;
+
+    private final Context context;
+    private final CameraUploadManager cameraManager;
+    private final SettingsManager settingsMgr = SettingsManager.instance();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Time of the first change not synced yet, 0 if there is none
+     */
+    private long firstChange;
+    private int changeCount;
+
+    private final Runnable syncRunnable = new Runnable() {
+        @Override
+        public void run() {
+            int changes;
+            synchronized (CameraSyncScheduler.this) {
+                changes = changeCount;
+                changeCount = 0;
+                firstChange = 0;
+            }
+            if (cameraManager.isCameraUploadEnabled()) {
+                Log.d(DEBUG_TAG, "Syncing " + changes + " media changes");
+                cameraManager.performSync();
+            }
+        }
+    };
+
+    private final BroadcastReceiver conditionsReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (settingsMgr.isCameraUploadVideosDeferred() && canUploadDeferredVideos()
+                    && cameraManager.isCameraUploadEnabled()) {
+                Log.d(DEBUG_TAG, "Charging on an unmetered network, syncing deferred videos");
+                cameraManager.performSync();
+            }
+        }
+    };
+
+    public CameraSyncScheduler(Context context, CameraUploadManager cameraManager) {
+        this.context = context;
+        this.cameraManager = cameraManager;
+    }
+
+    /**
+     * @return whether large videos may be uploaded now
+     */
+    public static boolean canUploadDeferredVideos() {
+        return Utils.isCharging() && Utils.isUnmeteredNetworkOn();
+    }
+
+    public void start() {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_POWER_CONNECTED);
+        filter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
+        context.registerReceiver(conditionsReceiver, filter);
+    }
+
+    public void stop() {
+        context.unregisterReceiver(conditionsReceiver);
+        handler.removeCallbacks(syncRunnable);
+    }
+
+    /**
+     * Called for each media store change notification, from any thread
+     */
+    public synchronized void onMediaChanged() {
+        long now = SystemClock.elapsedRealtime();
+        if (firstChange == 0) {
+            firstChange = now;
+        }
+        changeCount++;
+
+        long delay = Math.max(0, Math.min(QUIET_MS, firstChange + MAX_DELAY_MS - now));
+        handler.removeCallbacks(syncRunnable);
+        handler.postDelayed(syncRunnable, delay);
+    }
+}
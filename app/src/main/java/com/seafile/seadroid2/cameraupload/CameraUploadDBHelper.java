@@ -5,17 +5,28 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
 
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
 import com.seafile.seadroid2.SeadroidApplication;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class CameraUploadDBHelper extends SQLiteOpenHelper {
     private static final String DEBUG_TAG = "CameraUploadDBHelper";
 
     // If you change the database schema, you must increment the database
     // version.
-    public static final int DATABASE_VERSION = 3;
+    public static final int DATABASE_VERSION = 7;
     public static final String DATABASE_NAME = "photo.db";
     private static CameraUploadDBHelper dbHelper;
     private SQLiteDatabase database;
@@ -32,11 +43,62 @@ public class CameraUploadDBHelper extends SQLiteOpenHelper {
                     + PHOTOCACHE_COLUMN_FILE + " TEXT NOT NULL, "
                     + PHOTOCACHE_COLUMN_DATE_ADDED + " BIGINT NOT NULL);";
 
-    private static final String[] projection = {
-            PHOTOCACHE_COLUMN_ID,
-            PHOTOCACHE_COLUMN_FILE,
-            PHOTOCACHE_COLUMN_DATE_ADDED
-    };
+    // ScanWatermark table: per media type and bucket, the last media store row scanned
+    private static final String WATERMARK_TABLE_NAME = "ScanWatermark";
+    private static final String WATERMARK_COLUMN_MEDIA = "media";
+    private static final String WATERMARK_COLUMN_BUCKET = "bucket_id";
+    private static final String WATERMARK_COLUMN_DATE_ADDED = "date_added";
+    private static final String WATERMARK_COLUMN_MEDIA_ID = "media_id";
+
+    private static final String SQL_CREATE_WATERMARK_TABLE =
+            "CREATE TABLE " + WATERMARK_TABLE_NAME + " ("
+                    + WATERMARK_COLUMN_MEDIA + " TEXT NOT NULL, "
+                    + WATERMARK_COLUMN_BUCKET + " TEXT NOT NULL, "
+                    + WATERMARK_COLUMN_DATE_ADDED + " BIGINT NOT NULL, "
+                    + WATERMARK_COLUMN_MEDIA_ID + " BIGINT NOT NULL, "
+                    + "PRIMARY KEY (" + WATERMARK_COLUMN_MEDIA + ", " + WATERMARK_COLUMN_BUCKET + "));";
+
+    // PhotoFingerprint table: hashes of the uploaded files and their paths, see MediaFingerprint.
+    // The full hash is filled in after the upload.
+    private static final String FINGERPRINT_TABLE_NAME = "PhotoFingerprint";
+    private static final String FINGERPRINT_COLUMN_SIZE = "size";
+    private static final String FINGERPRINT_COLUMN_PARTIAL_HASH = "partial_hash";
+    private static final String FINGERPRINT_COLUMN_PATH = "path";
+    private static final String FINGERPRINT_COLUMN_FULL_HASH = "full_hash";
+
+    private static final String SQL_CREATE_FINGERPRINT_TABLE =
+            "CREATE TABLE " + FINGERPRINT_TABLE_NAME + " ("
+                    + FINGERPRINT_COLUMN_SIZE + " BIGINT NOT NULL, "
+                    + FINGERPRINT_COLUMN_PARTIAL_HASH + " TEXT NOT NULL, "
+                    + FINGERPRINT_COLUMN_PATH + " TEXT NOT NULL, "
+                    + FINGERPRINT_COLUMN_FULL_HASH + " TEXT, "
+                    + "PRIMARY KEY (" + FINGERPRINT_COLUMN_SIZE + ", " + FINGERPRINT_COLUMN_PARTIAL_HASH + ", "
+                    + FINGERPRINT_COLUMN_PATH + "));";
+
+    /**
+     * Marks are written to the database in batches of this many files
+     */
+    private static final int MAX_PENDING_MARKS = 100;
+
+    /**
+     * Sorted keys of the uploaded files in the table, see {@link #uploadedKey}. Loaded on first use.
+     */
+    private long[] uploadedKeys;
+
+    /**
+     * Keys of the files marked as uploaded since the keys were loaded
+     */
+    private final Set<Long> recentKeys = Sets.newHashSet();
+
+    /**
+     * Files marked as uploaded and not written to the table yet
+     */
+    private final List<ContentValues> pendingMarks = Lists.newArrayList();
+
+    /**
+     * Fingerprints of uploaded files not written to the table yet, written with the marks
+     */
+    private final List<ContentValues> pendingFingerprints = Lists.newArrayList();
 
     public static synchronized CameraUploadDBHelper getInstance() {
         if (dbHelper == null) {
@@ -54,6 +116,8 @@ public class CameraUploadDBHelper extends SQLiteOpenHelper {
     @Override
     public void onCreate(SQLiteDatabase db) {
         createPhotoCacheTable(db);
+        db.execSQL(SQL_CREATE_WATERMARK_TABLE);
+        db.execSQL(SQL_CREATE_FINGERPRINT_TABLE);
     }
 
     private void createPhotoCacheTable(SQLiteDatabase db) {
@@ -66,46 +130,363 @@ public class CameraUploadDBHelper extends SQLiteOpenHelper {
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL("DROP TABLE IF EXISTS " + PHOTOCACHE_TABLE_NAME + ";");
-        onCreate(db);
+        if (oldVersion >= 3) {
+            // keep the uploaded files, the first scan without watermarks is a full one
+            if (oldVersion < 4)
+                db.execSQL(SQL_CREATE_WATERMARK_TABLE);
+            // files uploaded before have no fingerprint, only later uploads are recognized by content
+            if (oldVersion < 5) {
+                db.execSQL(SQL_CREATE_FINGERPRINT_TABLE);
+            } else if (oldVersion < 6) {
+                // fingerprints had a full hash instead of the path of the uploaded file
+                db.execSQL("DROP TABLE IF EXISTS " + FINGERPRINT_TABLE_NAME + ";");
+                db.execSQL(SQL_CREATE_FINGERPRINT_TABLE);
+            } else if (oldVersion < 7) {
+                db.execSQL("ALTER TABLE " + FINGERPRINT_TABLE_NAME + " ADD COLUMN "
+                        + FINGERPRINT_COLUMN_FULL_HASH + " TEXT;");
+            }
+            return;
+        }
+        recreateTables(db);
     }
 
     @Override
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        onUpgrade(db, oldVersion, newVersion);
+        recreateTables(db);
     }
 
-    public boolean isUploaded(File file) {
-        String path = file.getAbsolutePath();
-        long modified = file.lastModified();
+    private void recreateTables(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + PHOTOCACHE_TABLE_NAME + ";");
+        db.execSQL("DROP TABLE IF EXISTS " + WATERMARK_TABLE_NAME + ";");
+        db.execSQL("DROP TABLE IF EXISTS " + FINGERPRINT_TABLE_NAME + ";");
+        onCreate(db);
+    }
+
+    /**
+     * Key of an uploaded file in the in-memory index, a hash of its path and modification time
+     */
+    private static long uploadedKey(String path, long modified) {
+        return Hashing.murmur3_128().newHasher()
+                .putString(path, Charsets.UTF_8)
+                .putLong(modified)
+                .hash().asLong();
+    }
 
-        Cursor c = database.query(
-                PHOTOCACHE_TABLE_NAME,
-                projection,
-                PHOTOCACHE_COLUMN_FILE + " = ? and " + PHOTOCACHE_COLUMN_DATE_ADDED + " = ?",
-                new String[] { path, Long.toString(modified) },
-                null,   // don't group the rows
-                null,   // don't filter by row groups
-                null    // The sort order
-        );
+    /**
+     * Load the keys of all uploaded files. A 64 bit key makes a false match between two files of a
+     * device practically impossible, so the table is not queried again to confirm a match.
+     */
+    private void loadUploadedKeys() {
+        flush();
+        long start = System.currentTimeMillis();
+        Cursor c = database.query(PHOTOCACHE_TABLE_NAME,
+                new String[] { PHOTOCACHE_COLUMN_FILE, PHOTOCACHE_COLUMN_DATE_ADDED },
+                null, null, null, null, null);
+        try {
+            long[] keys = new long[c.getCount()];
+            int n = 0;
+            while (c.moveToNext() && n < keys.length) {
+                keys[n++] = uploadedKey(c.getString(0), c.getLong(1));
+            }
+            Arrays.sort(keys, 0, n);
+            uploadedKeys = n == keys.length ? keys : Arrays.copyOf(keys, n);
+        } finally {
+            c.close();
+        }
+        recentKeys.clear();
+        Log.d(DEBUG_TAG, String.format("loaded %d uploaded files in %d ms",
+                uploadedKeys.length, System.currentTimeMillis() - start));
+    }
 
-        int count = c.getCount();
-        c.close();
-        return count > 0;
+    public synchronized boolean isUploaded(File file) {
+        if (uploadedKeys == null) {
+            loadUploadedKeys();
+        }
+        long key = uploadedKey(file.getAbsolutePath(), file.lastModified());
+        return Arrays.binarySearch(uploadedKeys, key) >= 0 || recentKeys.contains(key);
     }
 
-    public void markAsUploaded(File file) {
+    /**
+     * Mark a file as uploaded. It is written to the database with the next batch, see {@link #flush}.
+     */
+    public synchronized void markAsUploaded(File file) {
         String path = file.getAbsolutePath();
         long modified = file.lastModified();
 
         ContentValues values = new ContentValues();
         values.put(PHOTOCACHE_COLUMN_FILE, path);
         values.put(PHOTOCACHE_COLUMN_DATE_ADDED, modified);
+        pendingMarks.add(values);
 
-        database.insert(PHOTOCACHE_TABLE_NAME, null, values);
+        if (uploadedKeys != null) {
+            recentKeys.add(uploadedKey(path, modified));
+        }
+        if (pendingMarks.size() >= MAX_PENDING_MARKS) {
+            flush();
+        }
+    }
+
+    /**
+     * Write the files marked as uploaded since the last flush, in one transaction
+     */
+    public synchronized void flush() {
+        if (pendingMarks.isEmpty() && pendingFingerprints.isEmpty()) {
+            return;
+        }
+        database.beginTransaction();
+        try {
+            writePendingMarks();
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    private void writePendingMarks() {
+        for (ContentValues values : pendingMarks) {
+            database.insert(PHOTOCACHE_TABLE_NAME, null, values);
+        }
+        pendingMarks.clear();
+        for (ContentValues values : pendingFingerprints) {
+            database.insertWithOnConflict(FINGERPRINT_TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+        }
+        pendingFingerprints.clear();
+    }
+
+    /**
+     * Remember the content of an uploaded file, written with the next batch of marks. Only the partial
+     * hash is computed here, the full hash later by {@link #hashUploadedFiles}.
+     */
+    public synchronized void addFingerprint(File file) throws IOException {
+        ContentValues values = new ContentValues();
+        values.put(FINGERPRINT_COLUMN_SIZE, file.length());
+        values.put(FINGERPRINT_COLUMN_PARTIAL_HASH, MediaFingerprint.partialHash(file));
+        values.put(FINGERPRINT_COLUMN_PATH, file.getAbsolutePath());
+        pendingFingerprints.add(values);
     }
 
-    public void cleanPhotoCache() {
+    /**
+     * Compute the full hashes of the uploaded files which only have a partial one. Meant to run after
+     * the uploads of a sync, while the files are still there; a file which is gone or changed gets none.
+     * The files are read without holding the lock.
+     */
+    public void hashUploadedFiles() {
+        List<ContentValues> unhashed = Lists.newArrayList();
+        synchronized (this) {
+            flush();
+            Cursor c = database.query(FINGERPRINT_TABLE_NAME,
+                    new String[] { FINGERPRINT_COLUMN_SIZE, FINGERPRINT_COLUMN_PARTIAL_HASH, FINGERPRINT_COLUMN_PATH },
+                    FINGERPRINT_COLUMN_FULL_HASH + " IS NULL", null, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    ContentValues values = new ContentValues();
+                    values.put(FINGERPRINT_COLUMN_SIZE, c.getLong(0));
+                    values.put(FINGERPRINT_COLUMN_PARTIAL_HASH, c.getString(1));
+                    values.put(FINGERPRINT_COLUMN_PATH, c.getString(2));
+                    unhashed.add(values);
+                }
+            } finally {
+                c.close();
+            }
+        }
+
+        for (ContentValues values : unhashed) {
+            File file = new File(values.getAsString(FINGERPRINT_COLUMN_PATH));
+            try {
+                if (isUnchanged(file, values)) {
+                    String fullHash = MediaFingerprint.fullHash(file);
+                    synchronized (this) {
+                        saveFullHash(values, fullHash);
+                    }
+                }
+            } catch (IOException e) {
+                Log.w(DEBUG_TAG, "Could not hash " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return whether the uploaded file of a fingerprint still has the content it was uploaded with,
+     * as far as the partial hash tells
+     */
+    private static boolean isUnchanged(File file, ContentValues values) throws IOException {
+        return file.exists() && file.length() == values.getAsLong(FINGERPRINT_COLUMN_SIZE)
+                && MediaFingerprint.partialHash(file).equals(values.getAsString(FINGERPRINT_COLUMN_PARTIAL_HASH));
+    }
+
+    /**
+     * Store the full hash of a fingerprint, whether it is still pending or in the table
+     */
+    private void saveFullHash(ContentValues values, String fullHash) {
+        values.put(FINGERPRINT_COLUMN_FULL_HASH, fullHash);
+        ContentValues update = new ContentValues();
+        update.put(FINGERPRINT_COLUMN_FULL_HASH, fullHash);
+        database.update(FINGERPRINT_TABLE_NAME, update,
+                FINGERPRINT_COLUMN_SIZE + " = ? AND " + FINGERPRINT_COLUMN_PARTIAL_HASH + " = ? AND "
+                        + FINGERPRINT_COLUMN_PATH + " = ?",
+                new String[] { values.getAsString(FINGERPRINT_COLUMN_SIZE),
+                        values.getAsString(FINGERPRINT_COLUMN_PARTIAL_HASH),
+                        values.getAsString(FINGERPRINT_COLUMN_PATH) });
+    }
+
+    /**
+     * Check whether a file with the same content was uploaded, under any path or mtime.
+     * Files of a size never uploaded are not read; the others are hashed partially. A partial match only
+     * counts once the full hashes agree: the stored one, or else the one of the uploaded file if it is
+     * still there unchanged. A partial match which can't be confirmed is not taken as uploaded.
+     */
+    public synchronized boolean isContentUploaded(File file) throws IOException {
+        long size = file.length();
+        List<ContentValues> candidates = Lists.newArrayList();
+        for (ContentValues values : pendingFingerprints) {
+            if (values.getAsLong(FINGERPRINT_COLUMN_SIZE) == size) {
+                candidates.add(values);
+            }
+        }
+        Cursor c = database.query(FINGERPRINT_TABLE_NAME,
+                new String[] { FINGERPRINT_COLUMN_PARTIAL_HASH, FINGERPRINT_COLUMN_PATH, FINGERPRINT_COLUMN_FULL_HASH },
+                FINGERPRINT_COLUMN_SIZE + " = ?", new String[] { Long.toString(size) },
+                null, null, null);
+        try {
+            while (c.moveToNext()) {
+                ContentValues values = new ContentValues();
+                values.put(FINGERPRINT_COLUMN_SIZE, size);
+                values.put(FINGERPRINT_COLUMN_PARTIAL_HASH, c.getString(0));
+                values.put(FINGERPRINT_COLUMN_PATH, c.getString(1));
+                values.put(FINGERPRINT_COLUMN_FULL_HASH, c.getString(2));
+                candidates.add(values);
+            }
+        } finally {
+            c.close();
+        }
+        if (candidates.isEmpty()) {
+            return false;
+        }
+
+        String partialHash = MediaFingerprint.partialHash(file);
+        String fullHash = null;
+        for (ContentValues values : candidates) {
+            if (!partialHash.equals(values.getAsString(FINGERPRINT_COLUMN_PARTIAL_HASH))) {
+                continue;
+            }
+            String uploadedHash = values.getAsString(FINGERPRINT_COLUMN_FULL_HASH);
+            if (uploadedHash == null) {
+                File uploaded = new File(values.getAsString(FINGERPRINT_COLUMN_PATH));
+                if (!isUnchanged(uploaded, values)) {
+                    // nothing left to compare the whole content with
+                    continue;
+                }
+                uploadedHash = MediaFingerprint.fullHash(uploaded);
+                saveFullHash(values, uploadedHash);
+            }
+            if (fullHash == null) {
+                fullHash = MediaFingerprint.fullHash(file);
+            }
+            if (fullHash.equals(uploadedHash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Forget uploaded files that no longer exist on the device
+     *
+     * @return the number of files forgotten
+     */
+    public synchronized int removeMissingFiles() {
+        flush();
+
+        List<Long> missing = Lists.newArrayList();
+        Cursor c = database.query(PHOTOCACHE_TABLE_NAME, new String[] { PHOTOCACHE_COLUMN_ID, PHOTOCACHE_COLUMN_FILE },
+                null, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                if (!new File(c.getString(1)).exists()) {
+                    missing.add(c.getLong(0));
+                }
+            }
+        } finally {
+            c.close();
+        }
+
+        database.beginTransaction();
+        try {
+            for (long id : missing) {
+                database.delete(PHOTOCACHE_TABLE_NAME, PHOTOCACHE_COLUMN_ID + " = ?",
+                        new String[] { Long.toString(id) });
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        if (!missing.isEmpty()) {
+            uploadedKeys = null;
+        }
+        return missing.size();
+    }
+
+    public synchronized void cleanPhotoCache() {
+        pendingMarks.clear();
+        pendingFingerprints.clear();
+        uploadedKeys = new long[0];
+        recentKeys.clear();
         database.delete(PHOTOCACHE_TABLE_NAME, null, null);
+        database.delete(WATERMARK_TABLE_NAME, null, null);
+        database.delete(FINGERPRINT_TABLE_NAME, null, null);
+    }
+
+    /**
+     * Position of the last media store row scanned in a bucket.
+     * Rows are scanned by DATE_ADDED, then _ID.
+     */
+    public static class Watermark {
+        public final long dateAdded;
+        public final long mediaId;
+
+        public Watermark(long dateAdded, long mediaId) {
+            this.dateAdded = dateAdded;
+            this.mediaId = mediaId;
+        }
+    }
+
+    /**
+     * @param media "images" or "videos"
+     * @return the watermark of each bucket scanned so far, by bucket id
+     */
+    public synchronized Map<String, Watermark> getWatermarks(String media) {
+        Map<String, Watermark> watermarks = Maps.newHashMap();
+        Cursor c = database.query(WATERMARK_TABLE_NAME,
+                new String[] { WATERMARK_COLUMN_BUCKET, WATERMARK_COLUMN_DATE_ADDED, WATERMARK_COLUMN_MEDIA_ID },
+                WATERMARK_COLUMN_MEDIA + " = ?", new String[] { media }, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                watermarks.put(c.getString(0), new Watermark(c.getLong(1), c.getLong(2)));
+            }
+        } finally {
+            c.close();
+        }
+        return watermarks;
+    }
+
+    /**
+     * Save watermarks, together with the files marked as uploaded so far
+     */
+    public synchronized void saveWatermarks(String media, Map<String, Watermark> watermarks) {
+        database.beginTransaction();
+        try {
+            writePendingMarks();
+            for (Map.Entry<String, Watermark> entry : watermarks.entrySet()) {
+                ContentValues values = new ContentValues();
+                values.put(WATERMARK_COLUMN_MEDIA, media);
+                values.put(WATERMARK_COLUMN_BUCKET, entry.getKey());
+                values.put(WATERMARK_COLUMN_DATE_ADDED, entry.getValue().dateAdded);
+                values.put(WATERMARK_COLUMN_MEDIA_ID, entry.getValue().mediaId);
+                database.insertWithOnConflict(WATERMARK_TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,56 @@
+package com.seafile.seadroid2.cameraupload;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Content hashes of media files, to recognize a file uploaded before under another path or mtime.
+ * <p/>
+ * The partial hash covers the size and the first and last {@link #PART_SIZE} bytes. It is cheap and tells
+ * most files apart. Only when it matches, the full hashes of both files confirm the match. The full hash
+ * of an uploaded file is computed after its upload, so the match can still be confirmed once it is gone.
+ */
+final class MediaFingerprint {
+    private static final int PART_SIZE = 64 * 1024;
+
+    private MediaFingerprint() {
+    }
+
+    static String partialHash(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            Hasher hasher = Hashing.sha1().newHasher().putLong(length);
+            byte[] buf = new byte[PART_SIZE];
+            hasher.putBytes(buf, 0, read(raf, 0, buf));
+            if (length > PART_SIZE) {
+                hasher.putBytes(buf, 0, read(raf, Math.max(PART_SIZE, length - PART_SIZE), buf));
+            }
+            return hasher.hash().toString();
+        } finally {
+            raf.close();
+        }
+    }
+
+    static String fullHash(File file) throws IOException {
+        return Files.hash(file, Hashing.sha1()).toString();
+    }
+
+    private static int read(RandomAccessFile raf, long pos, byte[] buf) throws IOException {
+        raf.seek(pos);
+        int n = 0;
+        while (n < buf.length) {
+            int len = raf.read(buf, n, buf.length - n);
+            if (len < 0) {
+                break;
+            }
+            n += len;
+        }
+        return n;
+    }
+}
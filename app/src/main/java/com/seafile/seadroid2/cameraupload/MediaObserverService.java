@@ -13,7 +13,8 @@ import com.seafile.seadroid2.SettingsManager;
 /**
  * This service monitors the media provider content provider for new images/videos.
  *
- * If new content appears, this service will get notified and send a syncRequest to the MediaSyncProvider.
+ * If new content appears, this service will get notified and send a syncRequest to the MediaSyncProvider,
+ * through a {@link CameraSyncScheduler} which groups bursts of changes into one sync.
  *
  * This service is always running, even if camera upload is not active.
  * However, it will only register it's ContentObservers if Camera Upload is enabled in Seadroid.
@@ -24,6 +25,7 @@ public class MediaObserverService extends Service {
     private MediaObserver mediaObserver = null;
     private SettingsManager settingsManager = SettingsManager.instance();
     private CameraUploadManager cameraManager;
+    private CameraSyncScheduler syncScheduler;
 
     /**
      * If camera upload settings have changed, we might have to trigger a full resync.
@@ -73,6 +75,8 @@ public class MediaObserverService extends Service {
 
         settingsManager.registerSharedPreferencesListener(settingsListener);
         cameraManager = new CameraUploadManager(getApplicationContext());
+        syncScheduler = new CameraSyncScheduler(getApplicationContext(), cameraManager);
+        syncScheduler.start();
         registerContentObservers();
 
         if (cameraManager.isCameraUploadEnabled()) {
@@ -86,6 +90,7 @@ public class MediaObserverService extends Service {
         // Log.d(DEBUG_TAG, "onDestroy");
         settingsManager.unregisterSharedPreferencesListener(settingsListener);
         unregisterContentObservers();
+        syncScheduler.stop();
     }
 
     @Override
@@ -132,7 +137,7 @@ public class MediaObserverService extends Service {
 
             if (cameraManager.isCameraUploadEnabled()) {
                 // Log.d(DEBUG_TAG, "Noticed a change in the media provider, scheduling sync.");
-                cameraManager.performSync();
+                syncScheduler.onMediaChanged();
             }
         }
     }
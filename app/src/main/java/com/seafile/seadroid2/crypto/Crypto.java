@@ -45,7 +45,7 @@ import javax.crypto.spec.SecretKeySpec;
 public class Crypto {
     private static final String TAG = Crypto.class.getSimpleName();
 
-    private static final String CIPHER_ALGORITHM = "AES/CBC/PKCS7Padding";
+    static final String CIPHER_ALGORITHM = "AES/CBC/PKCS7Padding";
     private static final String CHAR_SET = "UTF-8";
 
     private static int KEY_LENGTH = 32;
@@ -264,6 +264,7 @@ public class Crypto {
 
     /**
      * All file data is encrypted by the encKey/encIv with AES 256/CBC.
+     * To encrypt many blocks with the same key, see {@link CryptoContext}.
      *
      * @param plaintext
      * @param encKey
@@ -294,6 +295,7 @@ public class Crypto {
 
     /**
      * All file data is decrypted by the encKey/encIv with AES 256/CBC.
+     * To decrypt many blocks with the same key, see {@link CryptoContext}.
      *
      * @param plaintext
      * @param encKey
@@ -333,7 +335,7 @@ public class Crypto {
      * @return
      * @throws NoSuchAlgorithmException
      */
-    private static byte[] fromHex(@NonNull String hex) throws NoSuchAlgorithmException {
+    static byte[] fromHex(@NonNull String hex) throws NoSuchAlgorithmException {
         byte[] bytes = new byte[hex.length() / 2];
         for (int i = 0; i < bytes.length; i++) {
             bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
@@ -0,0 +1,178 @@
+package com.seafile.seadroid2.crypto;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The file key of an encrypted repo, ready to encrypt and decrypt blocks.
+ * <p/>
+ * {@link Crypto#encrypt} and {@link Crypto#decrypt} parse the hex key and look up a cipher on every call.
+ * A context does that once: the key is kept as bytes and initialized ciphers are kept in a small pool,
+ * one is taken out for each block. A cipher goes back to its initial state after doFinal, and every block
+ * is encrypted with the same iv, so it is reused as is for the next block. The pool lives as long as the
+ * context, so ciphers outlive the worker threads of a single transfer.
+ */
+public class CryptoContext {
+    private static final String TAG = CryptoContext.class.getSimpleName();
+
+    /**
+     * idle ciphers kept per mode, more are created when all are in use
+     */
+    private static final int MAX_IDLE_CIPHERS = 4;
+
+    private final SecretKey key;
+    private final IvParameterSpec iv;
+
+    private final Queue<Cipher> encryptors = new ConcurrentLinkedQueue<Cipher>();
+    private final Queue<Cipher> decryptors = new ConcurrentLinkedQueue<Cipher>();
+
+    /**
+     * @param encKey file key in hex, as returned by {@link Crypto#generateKey}
+     * @param encIv file iv in hex
+     */
+    public CryptoContext(@NonNull String encKey, @NonNull String encIv) throws NoSuchAlgorithmException {
+        this.key = new SecretKeySpec(Crypto.fromHex(encKey), "AES");
+        this.iv = new IvParameterSpec(Crypto.fromHex(encIv));
+    }
+
+    /**
+     * Take an idle cipher of the pool, or create one
+     *
+     * @return the cipher, or null on failure
+     */
+    private Cipher acquire(Queue<Cipher> pool, int mode) {
+        Cipher cipher = pool.poll();
+        if (cipher != null) {
+            return cipher;
+        }
+        try {
+            cipher = Cipher.getInstance(Crypto.CIPHER_ALGORITHM);
+            cipher.init(mode, key, iv);
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Could not create cipher " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Give back a cipher in its initial state
+     */
+    private static void release(Queue<Cipher> pool, Cipher cipher) {
+        if (pool.size() < MAX_IDLE_CIPHERS) {
+            pool.offer(cipher);
+        }
+    }
+
+    /**
+     * Encrypt a block, like {@link Crypto#encrypt(byte[], int, String, String)}
+     *
+     * @return the encrypted block, or null on failure
+     */
+    public byte[] encrypt(@NonNull byte[] plaintext, int inputLen) {
+        return doFinal(encryptors, Cipher.ENCRYPT_MODE, plaintext, 0, inputLen);
+    }
+
+    /**
+     * Decrypt a block, like {@link Crypto#decrypt(byte[], String, String)}
+     *
+     * @return the decrypted block, or null on failure
+     */
+    public byte[] decrypt(@NonNull byte[] encrypted) {
+        return doFinal(decryptors, Cipher.DECRYPT_MODE, encrypted, 0, encrypted.length);
+    }
+
+    /**
+     * Wrap a stream so that what is written to it is decrypted into dst as it arrives, without holding
+     * the encrypted data. Closing it checks the padding and writes the end of the plaintext; a bad
+     * key or corrupt data fails the close with an IOException. The cipher goes back to the pool when
+     * the stream is closed successfully.
+     */
+    public OutputStream decryptingStream(@NonNull OutputStream dst) throws IOException {
+        Cipher cipher = acquire(decryptors, Cipher.DECRYPT_MODE);
+        if (cipher == null) {
+            throw new IOException("no cipher");
+        }
+        return new DecryptingOutputStream(cipher, dst);
+    }
+
+    private class DecryptingOutputStream extends OutputStream {
+        private final Cipher cipher;
+        private final OutputStream dst;
+        private byte[] out = new byte[8192];
+        private boolean closed;
+
+        DecryptingOutputStream(Cipher cipher, OutputStream dst) {
+            this.cipher = cipher;
+            this.dst = dst;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int off, int len) throws IOException {
+            ensureCapacity(cipher.getOutputSize(len));
+            try {
+                int n = cipher.update(buffer, off, len, out, 0);
+                dst.write(out, 0, n);
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e.getMessage());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                ensureCapacity(cipher.getOutputSize(0));
+                int n = cipher.doFinal(out, 0);
+                release(decryptors, cipher);
+                dst.write(out, 0, n);
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e.getMessage());
+            } finally {
+                dst.close();
+            }
+        }
+
+        private void ensureCapacity(int size) {
+            if (out.length < size) {
+                out = new byte[size];
+            }
+        }
+    }
+
+    private byte[] doFinal(Queue<Cipher> pool, int mode, byte[] input, int offset, int len) {
+        Cipher cipher = acquire(pool, mode);
+        if (cipher == null) {
+            return null;
+        }
+        try {
+            byte[] output = cipher.doFinal(input, offset, len);
+            release(pool, cipher);
+            return output;
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "doFinal " + e.getMessage());
+            // the cipher may be left in a bad state, it is not reused
+            return null;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.seafile.seadroid2.data;
+
+import android.util.Log;
+
+import com.google.common.collect.Lists;
+import com.seafile.seadroid2.SeafConnection;
+import com.seafile.seadroid2.SeafException;
+import com.seafile.seadroid2.crypto.CryptoContext;
+import com.seafile.seadroid2.util.NamedThreadFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Download the blocks of an encrypted file with several blocks in flight.
+ * <p/>
+ * Block download links are resolved ahead of time on a dedicated thread, blocks are fetched and
+ * decrypted on a pool of {@code concurrency} worker threads, and the plaintext is written in block order
+ * at its offset through a single {@link FileChannel}.
+ * Blocks are decrypted as they arrive, so only their plaintext is held in memory, for at most
+ * {@code concurrency} blocks at the same time. The offset of a block depends on the padding of the ones
+ * before it, which is only known once they are decrypted, so a block can't be written before them.
+ */
+class BlockDownloader {
+    private static final String DEBUG_TAG = "BlockDownloader";
+
+    /**
+     * how many download links are resolved in advance, relative to the concurrency
+     */
+    private static final int LINK_LOOKAHEAD_FACTOR = 2;
+
+    private final SeafConnection sc;
+    private final String repoID;
+    private final FileBlocks fileBlocks;
+    private final CryptoContext crypto;
+    private final ProgressMonitor monitor;
+    private final int concurrency;
+
+    private ExecutorService linkExecutor;
+    private ExecutorService blockExecutor;
+    private List<Future<String>> links;
+
+    BlockDownloader(SeafConnection sc, String repoID, FileBlocks fileBlocks,
+                    CryptoContext crypto, ProgressMonitor monitor, int concurrency) {
+        this.sc = sc;
+        this.repoID = repoID;
+        this.fileBlocks = fileBlocks;
+        this.crypto = crypto;
+        this.monitor = monitor;
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    /**
+     * Download and decrypt all blocks into a temp file, then move it to the target path.
+     *
+     * @param target the local file
+     * @return the local file
+     * @throws SeafException
+     * @throws IOException
+     */
+    File download(File target) throws SeafException, IOException {
+        final List<Block> blocks = fileBlocks.blocks;
+        linkExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("BlockLinkResolver"));
+        blockExecutor = Executors.newFixedThreadPool(concurrency, new NamedThreadFactory("BlockDownloader"));
+        links = Lists.newArrayListWithCapacity(blocks.size());
+
+        File tmp = DataManager.createTempFile();
+        RandomAccessFile raf = null;
+        boolean succeeded = false;
+        try {
+            raf = new RandomAccessFile(tmp, "rw");
+            FileChannel channel = raf.getChannel();
+            ArrayDeque<Future<ByteBuffer>> inFlight = new ArrayDeque<>(concurrency);
+
+            long offset = 0;
+            int submitted = 0;
+            for (int written = 0; written < blocks.size(); written++) {
+                // keep the pipeline full
+                while (submitted < blocks.size() && submitted < written + concurrency) {
+                    resolveLinksUpTo(Math.min(blocks.size(), submitted + concurrency * LINK_LOOKAHEAD_FACTOR));
+                    inFlight.add(blockExecutor.submit(new BlockFetcher(blocks.get(submitted), links.get(submitted))));
+                    submitted++;
+                }
+
+                ByteBuffer buffer = await(inFlight.poll());
+                while (buffer.hasRemaining()) {
+                    offset += channel.write(buffer, offset);
+                }
+            }
+
+            succeeded = true;
+        } finally {
+            linkExecutor.shutdownNow();
+            blockExecutor.shutdownNow();
+            if (raf != null) {
+                raf.close();
+            }
+            if (!succeeded) {
+                tmp.delete();
+            }
+        }
+
+        if (target.exists() && !target.delete()) {
+            Log.w(DEBUG_TAG, "Failed to delete old file " + target.getName());
+        }
+        if (!tmp.renameTo(target)) {
+            Log.w(DEBUG_TAG, "Rename file error");
+            tmp.delete();
+            throw SeafException.unknownException;
+        }
+        return target;
+    }
+
+    private void resolveLinksUpTo(int end) {
+        while (links.size() < end) {
+            final Block block = fileBlocks.blocks.get(links.size());
+            links.add(linkExecutor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return sc.getBlockDownloadLink(repoID, fileBlocks.fileID, block.blockId);
+                }
+            }));
+        }
+    }
+
+    private <T> T await(Future<T> future) throws SeafException, IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw SeafException.userCancelledException;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SeafException) {
+                throw (SeafException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            Log.e(DEBUG_TAG, "Block download failed", cause);
+            throw SeafException.unknownException;
+        }
+    }
+
+    /**
+     * Fetch a single block and decrypt it, runs on the worker pool
+     */
+    private class BlockFetcher implements Callable<ByteBuffer> {
+        private final Block block;
+        private final Future<String> link;
+
+        BlockFetcher(Block block, Future<String> link) {
+            this.block = block;
+            this.link = link;
+        }
+
+        @Override
+        public ByteBuffer call() throws SeafException, IOException {
+            if (monitor != null && monitor.isCancelled()) {
+                throw SeafException.userCancelledException;
+            }
+
+            return sc.getBlockDecrypted(await(link), fileBlocks, block.blockId, crypto, monitor);
+        }
+    }
+}
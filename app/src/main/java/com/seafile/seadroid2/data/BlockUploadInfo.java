@@ -0,0 +1,42 @@
+package com.seafile.seadroid2.data;
+
+import android.text.TextUtils;
+
+import com.google.common.collect.Sets;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Set;
+
+/**
+ * Seafile block upload links, together with the blocks the server is still missing
+ */
+public class BlockUploadInfo {
+    public static final String DEBUG_TAG = "BlockUploadInfo";
+
+    /** link to upload raw blocks, without creating the file */
+    public String rawBlksUrl;
+    /** link to create the file from blocks which are already on the server */
+    public String commitUrl;
+    /** ids of the blocks the server does not have yet */
+    public Set<String> neededBlocks;
+
+    static BlockUploadInfo fromJson(JSONObject obj) throws JSONException {
+        BlockUploadInfo info = new BlockUploadInfo();
+        info.rawBlksUrl = obj.optString("rawblksurl");
+        info.commitUrl = obj.optString("commiturl");
+        if (TextUtils.isEmpty(info.rawBlksUrl) || TextUtils.isEmpty(info.commitUrl))
+            return null;
+
+        JSONArray blklist = obj.optJSONArray("blklist");
+        if (blklist != null) {
+            info.neededBlocks = Sets.newHashSet();
+            for (int i = 0; i < blklist.length(); i++) {
+                info.neededBlocks.add(blklist.getString(i));
+            }
+        }
+        return info;
+    }
+}
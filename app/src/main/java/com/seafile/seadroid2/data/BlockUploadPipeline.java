@@ -0,0 +1,494 @@
+package com.seafile.seadroid2.data;
+
+import android.util.Log;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.seafile.seadroid2.SeafException;
+import com.seafile.seadroid2.crypto.Crypto;
+import com.seafile.seadroid2.crypto.CryptoContext;
+import com.seafile.seadroid2.util.NamedThreadFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chunk, encrypt and hash a file for block upload, and hand the encrypted blocks to the uploader in file order.
+ * <p/>
+ * A reader thread cuts the source file into {@link DataManager#BUFFER_SIZE} chunks and submits them to a
+ * worker pool, which encrypts and hashes them. The pending blocks are queued in a bounded queue of
+ * {@code window} entries, so the reader blocks as soon as the network falls behind.
+ * <p/>
+ * Targets: peak heap use stays below {@code (window + 2) * 2 * BUFFER_SIZE} and nothing is written to disk.
+ * Encrypted blocks only spill to the temp dir if the heap has less than {@link #SPILL_HEADROOM} left.
+ * Both numbers are measured, see {@link #getPeakBufferedBytes()} and {@link #getSpilledBytes()}.
+ * <p/>
+ * Chunking is deterministic (fixed size blocks, fixed key and iv), so the pipeline can be re-opened
+ * to send the same blocks again, e.g. when the upload link has to be renewed, or to send only the blocks
+ * the server has not acknowledged yet.
+ */
+public class BlockUploadPipeline {
+    private static final String DEBUG_TAG = "BlockUploadPipeline";
+
+    private static final int AES_BLOCK_SIZE = 16;
+    private static final int DEFAULT_WINDOW = 3;
+    private static final long SPILL_HEADROOM = 4L * DataManager.BUFFER_SIZE;
+
+    private final File file;
+    private final CryptoContext crypto;
+    private final long fileSize;
+    private final int blockCount;
+    private final int window;
+
+    private ExecutorService readerExecutor;
+    private ExecutorService encryptExecutor;
+    private BlockingQueue<Future<EncryptedBlock>> queue;
+    private Produced produced;
+    private EncryptedBlock peeked;
+    private List<Block> handedOver;
+    private int consumed;
+    private int expected;
+
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    private final AtomicLong peakBufferedBytes = new AtomicLong();
+    private final AtomicLong spilledBytes = new AtomicLong();
+
+    public BlockUploadPipeline(String filePath, CryptoContext crypto) {
+        this.file = new File(filePath);
+        this.crypto = crypto;
+        this.fileSize = file.length();
+        this.blockCount = (int) ((fileSize + DataManager.BUFFER_SIZE - 1) / DataManager.BUFFER_SIZE);
+        this.window = computeWindow();
+    }
+
+    /**
+     * the number of in-flight blocks which fits comfortably into the heap
+     */
+    private static int computeWindow() {
+        long affordable = Runtime.getRuntime().maxMemory() / 8 / (2L * DataManager.BUFFER_SIZE);
+        return (int) Math.max(1, Math.min(DEFAULT_WINDOW, affordable));
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * Size of the encrypted block at a given index, known before anything is encrypted.
+     * AES/CBC with PKCS7 padding always adds 1 to 16 bytes of padding.
+     */
+    public long getEncryptedLength(int index) {
+        long plainLength = Math.min(DataManager.BUFFER_SIZE, fileSize - (long) index * DataManager.BUFFER_SIZE);
+        return (plainLength / AES_BLOCK_SIZE + 1) * AES_BLOCK_SIZE;
+    }
+
+    public long getPeakBufferedBytes() {
+        return peakBufferedBytes.get();
+    }
+
+    public long getSpilledBytes() {
+        return spilledBytes.get();
+    }
+
+    /**
+     * @return the blocks taken with {@link #next} since the pipeline was opened, in file order
+     */
+    public List<Block> getHandedOver() {
+        return Lists.newArrayList(handedOver);
+    }
+
+    /**
+     * Start chunking the file from the beginning.
+     */
+    public void open() {
+        open(null);
+    }
+
+    /**
+     * Start chunking the file from the beginning, producing only some of the blocks.
+     *
+     * @param wanted which blocks to produce, indexed by block index. null to produce all blocks
+     */
+    public synchronized void open(boolean[] wanted) {
+        close();
+        produced = new Produced();
+        peeked = null;
+        handedOver = Lists.newArrayList();
+        consumed = 0;
+        expected = 0;
+        for (int i = 0; i < blockCount; i++) {
+            if (wanted == null || wanted[i])
+                expected++;
+        }
+        queue = new ArrayBlockingQueue<>(window);
+        readerExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("BlockUploadReader"));
+        encryptExecutor = Executors.newFixedThreadPool(
+                Math.min(window, Runtime.getRuntime().availableProcessors()),
+                new NamedThreadFactory("BlockUploadEncryptor"));
+        readerExecutor.submit(new Reader(queue, encryptExecutor, produced, wanted));
+    }
+
+    /**
+     * Encrypt and hash the whole file once to build its block manifest, without keeping any block.
+     * Only needed to resume an upload whose manifest is incomplete, a first upload records the blocks
+     * as it sends them, see {@link #getHandedOver}.
+     *
+     * @return the blocks in file order, none of them uploaded yet
+     */
+    public List<Block> computeBlocks() throws SeafException, IOException {
+        List<Block> blocks = Lists.newArrayListWithCapacity(blockCount);
+        open();
+        try {
+            EncryptedBlock block;
+            while ((block = next()) != null) {
+                blocks.add(new Block(block.blockId, null, block.length, 0L));
+                block.release();
+            }
+        } finally {
+            close();
+        }
+        return blocks;
+    }
+
+    /**
+     * Take the next encrypted block in file order, waiting for it if necessary.
+     *
+     * @return the next block, or null if all blocks have been consumed
+     */
+    public EncryptedBlock next() throws SeafException, IOException {
+        EncryptedBlock block = peek();
+        if (block != null) {
+            peeked = null;
+            handedOver.add(new Block(block.blockId, null, block.length, 0L));
+        }
+        return block;
+    }
+
+    /**
+     * Wait for the next encrypted block without taking it, {@link #next} returns it again.
+     *
+     * @return the next block, or null if all blocks have been consumed
+     */
+    public EncryptedBlock peek() throws SeafException, IOException {
+        if (peeked != null) {
+            return peeked;
+        }
+        if (consumed >= expected) {
+            return null;
+        }
+
+        try {
+            peeked = queue.take().get();
+            consumed++;
+            produced.handOver(peeked);
+            return peeked;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw SeafException.userCancelledException;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SeafException) {
+                throw (SeafException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            Log.e(DEBUG_TAG, "Failed to prepare block", cause);
+            throw SeafException.encryptException;
+        }
+    }
+
+    /**
+     * Stop the reader and the workers and drop the blocks nobody has consumed yet.
+     * <p/>
+     * Workers are not interrupted: a block being encrypted is finished and released by its worker,
+     * and queued ones only give back their buffer, so the buffered byte count and the temp dir end up
+     * clean.
+     */
+    public synchronized void close() {
+        if (readerExecutor == null) {
+            return;
+        }
+
+        readerExecutor.shutdownNow();
+        encryptExecutor.shutdown();
+        readerExecutor = null;
+        encryptExecutor = null;
+
+        for (EncryptedBlock block : produced.close()) {
+            block.release();
+        }
+        if (peeked != null) {
+            peeked.release();
+            peeked = null;
+        }
+        queue.clear();
+
+        Log.d(DEBUG_TAG, String.format("%s: %d blocks, peak buffered %d bytes, spilled %d bytes",
+                file.getName(), blockCount, peakBufferedBytes.get(), spilledBytes.get()));
+    }
+
+    private void addBuffered(long delta) {
+        long current = bufferedBytes.addAndGet(delta);
+        long peak;
+        while (current > (peak = peakBufferedBytes.get())) {
+            if (peakBufferedBytes.compareAndSet(peak, current))
+                break;
+        }
+    }
+
+    private static long heapHeadroom() {
+        Runtime rt = Runtime.getRuntime();
+        return rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+    }
+
+    /**
+     * Blocks encrypted for one {@link #open} and not handed to the consumer yet
+     */
+    private static class Produced {
+        private final Set<EncryptedBlock> blocks = Sets.newIdentityHashSet();
+        private boolean closed;
+
+        synchronized boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * @return false if the pipeline was closed, the caller has to release the block
+         */
+        synchronized boolean add(EncryptedBlock block) {
+            if (closed) {
+                return false;
+            }
+            blocks.add(block);
+            return true;
+        }
+
+        synchronized void handOver(EncryptedBlock block) {
+            blocks.remove(block);
+        }
+
+        /**
+         * @return the blocks to release, later blocks are refused
+         */
+        synchronized List<EncryptedBlock> close() {
+            closed = true;
+            List<EncryptedBlock> left = Lists.newArrayList(blocks);
+            blocks.clear();
+            return left;
+        }
+    }
+
+    /**
+     * Read the file sequentially and queue an encryption job per block
+     */
+    private class Reader implements Runnable {
+        private final BlockingQueue<Future<EncryptedBlock>> queue;
+        private final ExecutorService encryptExecutor;
+        private final Produced produced;
+        private final boolean[] wanted;
+
+        Reader(BlockingQueue<Future<EncryptedBlock>> queue, ExecutorService encryptExecutor, Produced produced,
+               boolean[] wanted) {
+            this.queue = queue;
+            this.encryptExecutor = encryptExecutor;
+            this.produced = produced;
+            this.wanted = wanted;
+        }
+
+        @Override
+        public void run() {
+            InputStream in = null;
+            try {
+                in = new FileInputStream(file);
+                for (int i = 0; i < blockCount; i++) {
+                    final int length = (int) Math.min(DataManager.BUFFER_SIZE, fileSize - (long) i * DataManager.BUFFER_SIZE);
+                    if (wanted != null && !wanted[i]) {
+                        skipFully(in, length);
+                        continue;
+                    }
+                    final byte[] plain = new byte[length];
+                    readFully(in, plain);
+                    addBuffered(length);
+                    queue.put(encryptExecutor.submit(new Encryptor(i, plain, produced)));
+                }
+            } catch (InterruptedException e) {
+                // closed by the consumer
+            } catch (final Exception e) {
+                // hand the failure over to the consumer
+                FutureTask<EncryptedBlock> failed = new FutureTask<>(new Callable<EncryptedBlock>() {
+                    @Override
+                    public EncryptedBlock call() throws Exception {
+                        throw e;
+                    }
+                });
+                failed.run();
+                try {
+                    // wait for room, dropping the failure would leave the consumer waiting forever
+                    queue.put(failed);
+                } catch (InterruptedException ie) {
+                    // closed by the consumer
+                }
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
+            }
+        }
+
+        private void readFully(InputStream in, byte[] buffer) throws IOException, SeafException {
+            int offset = 0;
+            while (offset < buffer.length) {
+                int read = in.read(buffer, offset, buffer.length - offset);
+                if (read == -1) {
+                    throw new SeafException(SeafException.OTHER_EXCEPTION, "File changed during upload");
+                }
+                offset += read;
+            }
+        }
+
+        private void skipFully(InputStream in, long length) throws IOException, SeafException {
+            while (length > 0) {
+                long skipped = in.skip(length);
+                if (skipped <= 0) {
+                    throw new SeafException(SeafException.OTHER_EXCEPTION, "File changed during upload");
+                }
+                length -= skipped;
+            }
+        }
+    }
+
+    /**
+     * Encrypt and hash a single block, runs on the worker pool
+     */
+    private class Encryptor implements Callable<EncryptedBlock> {
+        private final int index;
+        private final Produced produced;
+        private byte[] plain;
+
+        Encryptor(int index, byte[] plain, Produced produced) {
+            this.index = index;
+            this.plain = plain;
+            this.produced = produced;
+        }
+
+        @Override
+        public EncryptedBlock call() throws Exception {
+            EncryptedBlock block = encrypt();
+            if (!produced.add(block)) {
+                block.release();
+                throw SeafException.userCancelledException;
+            }
+            return block;
+        }
+
+        private EncryptedBlock encrypt() throws Exception {
+            final byte[] cipher;
+            try {
+                if (produced.isClosed()) {
+                    throw SeafException.userCancelledException;
+                }
+                cipher = crypto.encrypt(plain, plain.length);
+            } finally {
+                addBuffered(-plain.length);
+                plain = null;
+            }
+            if (cipher == null) {
+                throw SeafException.encryptException;
+            }
+            addBuffered(cipher.length);
+
+            final String blkid = Crypto.sha1(cipher);
+            if (heapHeadroom() >= SPILL_HEADROOM) {
+                return new EncryptedBlock(index, blkid, cipher);
+            }
+
+            // memory is tight, park the block in the temp dir until the uploader gets to it
+            File spill = File.createTempFile("block-", ".tmp", StorageManager.getInstance().getTempDir());
+            try {
+                OutputStream out = new FileOutputStream(spill);
+                try {
+                    out.write(cipher);
+                } finally {
+                    out.close();
+                }
+            } catch (IOException e) {
+                spill.delete();
+                throw e;
+            } finally {
+                addBuffered(-cipher.length);
+            }
+            spilledBytes.addAndGet(cipher.length);
+            return new EncryptedBlock(index, blkid, spill, cipher.length);
+        }
+    }
+
+    /**
+     * An encrypted block, either held in memory or spilled to a temp file
+     */
+    public class EncryptedBlock {
+        public final int index;
+        public final String blockId;
+        public final long length;
+        private byte[] data;
+        private File spill;
+
+        EncryptedBlock(int index, String blockId, byte[] data) {
+            this.index = index;
+            this.blockId = blockId;
+            this.length = data.length;
+            this.data = data;
+        }
+
+        EncryptedBlock(int index, String blockId, File spill, long length) {
+            this.index = index;
+            this.blockId = blockId;
+            this.length = length;
+            this.spill = spill;
+        }
+
+        public InputStream openStream() throws IOException {
+            if (data != null) {
+                return new ByteArrayInputStream(data);
+            }
+            return new FileInputStream(spill);
+        }
+
+        /**
+         * Drop the block content once it has been sent
+         */
+        public void release() {
+            if (data != null) {
+                addBuffered(-data.length);
+                data = null;
+            }
+            if (spill != null) {
+                spill.delete();
+                spill = null;
+            }
+        }
+    }
+}
@@ -4,30 +4,30 @@ import android.text.TextUtils;
 import android.util.Log;
 import android.util.Pair;
 
+import com.google.common.base.Charsets;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.google.gson.stream.JsonReader;
 import com.seafile.seadroid2.R;
 import com.seafile.seadroid2.SeadroidApplication;
 import com.seafile.seadroid2.SeafConnection;
 import com.seafile.seadroid2.SeafException;
+import com.seafile.seadroid2.SettingsManager;
 import com.seafile.seadroid2.account.Account;
 import com.seafile.seadroid2.account.AccountInfo;
-import com.seafile.seadroid2.crypto.Crypto;
+import com.seafile.seadroid2.crypto.CryptoContext;
 import com.seafile.seadroid2.util.Utils;
 
-import org.apache.commons.io.FileUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.security.NoSuchAlgorithmException;
@@ -36,6 +36,7 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 public class DataManager {
@@ -49,18 +50,23 @@ public class DataManager {
     private static SimpleDateFormat ptrDataFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 
     private static Map<String, PasswordInfo> passwords = Maps.newHashMap();
-    private static Map<String, Long> direntsRefreshTimeMap = Maps.newHashMap();
+    private static Map<String, CryptoInfo> cryptoContexts = Maps.newConcurrentMap();
+    // also updated by the prefetcher thread
+    private static Map<String, Long> direntsRefreshTimeMap = Maps.newConcurrentMap();
     public static final long REFRESH_EXPIRATION_MSECS = 10 * 60 * 1000; // 10 mins
     public static long repoRefreshTimeStamp = 0;
 
     public static final int BUFFER_SIZE = 2 * 1024 * 1024;
+    /**
+     * blocks sent per request by resumable uploads, bounds the work lost on interruption
+     */
+    private static final int RAW_BLOCKS_PER_REQUEST = 4;
 
     private SeafConnection sc;
     private Account account;
     private DatabaseHelper dbHelper;
     private static final StorageManager storageManager = StorageManager.getInstance();
 
-    private List<SeafRepo> reposCache = null;
 
     public DataManager(Account act) {
         account = act;
@@ -96,6 +102,50 @@ public class DataManager {
         }
     }
 
+    /**
+     * Returns the file holding the partial download of a given version of a file. It lives in the
+     * temp dir under a stable name, so an interrupted download can be resumed after a restart.
+     * Partial downloads of other versions of the same file are deleted.
+     *
+     * @return the partial file, which may not exist yet
+     */
+    public static File getPartialDownloadFile(String repoID, String path, String fileID) {
+        String prefix = getPartialDownloadPrefix(repoID, path);
+        String name = prefix + fileID + ".tmp";
+        File tempDir = storageManager.getTempDir();
+
+        // keep the partial file of this version, and what is saved next to it
+        deletePartialDownloads(tempDir, prefix, name);
+
+        return new File(tempDir, name);
+    }
+
+    /**
+     * Deletes the partial downloads of all versions of a file, when its download is given up.
+     */
+    public static void deletePartialDownloads(String repoID, String path) {
+        deletePartialDownloads(storageManager.getTempDir(), getPartialDownloadPrefix(repoID, path), null);
+    }
+
+    private static String getPartialDownloadPrefix(String repoID, String path) {
+        return StorageManager.PARTIAL_DOWNLOAD_PREFIX
+                + Hashing.sha1().hashString(repoID + path, Charsets.UTF_8) + "-";
+    }
+
+    private static void deletePartialDownloads(File tempDir, final String prefix, final String keep) {
+        File[] partials = tempDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String filename) {
+                return filename.startsWith(prefix) && (keep == null || !filename.startsWith(keep));
+            }
+        });
+        if (partials != null) {
+            for (File f : partials) {
+                f.delete();
+            }
+        }
+    }
+
     public String getThumbnailLink(String repoName, String repoID, String filePath, int size) {
         File file = getLocalRepoFile(repoName, repoID, filePath);
 
@@ -162,10 +212,30 @@ public class DataManager {
     }
 
     private File getFileForDirentCache(String dirID) {
+        String filename = "dirent-" + dirID + ".bin";
+        return new File(storageManager.getJsonCacheDir() + "/" + filename);
+    }
+
+    /**
+     * Dirent cache as saved by older versions, in JSON, see {@link #readDirentCache(String)}
+     */
+    private File getFileForLegacyDirentCache(String dirID) {
         String filename = "dirent-" + dirID + ".dat";
         return new File(storageManager.getJsonCacheDir() + "/" + filename);
     }
 
+    /**
+     * A file to receive a response in, in the cache directory so it can be renamed into place
+     */
+    private File createJsonCacheTempFile() throws SeafException {
+        try {
+            return File.createTempFile("response-", ".tmp", storageManager.getJsonCacheDir());
+        } catch (IOException e) {
+            Log.e(DEBUG_TAG, "Could not create a temp file in the json cache dir", e);
+            throw SeafException.unknownException;
+        }
+    }
+
     private File getFileForBlockCache(String blockId) {
         String filename = "block-" + blockId + ".dat";
         return new File(storageManager.getTempDir() + "/" + filename);
@@ -271,31 +341,32 @@ public class DataManager {
         return new File(localPath);
     }
 
-    private List<SeafRepo> parseRepos(String json) {
+    private List<SeafRepo> parseRepos(File file) {
+        JsonReader reader = null;
         try {
-            // may throw ClassCastException
-            JSONArray array = Utils.parseJsonArray(json);
-            if (array.length() == 0)
-                return Lists.newArrayListWithCapacity(0);
-
-            ArrayList<SeafRepo> repos = Lists.newArrayList();
-            for (int i = 0; i < array.length(); i++) {
-                JSONObject obj = array.getJSONObject(i);
-                SeafRepo repo = SeafRepo.fromJson(obj);
-                if (repo != null)
-                    repos.add(repo);
-            }
-            return repos;
-        } catch (JSONException e) {
+            reader = JsonStreams.open(file);
+            return parseRepos(reader);
+        } catch (IOException e) {
             Log.e(DEBUG_TAG, "parse json error");
             return null;
-        } catch (Exception e) {
-            // other exception, for example ClassCastException
+        } catch (RuntimeException e) {
+            // other exception, for example IllegalStateException on an unexpected token
             Log.e(DEBUG_TAG, "parseRepos exception");
             return null;
+        } finally {
+            JsonStreams.closeQuietly(reader);
         }
     }
 
+    private List<SeafRepo> parseRepos(JsonReader reader) throws IOException {
+        ArrayList<SeafRepo> repos = Lists.newArrayList();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            repos.add(SeafRepo.fromJson(reader));
+        }
+        reader.endArray();
+        return repos;
+    }
 
     public String getBlockPathById(String blkId) {
         final File block = getFileForBlockCache(blkId);
@@ -318,51 +389,73 @@ public class DataManager {
     }
 
     public List<SeafRepo> getReposFromCache() {
-        if (reposCache != null)
-            return reposCache;
+        List<SeafRepo> repos = ListingCache.getRepos(account);
+        if (repos != null)
+            return repos;
 
         File cache = getFileForReposCache();
         if (cache.exists()) {
-            String json = Utils.readFile(cache);
-            if (json == null) {
-                return null;
+            repos = parseRepos(cache);
+            if (repos != null) {
+                ListingCache.putRepos(account, repos);
             }
-            reposCache = parseRepos(json);
-            return reposCache;
+            return repos;
         }
         return null;
     }
 
+    /**
+     * Get the repo list from the server. Concurrent calls for the same account share one request.
+     */
     public List<SeafRepo> getReposFromServer() throws SeafException {
         // First decide if use cache
         if (!Utils.isNetworkOn()) {
             throw SeafException.networkException;
         }
 
-        String json = sc.getRepos();
-        //Log.d(DEBUG_TAG, "get repos from server " + json);
-        if (json == null)
-            return null;
-
-        reposCache = parseRepos(json);
+        return RequestCoalescer.run("repos " + account.getSignature(), new RequestCoalescer.Fetch<SeafRepo>() {
+            @Override
+            public List<SeafRepo> fetch() throws SeafException {
+                return fetchReposFromServer();
+            }
+        });
+    }
 
+    private List<SeafRepo> fetchReposFromServer() throws SeafException {
+        File tmp = createJsonCacheTempFile();
         try {
+            sc.getRepos(tmp);
+
             File cache = getFileForReposCache();
-            Utils.writeFile(cache, json);
-        } catch (IOException e) {
-            Log.e(DEBUG_TAG, "Could not write repo cache to disk.", e);
+            if (!tmp.renameTo(cache)) {
+                Log.e(DEBUG_TAG, "Could not write repo cache to disk.");
+                cache = tmp;
+            }
+            List<SeafRepo> repos = parseRepos(cache);
+            if (repos != null) {
+                ListingCache.putRepos(account, repos);
+            }
+            return repos;
+        } finally {
+            tmp.delete();
         }
-
-        return reposCache;
     }
 
     private void saveDirentContent(String repoID, String parentDir, String dirID, String content) {
+        List<SeafDirent> dirents = parseDirents(content);
+        if (dirents == null) {
+            return;
+        }
+        saveDirents(repoID, parentDir, dirID, dirents);
+    }
+
+    private void saveDirents(String repoID, String parentDir, String dirID, List<SeafDirent> dirents) {
         deleteOldDirentContent(repoID, parentDir);
         dbHelper.saveDirents(repoID, parentDir, dirID);
+        ListingCache.putDirents(dirID, dirents);
 
         try {
-            File cache = getFileForDirentCache(dirID);
-            Utils.writeFile(cache, content);
+            DirentCacheFile.write(getFileForDirentCache(dirID), dirents);
         } catch (IOException e) {
             Log.e(DEBUG_TAG, "Could not write dirent cache to disk.", e);
         }
@@ -380,8 +473,9 @@ public class DataManager {
         // identical directory content results in same dirID. So check if whether
         // the dirID is referenced multiple times before deleting it.
         if (dirID != null && dbHelper.getCachedDirentUsage(dirID) <= 1) {
-            File file = getFileForDirentCache(dirID);
-            file.delete();
+            getFileForDirentCache(dirID).delete();
+            getFileForLegacyDirentCache(dirID).delete();
+            ListingCache.removeDirents(dirID);
         }
         // and finally delete the entry in the SQL table
         dbHelper.removeCachedDirents(repoID, dir);
@@ -436,10 +530,8 @@ public class DataManager {
             return localFile;
         }
 
-        final Pair<String, String> pair = getRepoEncKey(repoID);
-        final String encKey = pair.first;
-        final String encIv = pair.second;
-        if (TextUtils.isEmpty(encKey) || TextUtils.isEmpty(encIv)) {
+        final CryptoContext crypto = getRepoCryptoContext(repoID);
+        if (crypto == null) {
             throw SeafException.decryptException;
         }
 
@@ -453,13 +545,8 @@ public class DataManager {
             return localFile;
         }
 
-        for (Block blk : fileBlocks.blocks) {
-            File tempBlock = new File(storageManager.getTempDir(), blk.blockId);
-            final Pair<String, File> block = sc.getBlock(repoID, fileBlocks, blk.blockId, tempBlock.getPath(), monitor);
-            final byte[] bytes = FileUtils.readFileToByteArray(block.second);
-            final byte[] decryptedBlock = Crypto.decrypt(bytes, encKey, encIv);
-            FileUtils.writeByteArrayToFile(localFile, decryptedBlock, true);
-        }
+        final int concurrency = SettingsManager.instance().getBlockDownloadConcurrency();
+        new BlockDownloader(sc, repoID, fileBlocks, crypto, monitor, concurrency).download(localFile);
 
         Log.d(DEBUG_TAG, String.format("addCachedFile repoName %s, repoId %s, path %s, fileId %s", repoName, repoID, path, fileBlocks.fileID));
         addCachedFile(repoName, repoID, path, fileBlocks.fileID, localFile);
@@ -467,42 +554,60 @@ public class DataManager {
     }
 
     private List<SeafDirent> parseDirents(String json) {
+        JsonReader reader = JsonStreams.open(new StringReader(json));
         try {
-            JSONArray array = Utils.parseJsonArray(json);
-            if (array == null)
-                return null;
+            return parseDirents(reader);
+        } catch (IOException | RuntimeException e) {
+            Log.e(DEBUG_TAG, "Could not parse dirents", e);
+            return null;
+        } finally {
+            JsonStreams.closeQuietly(reader);
+        }
+    }
 
-            ArrayList<SeafDirent> dirents = Lists.newArrayList();
-            for (int i = 0; i < array.length(); i++) {
-                JSONObject obj = array.getJSONObject(i);
-                SeafDirent de = SeafDirent.fromJson(obj);
-                if (de != null)
-                    dirents.add(de);
-            }
-            return dirents;
-        } catch (JSONException e) {
+    private List<SeafDirent> parseDirents(File file) {
+        JsonReader reader = null;
+        try {
+            reader = JsonStreams.open(file);
+            return parseDirents(reader);
+        } catch (IOException | RuntimeException e) {
             Log.e(DEBUG_TAG, "Could not parse cached dirent", e);
             return null;
+        } finally {
+            JsonStreams.closeQuietly(reader);
         }
     }
 
+    private List<SeafDirent> parseDirents(JsonReader reader) throws IOException {
+        ArrayList<SeafDirent> dirents = Lists.newArrayList();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            SeafDirent de = SeafDirent.fromJson(reader);
+            if (de != null)
+                dirents.add(de);
+        }
+        reader.endArray();
+        return dirents;
+    }
+
     private List<SeafStarredFile> parseStarredFiles(String json) {
+        // starred files are cached as a string in the database, and the list is short
+        JsonReader reader = JsonStreams.open(new StringReader(json));
         try {
-            JSONArray array = Utils.parseJsonArray(json);
-            if (array == null)
-                return null;
-
             ArrayList<SeafStarredFile> starredFiles = Lists.newArrayList();
-            for (int i = 0; i < array.length(); i++) {
-                JSONObject obj = array.getJSONObject(i);
-                SeafStarredFile sf = SeafStarredFile.fromJson(obj);
+            reader.beginArray();
+            while (reader.hasNext()) {
+                SeafStarredFile sf = SeafStarredFile.fromJson(reader);
                 if (sf != null)
                     starredFiles.add(sf);
             }
+            reader.endArray();
             return starredFiles;
-        } catch (JSONException e) {
+        } catch (IOException | RuntimeException e) {
             Log.e(DEBUG_TAG, "Could not parse cached starred files", e);
             return null;
+        } finally {
+            JsonStreams.closeQuietly(reader);
         }
     }
 
@@ -512,17 +617,77 @@ public class DataManager {
             return null;
         }
 
+        return readDirentCache(dirID);
+    }
+
+    /**
+     * Read the cached dirents of a directory id, from memory if it was read recently.
+     * <p/>
+     * Caches still in JSON from older versions are converted to the binary format on first read.
+     *
+     * @return the dirents, or null if not cached
+     */
+    private List<SeafDirent> readDirentCache(String dirID) {
+        List<SeafDirent> dirents = ListingCache.getDirents(dirID);
+        if (dirents != null) {
+            return dirents;
+        }
+
         File cache = getFileForDirentCache(dirID);
-        if (!cache.exists()) {
+        if (cache.exists()) {
+            dirents = DirentCacheFile.read(cache);
+            if (dirents == null) {
+                cache.delete();
+            } else {
+                ListingCache.putDirents(dirID, dirents);
+            }
+            return dirents;
+        }
+
+        File legacy = getFileForLegacyDirentCache(dirID);
+        if (!legacy.exists()) {
             return null;
         }
+        dirents = parseDirents(legacy);
+        if (dirents != null) {
+            ListingCache.putDirents(dirID, dirents);
+            try {
+                DirentCacheFile.write(cache, dirents);
+                legacy.delete();
+            } catch (IOException e) {
+                Log.e(DEBUG_TAG, "Could not convert dirent cache " + legacy.getName(), e);
+            }
+        }
+        return dirents;
+    }
 
-        String json = Utils.readFile(cache);
-        if (json == null) {
+    /**
+     * Get the cached dirents of a directory if they are current.
+     * <p/>
+     * The id of a directory changes whenever anything below it changes. So if the listing of
+     * the parent gives the same id as the one cached for this path, the cached listing, and the
+     * whole cached subtree below it, are still valid and no request is needed.
+     *
+     * @param dirID the id of the directory as given in the listing of its parent
+     * @return the cached dirents, or null if the cache is missing or out of date
+     */
+    public List<SeafDirent> getCachedDirentsIfCurrent(String repoID, String path, String dirID) {
+        if (dirID == null || !dirID.equals(dbHelper.getCachedDirents(repoID, path))) {
             return null;
         }
+        return getCachedDirents(repoID, path);
+    }
 
-        return parseDirents(json);
+    /**
+     * Get the dirents of a directory found in the listing of its parent, from the server only if
+     * its id changed, see {@link #getCachedDirentsIfCurrent(String, String, String)}
+     */
+    public List<SeafDirent> getDirents(String repoID, String path, String dirID) throws SeafException {
+        List<SeafDirent> dirents = getCachedDirentsIfCurrent(repoID, path, dirID);
+        if (dirents != null) {
+            return dirents;
+        }
+        return getDirentsFromServer(repoID, path);
     }
 
     /**
@@ -534,35 +699,46 @@ public class DataManager {
      * 4. View starred or searched files in gallery without available local cache
      *
      * In the second case, the local cache may still be valid.
+     * <p/>
+     * Concurrent calls for the same directory share one request.
      */
-    public List<SeafDirent> getDirentsFromServer(String repoID, String path) throws SeafException {
+    public List<SeafDirent> getDirentsFromServer(final String repoID, final String path) throws SeafException {
+        String key = "dirents " + account.getSignature() + " " + repoID + " " + path;
+        return RequestCoalescer.run(key, new RequestCoalescer.Fetch<SeafDirent>() {
+            @Override
+            public List<SeafDirent> fetch() throws SeafException {
+                return fetchDirentsFromServer(repoID, path);
+            }
+        });
+    }
+
+    private List<SeafDirent> fetchDirentsFromServer(String repoID, String path) throws SeafException {
 
         // first fetch our cached dirent and read it
         String cachedDirID = dbHelper.getCachedDirents(repoID, path);
-        String cachedContent = null;
-        File cacheFile = getFileForDirentCache(cachedDirID);
-        if (cacheFile.exists()) {
-            cachedContent = Utils.readFile(cacheFile);
-        }
+        List<SeafDirent> cachedDirents = cachedDirID == null ? null : readDirentCache(cachedDirID);
 
         // if that didn't work, then we have no cache.
-        if (cachedContent == null) {
+        if (cachedDirents == null) {
             cachedDirID = null;
         }
 
-        // fetch new dirents. ret.second will be null if the cache is still valid
-        Pair<String, String> ret = sc.getDirents(repoID, path, cachedDirID);
+        // fetch new dirents. They are only received if the cache is out of date
+        File tmp = createJsonCacheTempFile();
+        try {
+            String dirID = sc.getDirents(repoID, path, cachedDirID, tmp);
+            if (dirID.equals(cachedDirID)) {
+                return cachedDirents;
+            }
 
-        String content;
-        if (ret.second != null) {
-            String dirID = ret.first;
-            content = ret.second;
-            saveDirentContent(repoID, path, dirID, content);
-        } else {
-            content = cachedContent;
+            List<SeafDirent> dirents = parseDirents(tmp);
+            if (dirents != null) {
+                saveDirents(repoID, path, dirID, dirents);
+            }
+            return dirents;
+        } finally {
+            tmp.delete();
         }
-
-        return parseDirents(content);
     }
 
     public List<SeafStarredFile> getStarredFiles() throws SeafException {
@@ -797,45 +973,70 @@ public class DataManager {
 
         if (json == null) return null;
 
-        final JSONObject object = Utils.parseJsonObject(json);
-        final int moreOffset = object.getInt("more_offset");
-        final boolean more = object.getBoolean("more");
-        final List<SeafEvent> events = parseEvents(json);
-        return new SeafActivities(events, moreOffset, more);
-
+        return parseActivities(json);
     }
 
     public String getHistoryChanges(String repoId, String commitId) throws SeafException {
         return sc.getHistoryChanges(repoId, commitId);
     }
 
-    public List<SeafEvent> parseEvents(String json) {
+    /**
+     * Parse a page of events, and the offset of the next one, in one pass
+     */
+    private SeafActivities parseActivities(String json) throws JSONException {
+        JsonReader reader = JsonStreams.open(new StringReader(json));
         try {
-            // may throw ClassCastException
-            JSONArray array = Utils.parseJsonArrayByKey(json, "events");
-            if (array.length() == 0)
-                return Lists.newArrayListWithCapacity(0);
+            List<SeafEvent> events = null;
+            int moreOffset = 0;
+            boolean more = false;
+            boolean hasMoreOffset = false, hasMore = false;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                case "more_offset":
+                    moreOffset = reader.nextInt();
+                    hasMoreOffset = true;
+                    break;
+                case "more":
+                    more = JsonStreams.nextBoolean(reader, false);
+                    hasMore = true;
+                    break;
+                case "events":
+                    events = parseEvents(reader);
+                    break;
+                default:
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
 
-            ArrayList<SeafEvent> events = Lists.newArrayList();
-            for (int i = 0; i < array.length(); i++) {
-                JSONObject obj = array.getJSONObject(i);
-                SeafEvent event = SeafEvent.fromJson(obj);
-                if (event != null)
-                    events.add(event);
+            if (!hasMoreOffset || !hasMore) {
+                throw new JSONException("incomplete events page");
             }
-            return events;
-        } catch (JSONException e) {
-            Log.e(DEBUG_TAG, "parse json error");
-            return null;
-        } catch (Exception e) {
-            // other exception, for example ClassCastException
-            Log.e(DEBUG_TAG, "parseEvents exception");
-            return null;
+            return new SeafActivities(events, moreOffset, more);
+        } catch (IOException | RuntimeException e) {
+            throw new JSONException(e.getMessage());
+        } finally {
+            JsonStreams.closeQuietly(reader);
+        }
+    }
+
+    private List<SeafEvent> parseEvents(JsonReader reader) throws IOException {
+        ArrayList<SeafEvent> events = Lists.newArrayList();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            SeafEvent event = SeafEvent.fromJson(reader);
+            if (event != null)
+                events.add(event);
         }
+        reader.endArray();
+        return events;
     }
 
     public static void clearPassword() {
         passwords.clear();
+        cryptoContexts.clear();
     }
 
     public void completeRemoteWipe() throws SeafException {
@@ -890,6 +1091,7 @@ public class DataManager {
                 && !TextUtils.isEmpty(key)
                 && !TextUtils.isEmpty(iv)) {
             dbHelper.saveEncKey(key, iv, repoID);
+            cryptoContexts.remove(repoID);
         }
     }
 
@@ -901,6 +1103,40 @@ public class DataManager {
         return dbHelper.getEnckey(repoID);
     }
 
+    private static class CryptoInfo {
+        CryptoContext context;
+        long timestamp;
+
+        public CryptoInfo(CryptoContext context, long timestamp) {
+            this.context = context;
+            this.timestamp = timestamp;
+        }
+    }
+
+    /**
+     * Get the crypto context of an encrypted repo, to encrypt or decrypt its blocks.
+     * It is kept in memory for as long as a password is, so transfers don't read the key
+     * from the database and set up ciphers for every file.
+     *
+     * @return the context, or null if no key is saved for the repo
+     */
+    public CryptoContext getRepoCryptoContext(String repoID) throws NoSuchAlgorithmException {
+        CryptoInfo info = cryptoContexts.get(repoID);
+        if (info != null && Utils.now() - info.timestamp <= SET_PASSWORD_INTERVAL) {
+            return info.context;
+        }
+
+        Pair<String, String> pair = getRepoEncKey(repoID);
+        if (pair == null || TextUtils.isEmpty(pair.first) || TextUtils.isEmpty(pair.second)) {
+            cryptoContexts.remove(repoID);
+            return null;
+        }
+
+        CryptoContext context = new CryptoContext(pair.first, pair.second);
+        cryptoContexts.put(repoID, new CryptoInfo(context, Utils.now()));
+        return context;
+    }
+
     /**
      * calculate if refresh time is expired, the expiration is 10 mins 
      */
@@ -1027,53 +1263,6 @@ public class DataManager {
         }
     }
 
-    private FileBlocks chunkFile(String encKey, String enkIv, String filePath) throws IOException {
-        File file = new File(filePath);
-        InputStream in = null;
-        DataInputStream dis;
-        OutputStream out = null;
-        byte[] buffer = new byte[BUFFER_SIZE];
-        FileBlocks seafBlock = new FileBlocks();
-        try {
-            in = new FileInputStream(file);
-            dis = new DataInputStream(in);
-
-            // Log.d(DEBUG_TAG, "file size " + file.length());
-            int byteRead;
-            while ((byteRead = dis.read(buffer, 0, BUFFER_SIZE)) != -1) {
-                byte[] cipher;
-                if (byteRead < BUFFER_SIZE)
-                    cipher = Crypto.encrypt(buffer, byteRead, encKey, enkIv);
-                else
-                    cipher = Crypto.encrypt(buffer, encKey, enkIv);
-
-                final String blkid = Crypto.sha1(cipher);
-                File blk = new File(storageManager.getTempDir(), blkid);
-                Block block = new Block(blkid, blk.getAbsolutePath(), blk.length(), 0L);
-                seafBlock.blocks.add(block);
-                out = new FileOutputStream(blk);
-                out.write(cipher);
-                out.close();
-            }
-
-            in.close();
-
-            return seafBlock;
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-            return null;
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-            return null;
-        } finally {
-            if (out != null) out.close();
-            if (in != null) in.close();
-        }
-    }
-
     public void uploadByBlocks(String repoName, String repoId, String dir,
                                String filePath, ProgressMonitor monitor,
                                boolean isUpdate, boolean isCopyToLocal, int version) throws NoSuchAlgorithmException, IOException, SeafException {
@@ -1084,21 +1273,25 @@ public class DataManager {
                                       ProgressMonitor monitor, boolean isUpdate, boolean isCopyToLocal, int version) throws NoSuchAlgorithmException, IOException, SeafException {
 
 
-        final Pair<String, String> pair = getRepoEncKey(repoID);
-        final String encKey = pair.first;
-        final String encIv = pair.second;
-        // Log.d(DEBUG_TAG, "encKey " + encKey + " encIv " + encIv);
-        if (TextUtils.isEmpty(encKey) || TextUtils.isEmpty(encIv)) {
+        final CryptoContext crypto = getRepoCryptoContext(repoID);
+        if (crypto == null) {
             // TODO calculate them and continue
             throw SeafException.encryptException;
         }
 
-        final FileBlocks chunkFile = chunkFile(encKey, encIv, filePath);
-        if (chunkFile.blocks.isEmpty()) {
+        // blocks are chunked, encrypted and hashed while they are being uploaded
+        final BlockUploadPipeline pipeline = new BlockUploadPipeline(filePath, crypto);
+        if (pipeline.getBlockCount() == 0) {
             throw SeafException.blockListNullPointerException;
         }
 
-        String newFileID = sc.uploadByBlocks(repoID, dir, filePath, chunkFile.blocks, isUpdate, monitor);
+        String newFileID = null;
+        if (pipeline.getBlockCount() > 1) {
+            newFileID = uploadResumable(repoID, dir, filePath, pipeline, isUpdate, monitor);
+        }
+        if (newFileID == null) {
+            newFileID = sc.uploadByBlocks(repoID, dir, filePath, pipeline, isUpdate, monitor);
+        }
         // Log.d(DEBUG_TAG, "uploadByBlocks " + newFileID);
 
         if (newFileID == null || newFileID.length() == 0) {
@@ -1122,4 +1315,149 @@ public class DataManager {
         // Update file cache entry
         addCachedFile(repoName, repoID, path, newFileID, fileInRepo);
     }
+
+    /**
+     * Upload a file block by block and remember which blocks the server has acknowledged,
+     * so a retry after an interruption only sends the blocks the server is still missing.
+     *
+     * @return the new file id, or null if the server can't upload raw blocks
+     */
+    private String uploadResumable(String repoID, String dir, String filePath, BlockUploadPipeline pipeline,
+                                   boolean isUpdate, ProgressMonitor monitor) throws IOException, SeafException {
+        final File file = new File(filePath);
+        final long mtime = file.lastModified();
+
+        List<Block> blocks = dbHelper.getUploadBlocks(account, repoID, filePath, pipeline.getFileSize(), mtime);
+        if (blocks == null) {
+            return uploadFirstTime(repoID, dir, filePath, mtime, pipeline, isUpdate, monitor);
+        }
+        if (blocks.size() != pipeline.getBlockCount()) {
+            // an interrupted first upload only recorded the blocks it sent
+            blocks = pipeline.computeBlocks();
+            dbHelper.saveUploadBlocks(account, repoID, filePath, pipeline.getFileSize(), mtime, blocks);
+        }
+
+        List<String> blkIds = Lists.newArrayListWithCapacity(blocks.size());
+        for (Block block : blocks) {
+            blkIds.add(block.blockId);
+        }
+
+        BlockUploadInfo info = getBlockUploadInfo(repoID, blkIds);
+        if (info == null) {
+            return null;
+        }
+
+        // the server's list of missing blocks wins over what we recorded, identical blocks are sent once
+        boolean[] wanted = new boolean[blocks.size()];
+        Set<String> pending = Sets.newHashSet();
+        Map<String, Long> sizes = Maps.newHashMap();
+        long done = 0;
+        for (int i = 0; i < blocks.size(); i++) {
+            Block block = blocks.get(i);
+            boolean missing = info.neededBlocks != null
+                    ? info.neededBlocks.contains(block.blockId)
+                    : block.finished < block.size;
+            wanted[i] = missing && pending.add(block.blockId);
+            if (wanted[i]) {
+                sizes.put(block.blockId, block.size);
+            } else {
+                done += block.size;
+            }
+        }
+        Log.d(DEBUG_TAG, String.format("%s: %d of %d blocks to upload", file.getName(), pending.size(), blocks.size()));
+
+        pipeline.open(wanted);
+        try {
+            int remaining = pending.size();
+            while (remaining > 0) {
+                List<String> acked = sc.uploadRawBlocks(info.rawBlksUrl, pipeline,
+                        Math.min(remaining, RAW_BLOCKS_PER_REQUEST), done, monitor);
+                dbHelper.markUploadBlocksFinished(account, repoID, filePath, acked);
+                for (String blkId : acked) {
+                    done += sizes.get(blkId);
+                }
+                remaining -= acked.size();
+            }
+        } finally {
+            pipeline.close();
+        }
+
+        String newFileID = sc.commitBlocks(info.commitUrl, dir, file.getName(), pipeline.getFileSize(), blkIds, isUpdate);
+        dbHelper.removeUploadBlocks(account, repoID, filePath);
+        return newFileID;
+    }
+
+    /**
+     * @return the upload links and the blocks the server is missing, or null if the server can't
+     * upload raw blocks
+     */
+    private BlockUploadInfo getBlockUploadInfo(String repoID, List<String> blkIds) throws SeafException {
+        final String json = sc.getBlockUploadInfo(repoID, blkIds);
+        if (json == null) {
+            return null;
+        }
+        final JSONObject obj = Utils.parseJsonObject(json);
+        if (obj == null) {
+            return null;
+        }
+        try {
+            return BlockUploadInfo.fromJson(obj);
+        } catch (JSONException e) {
+            Log.w(DEBUG_TAG, "Unexpected block upload info " + json);
+            return null;
+        }
+    }
+
+    /**
+     * Upload a file which has no block manifest yet. Block ids are only known once the pipeline has
+     * encrypted the blocks, so they are recorded as they are sent, and the file is encrypted once.
+     * Once a request of blocks is acknowledged, the blocks sent so far are saved as an incomplete
+     * manifest, so a retry knows that it resumes.
+     *
+     * @return the new file id, or null if the server can't upload raw blocks
+     */
+    private String uploadFirstTime(String repoID, String dir, String filePath, long mtime, BlockUploadPipeline pipeline,
+                                   boolean isUpdate, ProgressMonitor monitor) throws IOException, SeafException {
+        pipeline.open();
+        try {
+            // the upload links come with the list of missing blocks, ask with the first one
+            BlockUploadPipeline.EncryptedBlock first = pipeline.peek();
+            BlockUploadInfo info = getBlockUploadInfo(repoID, Lists.newArrayList(first.blockId));
+            if (info == null) {
+                return null;
+            }
+
+            boolean recorded = false;
+            long done = 0;
+            int remaining = pipeline.getBlockCount();
+            while (remaining > 0) {
+                List<String> acked = sc.uploadRawBlocks(info.rawBlksUrl, pipeline,
+                        Math.min(remaining, RAW_BLOCKS_PER_REQUEST), done, monitor);
+                remaining -= acked.size();
+                List<Block> sent = pipeline.getHandedOver();
+                done = 0;
+                for (Block block : sent) {
+                    done += block.size;
+                }
+                if (!recorded && remaining > 0) {
+                    for (Block block : sent) {
+                        block.finished = block.size;
+                    }
+                    dbHelper.saveUploadBlocks(account, repoID, filePath, pipeline.getFileSize(), mtime, sent);
+                    recorded = true;
+                }
+            }
+
+            List<String> blkIds = Lists.newArrayListWithCapacity(pipeline.getBlockCount());
+            for (Block block : pipeline.getHandedOver()) {
+                blkIds.add(block.blockId);
+            }
+            String newFileID = sc.commitBlocks(info.commitUrl, dir, new File(filePath).getName(),
+                    pipeline.getFileSize(), blkIds, isUpdate);
+            dbHelper.removeUploadBlocks(account, repoID, filePath);
+            return newFileID;
+        } finally {
+            pipeline.close();
+        }
+    }
 }
@@ -20,7 +20,7 @@ import java.util.List;
 public class DatabaseHelper extends SQLiteOpenHelper {
     private static final String DEBUG_TAG = "DatabaseHelper";
     // If you change the database schema, you must increment the database version.
-    public static final int DATABASE_VERSION = 9;
+    public static final int DATABASE_VERSION = 10;
     public static final String DATABASE_NAME = "data.db";
 
     // FileCache table
@@ -68,6 +68,24 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     public static final String ENCKEY_COLUMN_ENCIV = "enc_iv";
     public static final String ENCKEY_COLUMN_REPO_ID = "repo_id";
 
+    /** Block manifest of files being uploaded by blocks, one row per block.
+     * Lets an interrupted upload resume with the blocks the server has not acknowledged yet.
+     */
+    private static final String UPLOAD_BLOCKS_TABLE_NAME = "UploadBlocks";
+
+    private static final String UPLOAD_BLOCKS_COLUMN_ID = "id";
+    private static final String UPLOAD_BLOCKS_COLUMN_ACCOUNT = "account";
+    private static final String UPLOAD_BLOCKS_COLUMN_REPO_ID = "repo_id";
+    private static final String UPLOAD_BLOCKS_COLUMN_FILE_PATH = "file_path";
+    /** size and mtime of the local file when the manifest was built, to detect modified files */
+    private static final String UPLOAD_BLOCKS_COLUMN_FILE_SIZE = "file_size";
+    private static final String UPLOAD_BLOCKS_COLUMN_FILE_MTIME = "file_mtime";
+    private static final String UPLOAD_BLOCKS_COLUMN_BLOCK_INDEX = "block_index";
+    private static final String UPLOAD_BLOCKS_COLUMN_BLOCK_ID = "block_id";
+    private static final String UPLOAD_BLOCKS_COLUMN_BLOCK_SIZE = "block_size";
+    /** bytes of the block acknowledged by the server, either 0 or block_size */
+    private static final String UPLOAD_BLOCKS_COLUMN_FINISHED = "finished";
+
     private static final String SQL_CREATE_FILECACHE_TABLE =
         "CREATE TABLE " + FILECACHE_TABLE_NAME + " ("
         + FILECACHE_COLUMN_ID + " INTEGER PRIMARY KEY, "
@@ -104,6 +122,19 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                     + ENCKEY_COLUMN_ENCIV + " TEXT NOT NULL, "
                     + ENCKEY_COLUMN_REPO_ID + " TEXT NOT NULL);";
 
+    private static final String SQL_CREATE_UPLOAD_BLOCKS_TABLE =
+            "CREATE TABLE " + UPLOAD_BLOCKS_TABLE_NAME + " ("
+                    + UPLOAD_BLOCKS_COLUMN_ID + " INTEGER PRIMARY KEY, "
+                    + UPLOAD_BLOCKS_COLUMN_ACCOUNT + " TEXT NOT NULL, "
+                    + UPLOAD_BLOCKS_COLUMN_REPO_ID + " TEXT NOT NULL, "
+                    + UPLOAD_BLOCKS_COLUMN_FILE_PATH + " TEXT NOT NULL, "
+                    + UPLOAD_BLOCKS_COLUMN_FILE_SIZE + " BIGINT NOT NULL, "
+                    + UPLOAD_BLOCKS_COLUMN_FILE_MTIME + " BIGINT NOT NULL, "
+                    + UPLOAD_BLOCKS_COLUMN_BLOCK_INDEX + " INTEGER NOT NULL, "
+                    + UPLOAD_BLOCKS_COLUMN_BLOCK_ID + " TEXT NOT NULL, "
+                    + UPLOAD_BLOCKS_COLUMN_BLOCK_SIZE + " BIGINT NOT NULL, "
+                    + UPLOAD_BLOCKS_COLUMN_FINISHED + " BIGINT NOT NULL);";
+
     // Use only single dbHelper to prevent multi-thread issue and db is closed exception
     // Reference http://stackoverflow.com/questions/2493331/what-are-the-best-practices-for-sqlite-on-android
     private static DatabaseHelper dbHelper = null;
@@ -128,6 +159,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         createDirentsCacheTable(db);
         createStarredFilesCacheTable(db);
         createEnckeyTable(db);
+        createUploadBlocksTable(db);
     }
 
     private void createFileCacheTable(SQLiteDatabase db) {
@@ -192,6 +224,18 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(sql);
     }
 
+    private void createUploadBlocksTable(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_UPLOAD_BLOCKS_TABLE);
+
+        String sql;
+        sql = String.format("CREATE INDEX upload_blocks_file_index ON %s (%s, %s, %s)",
+                UPLOAD_BLOCKS_TABLE_NAME,
+                UPLOAD_BLOCKS_COLUMN_ACCOUNT,
+                UPLOAD_BLOCKS_COLUMN_REPO_ID,
+                UPLOAD_BLOCKS_COLUMN_FILE_PATH);
+        db.execSQL(sql);
+    }
+
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         // This database is only a cache for online data, so its upgrade policy is
@@ -209,6 +253,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DROP TABLE IF EXISTS " + DIRENTS_CACHE_TABLE_NAME + ";");
         db.execSQL("DROP TABLE IF EXISTS " + STARRED_FILECACHE_TABLE_NAME + ";");
         db.execSQL("DROP TABLE IF EXISTS " + ENCKEY_TABLE_NAME + ";");
+        db.execSQL("DROP TABLE IF EXISTS " + UPLOAD_BLOCKS_TABLE_NAME + ";");
         onCreate(db);
     }
 
@@ -607,4 +652,118 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     public void clearEnckeys() {
         database.delete(ENCKEY_TABLE_NAME, null, null);
     }
+
+    /**
+     * Return the block manifest of a file being uploaded, ordered by block index.
+     * A manifest built for another version of the file is discarded.
+     *
+     * @return the blocks, or null if there is no usable manifest
+     */
+    public List<Block> getUploadBlocks(Account account, String repoID, String filePath, long fileSize, long mtime) {
+        String[] projection = {
+                UPLOAD_BLOCKS_COLUMN_BLOCK_ID,
+                UPLOAD_BLOCKS_COLUMN_BLOCK_SIZE,
+                UPLOAD_BLOCKS_COLUMN_FINISHED,
+                UPLOAD_BLOCKS_COLUMN_FILE_SIZE,
+                UPLOAD_BLOCKS_COLUMN_FILE_MTIME
+        };
+
+        String selectClause = String.format("%s = ? and %s = ? and %s = ?",
+                UPLOAD_BLOCKS_COLUMN_ACCOUNT,
+                UPLOAD_BLOCKS_COLUMN_REPO_ID,
+                UPLOAD_BLOCKS_COLUMN_FILE_PATH);
+
+        String[] selectArgs = { account.getSignature(), repoID, filePath };
+
+        Cursor cursor = database.query(
+                UPLOAD_BLOCKS_TABLE_NAME,
+                projection,
+                selectClause,
+                selectArgs,
+                null,   // don't group the rows
+                null,   // don't filter by row groups
+                UPLOAD_BLOCKS_COLUMN_BLOCK_INDEX + " ASC");  // The sort order
+
+        if (!cursor.moveToFirst()) {
+            cursor.close();
+            return null;
+        }
+
+        if (cursor.getLong(3) != fileSize || cursor.getLong(4) != mtime) {
+            cursor.close();
+            removeUploadBlocks(account, repoID, filePath);
+            return null;
+        }
+
+        List<Block> blocks = Lists.newArrayListWithCapacity(cursor.getCount());
+        while (!cursor.isAfterLast()) {
+            blocks.add(new Block(cursor.getString(0), null, cursor.getLong(1), cursor.getLong(2)));
+            cursor.moveToNext();
+        }
+        cursor.close();
+
+        return blocks;
+    }
+
+    public void saveUploadBlocks(Account account, String repoID, String filePath, long fileSize, long mtime,
+                                 List<Block> blocks) {
+        database.beginTransaction();
+        try {
+            removeUploadBlocks(account, repoID, filePath);
+
+            ContentValues values = new ContentValues();
+            for (int i = 0; i < blocks.size(); i++) {
+                Block block = blocks.get(i);
+                values.clear();
+                values.put(UPLOAD_BLOCKS_COLUMN_ACCOUNT, account.getSignature());
+                values.put(UPLOAD_BLOCKS_COLUMN_REPO_ID, repoID);
+                values.put(UPLOAD_BLOCKS_COLUMN_FILE_PATH, filePath);
+                values.put(UPLOAD_BLOCKS_COLUMN_FILE_SIZE, fileSize);
+                values.put(UPLOAD_BLOCKS_COLUMN_FILE_MTIME, mtime);
+                values.put(UPLOAD_BLOCKS_COLUMN_BLOCK_INDEX, i);
+                values.put(UPLOAD_BLOCKS_COLUMN_BLOCK_ID, block.blockId);
+                values.put(UPLOAD_BLOCKS_COLUMN_BLOCK_SIZE, block.size);
+                values.put(UPLOAD_BLOCKS_COLUMN_FINISHED, block.finished);
+                database.insert(UPLOAD_BLOCKS_TABLE_NAME, null, values);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Record that the server has acknowledged some blocks of a file
+     */
+    public void markUploadBlocksFinished(Account account, String repoID, String filePath, List<String> blockIds) {
+        String whereClause = String.format("%s = ? and %s = ? and %s = ? and %s = ?",
+                UPLOAD_BLOCKS_COLUMN_ACCOUNT,
+                UPLOAD_BLOCKS_COLUMN_REPO_ID,
+                UPLOAD_BLOCKS_COLUMN_FILE_PATH,
+                UPLOAD_BLOCKS_COLUMN_BLOCK_ID);
+        String sql = String.format("UPDATE %s SET %s = %s WHERE %s",
+                UPLOAD_BLOCKS_TABLE_NAME,
+                UPLOAD_BLOCKS_COLUMN_FINISHED,
+                UPLOAD_BLOCKS_COLUMN_BLOCK_SIZE,
+                whereClause);
+
+        database.beginTransaction();
+        try {
+            for (String blockId : blockIds) {
+                database.execSQL(sql, new Object[] { account.getSignature(), repoID, filePath, blockId });
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    public void removeUploadBlocks(Account account, String repoID, String filePath) {
+        String whereClause = String.format("%s = ? and %s = ? and %s = ?",
+                UPLOAD_BLOCKS_COLUMN_ACCOUNT,
+                UPLOAD_BLOCKS_COLUMN_REPO_ID,
+                UPLOAD_BLOCKS_COLUMN_FILE_PATH);
+
+        database.delete(UPLOAD_BLOCKS_TABLE_NAME, whereClause, new String[] { account.getSignature(), repoID, filePath });
+    }
 }
@@ -0,0 +1,236 @@
+package com.seafile.seadroid2.data;
+
+import android.util.Log;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary file format of a cached directory listing.
+ * <p/>
+ * The listing is stored by columns: the types, mtimes and sizes of all dirents, then indexes into a
+ * string table for their names and ids. Strings used several times, like the id of empty files,
+ * are stored once.
+ * <pre>
+ * int     magic, version, dirent count, string count
+ * byte[]  type of each dirent
+ * long[]  mtime of each dirent
+ * long[]  size of each dirent
+ * int[]   name and id of each dirent, as string indexes, -1 for none
+ * int[]   offset of each string in the string data, and the end of the last one
+ * byte[]  string data, UTF-8
+ * </pre>
+ * The file is read through a memory-mapped buffer, so opening a cached directory costs no parsing and
+ * allocates only the dirents and their strings.
+ */
+final class DirentCacheFile {
+    private static final String DEBUG_TAG = "DirentCacheFile";
+
+    private static final int MAGIC = 0x53444952; // "SDIR"
+    /**
+     * Bump when the layout changes. Files of another version are treated as a cache miss.
+     */
+    static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 4 * 4;
+    private static final byte TYPE_DIR = 0;
+    private static final byte TYPE_FILE = 1;
+
+    private DirentCacheFile() {
+    }
+
+    /**
+     * Write dirents to a file, replacing it in one step
+     */
+    static void write(File file, List<SeafDirent> dirents) throws IOException {
+        Map<String, Integer> index = Maps.newHashMap();
+        List<byte[]> strings = Lists.newArrayList();
+        int n = dirents.size();
+        int[] names = new int[n];
+        int[] ids = new int[n];
+        for (int i = 0; i < n; i++) {
+            SeafDirent dirent = dirents.get(i);
+            names[i] = intern(dirent.name, index, strings);
+            ids[i] = intern(dirent.id, index, strings);
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(n);
+            out.writeInt(strings.size());
+            for (SeafDirent dirent : dirents) {
+                out.writeByte(dirent.isDir() ? TYPE_DIR : TYPE_FILE);
+            }
+            for (SeafDirent dirent : dirents) {
+                out.writeLong(dirent.mtime);
+            }
+            for (SeafDirent dirent : dirents) {
+                out.writeLong(dirent.size);
+            }
+            writeInts(out, names);
+            writeInts(out, ids);
+
+            int offset = 0;
+            for (byte[] s : strings) {
+                out.writeInt(offset);
+                offset += s.length;
+            }
+            out.writeInt(offset);
+            for (byte[] s : strings) {
+                out.write(s);
+            }
+        } finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not rename " + tmp);
+        }
+    }
+
+    private static int intern(String s, Map<String, Integer> index, List<byte[]> strings) {
+        if (s == null) {
+            return -1;
+        }
+        Integer i = index.get(s);
+        if (i == null) {
+            i = strings.size();
+            index.put(s, i);
+            strings.add(s.getBytes(Charsets.UTF_8));
+        }
+        return i;
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    /**
+     * Read dirents written by {@link #write}
+     *
+     * @return the dirents, or null if the file is missing, of another version or corrupt
+     */
+    static List<SeafDirent> read(File file) {
+        MappedByteBuffer buf;
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            FileChannel channel = in.getChannel();
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    // the mapping stays valid after the channel is closed
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+
+        try {
+            return read(buf);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            Log.w(DEBUG_TAG, "Corrupt dirent cache " + file.getName());
+            return null;
+        }
+    }
+
+    private static List<SeafDirent> read(ByteBuffer buf) {
+        if (buf.capacity() < HEADER_SIZE || buf.getInt(0) != MAGIC) {
+            return null;
+        }
+        if (buf.getInt(4) != VERSION) {
+            return null;
+        }
+        int n = buf.getInt(8);
+        int stringCount = buf.getInt(12);
+        if (n < 0 || stringCount < 0) {
+            return null;
+        }
+
+        int types = HEADER_SIZE;
+        int mtimes = types + n;
+        int sizes = mtimes + 8 * n;
+        int names = sizes + 8 * n;
+        int ids = names + 4 * n;
+        int offsets = ids + 4 * n;
+        int data = offsets + 4 * (stringCount + 1);
+        if (data > buf.capacity()) {
+            return null;
+        }
+
+        StringTable strings = new StringTable(buf, offsets, data, stringCount);
+        List<SeafDirent> dirents = Lists.newArrayListWithCapacity(n);
+        for (int i = 0; i < n; i++) {
+            SeafDirent dirent = new SeafDirent();
+            dirent.type = buf.get(types + i) == TYPE_DIR ? SeafDirent.DirentType.DIR : SeafDirent.DirentType.FILE;
+            dirent.mtime = buf.getLong(mtimes + 8 * i);
+            dirent.size = buf.getLong(sizes + 8 * i);
+            dirent.name = strings.get(buf.getInt(names + 4 * i));
+            dirent.id = strings.get(buf.getInt(ids + 4 * i));
+            dirent.getSortKey();
+            dirents.add(dirent);
+        }
+        return dirents;
+    }
+
+    /**
+     * Strings of a file, each decoded once on first use
+     */
+    private static class StringTable {
+        final ByteBuffer buf;
+        final int offsets;
+        final int data;
+        final String[] decoded;
+        byte[] scratch = new byte[256];
+
+        StringTable(ByteBuffer buf, int offsets, int data, int count) {
+            this.buf = buf;
+            this.offsets = offsets;
+            this.data = data;
+            this.decoded = new String[count];
+        }
+
+        String get(int i) {
+            if (i < 0) {
+                return null;
+            }
+            String s = decoded[i];
+            if (s == null) {
+                int start = buf.getInt(offsets + 4 * i);
+                int len = buf.getInt(offsets + 4 * (i + 1)) - start;
+                if (len > scratch.length) {
+                    scratch = new byte[len];
+                }
+                buf.position(data + start);
+                buf.get(scratch, 0, len);
+                s = new String(scratch, 0, len, Charsets.UTF_8);
+                decoded[i] = s;
+            }
+            return s;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.seafile.seadroid2.data;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.seafile.seadroid2.SeafException;
+import com.seafile.seadroid2.account.Account;
+import com.seafile.seadroid2.util.NamedThreadFactory;
+import com.seafile.seadroid2.util.Utils;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Fetch the listings of directories the user is likely to open next, while browsing.
+ * <p/>
+ * Once a directory has been shown for {@link #IDLE_DELAY_MS}, the listings of its first
+ * {@link #MAX_SUBDIRS} sub directories, and of the directories visited recently, are fetched in the
+ * background into the dirent cache and marked as refreshed, so opening them next needs no request.
+ * <p/>
+ * A sub directory whose id in the listing matches the cached one is only marked, see
+ * {@link DataManager#getCachedDirentsIfCurrent}. Other fetches count against a per account budget
+ * of {@link #MAX_REQUESTS} requests every {@link DataManager#REFRESH_EXPIRATION_MSECS}.
+ * Nothing is fetched unless Wi-Fi is connected, and navigating again cancels what is left.
+ */
+public class DirentPrefetcher {
+    private static final String DEBUG_TAG = "DirentPrefetcher";
+
+    private static final long IDLE_DELAY_MS = 1000;
+    private static final int MAX_SUBDIRS = 5;
+    private static final int MAX_RECENT = 5;
+    private static final int MAX_REQUESTS = 50;
+
+    /** one at a time, prefetching must not compete with what the user asked for */
+    private static final ExecutorService executor =
+            Executors.newSingleThreadExecutor(new NamedThreadFactory(DEBUG_TAG));
+
+    /** requests left per account, and when the budget was last refilled */
+    private static final Map<String, long[]> budgets = Maps.newHashMap();
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    /** directories visited, most recent first */
+    private final LinkedList<String[]> recent = Lists.newLinkedList();
+    private Runnable pending;
+    private volatile int generation;
+
+    /**
+     * Called when the listing of a directory is shown. Replaces any prefetch in progress.
+     *
+     * @param dirents the listing, in the order shown
+     */
+    public void onDirectoryShown(DataManager dataManager, String repoID, String dirPath, List<SeafDirent> dirents) {
+        cancel();
+
+        final List<String[]> targets = Lists.newArrayList();
+        for (SeafDirent dirent : dirents) {
+            if (targets.size() == MAX_SUBDIRS) {
+                break;
+            }
+            if (dirent.isDir()) {
+                targets.add(new String[] { repoID, Utils.pathJoin(dirPath, dirent.name), dirent.id });
+            }
+        }
+        for (String[] dir : recent) {
+            if (!dir[0].equals(repoID) || !dir[1].equals(dirPath)) {
+                targets.add(new String[] { dir[0], dir[1], null });
+            }
+        }
+        remember(repoID, dirPath);
+
+        if (targets.isEmpty()) {
+            return;
+        }
+
+        final int gen = generation;
+        final DataManager dm = dataManager;
+        pending = new Runnable() {
+            @Override
+            public void run() {
+                pending = null;
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        prefetch(dm, targets, gen);
+                    }
+                });
+            }
+        };
+        handler.postDelayed(pending, IDLE_DELAY_MS);
+    }
+
+    /**
+     * Stop prefetching, when the user navigates or leaves. A request already sent is let finish.
+     */
+    public void cancel() {
+        generation++;
+        if (pending != null) {
+            handler.removeCallbacks(pending);
+            pending = null;
+        }
+    }
+
+    private void remember(String repoID, String dirPath) {
+        Iterator<String[]> it = recent.iterator();
+        while (it.hasNext()) {
+            String[] dir = it.next();
+            if (dir[0].equals(repoID) && dir[1].equals(dirPath)) {
+                it.remove();
+            }
+        }
+        recent.addFirst(new String[] { repoID, dirPath });
+        if (recent.size() > MAX_RECENT) {
+            recent.removeLast();
+        }
+    }
+
+    private void prefetch(DataManager dm, List<String[]> targets, int gen) {
+        int fetched = 0, marked = 0;
+        for (String[] dir : targets) {
+            if (gen != generation || !Utils.isWiFiOn()) {
+                break;
+            }
+            String repoID = dir[0];
+            String path = dir[1];
+            String dirID = dir[2];
+            if (!dm.isDirentsRefreshTimeout(repoID, path)) {
+                continue;
+            }
+
+            if (dm.getCachedDirentsIfCurrent(repoID, path, dirID) != null) {
+                dm.setDirsRefreshTimeStamp(repoID, path);
+                marked++;
+                continue;
+            }
+
+            if (!takeBudget(dm.getAccount())) {
+                Log.d(DEBUG_TAG, "budget used up");
+                break;
+            }
+            try {
+                if (dm.getDirentsFromServer(repoID, path) != null) {
+                    dm.setDirsRefreshTimeStamp(repoID, path);
+                    fetched++;
+                }
+            } catch (SeafException e) {
+                Log.d(DEBUG_TAG, "Failed to prefetch " + path + ": " + e.getMessage());
+                break;
+            }
+        }
+        Log.d(DEBUG_TAG, String.format("%d listings fetched, %d still current", fetched, marked));
+    }
+
+    private static boolean takeBudget(Account account) {
+        synchronized (budgets) {
+            long[] budget = budgets.get(account.getSignature());
+            long now = Utils.now();
+            if (budget == null || now - budget[1] > DataManager.REFRESH_EXPIRATION_MSECS) {
+                budget = new long[] { MAX_REQUESTS, now };
+                budgets.put(account.getSignature(), budget);
+            }
+            if (budget[0] <= 0) {
+                return false;
+            }
+            budget[0]--;
+            return true;
+        }
+    }
+}
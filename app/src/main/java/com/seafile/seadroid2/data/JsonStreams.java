@@ -0,0 +1,89 @@
+package com.seafile.seadroid2.data;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+/**
+ * Helpers to parse server responses with {@link JsonReader}, token by token, instead of building
+ * a JSONArray tree of the whole response first.
+ */
+final class JsonStreams {
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private JsonStreams() {
+    }
+
+    static JsonReader open(File file) throws IOException {
+        return new JsonReader(new InputStreamReader(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE),
+                "UTF-8"));
+    }
+
+    static JsonReader open(Reader reader) {
+        return new JsonReader(reader);
+    }
+
+    static void closeQuietly(JsonReader reader) {
+        if (reader == null) {
+            return;
+        }
+        try {
+            reader.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * @return the string value, or null for a JSON null
+     */
+    static String nextString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+
+    /**
+     * @return the string value, or an empty string for a JSON null, like {@code JSONObject.optString}
+     */
+    static String optString(JsonReader reader) throws IOException {
+        String value = nextString(reader);
+        return value == null ? "" : value;
+    }
+
+    static long nextLong(JsonReader reader, long defaultValue) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return defaultValue;
+        }
+        return reader.nextLong();
+    }
+
+    static int nextInt(JsonReader reader, int defaultValue) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return defaultValue;
+        }
+        return reader.nextInt();
+    }
+
+    static boolean nextBoolean(JsonReader reader, boolean defaultValue) throws IOException {
+        switch (reader.peek()) {
+        case NULL:
+            reader.nextNull();
+            return defaultValue;
+        case STRING:
+            return Boolean.parseBoolean(reader.nextString());
+        default:
+            return reader.nextBoolean();
+        }
+    }
+}
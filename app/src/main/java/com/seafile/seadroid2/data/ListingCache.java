@@ -0,0 +1,86 @@
+package com.seafile.seadroid2.data;
+
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import com.google.common.collect.Lists;
+import com.seafile.seadroid2.account.Account;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory cache of directory listings and repo lists, shared by all {@link DataManager} instances.
+ * <p/>
+ * Listings are keyed by directory id. A directory id names the content of the directory, so a cached
+ * listing never goes stale; it is only dropped when its cache file is deleted, or evicted when the
+ * cache is full. Repo lists are keyed by account and replaced whenever they are fetched again.
+ * <p/>
+ * Lists are copied in and out, so callers may sort or modify what they get.
+ */
+final class ListingCache {
+    private static final String DEBUG_TAG = "ListingCache";
+
+    /** total number of dirents kept */
+    private static final int MAX_DIRENTS = 20000;
+    /** number of accounts whose repo list is kept */
+    private static final int MAX_REPO_LISTS = 8;
+    /** log the hit rate every so many lookups */
+    private static final int STATS_INTERVAL = 100;
+
+    private static final LruCache<String, List<SeafDirent>> dirents =
+            new LruCache<String, List<SeafDirent>>(MAX_DIRENTS) {
+                @Override
+                protected int sizeOf(String dirID, List<SeafDirent> value) {
+                    // count empty directories too
+                    return value.size() + 1;
+                }
+            };
+
+    private static final LruCache<String, List<SeafRepo>> repos =
+            new LruCache<String, List<SeafRepo>>(MAX_REPO_LISTS);
+
+    private static final AtomicInteger lookups = new AtomicInteger();
+
+    private ListingCache() {
+    }
+
+    static List<SeafDirent> getDirents(String dirID) {
+        List<SeafDirent> cached = dirents.get(dirID);
+        logStats();
+        return cached == null ? null : Lists.newArrayList(cached);
+    }
+
+    static void putDirents(String dirID, List<SeafDirent> value) {
+        dirents.put(dirID, Lists.newArrayList(value));
+    }
+
+    static void removeDirents(String dirID) {
+        dirents.remove(dirID);
+    }
+
+    static List<SeafRepo> getRepos(Account account) {
+        List<SeafRepo> cached = repos.get(account.getSignature());
+        logStats();
+        return cached == null ? null : Lists.newArrayList(cached);
+    }
+
+    static void putRepos(Account account, List<SeafRepo> value) {
+        repos.put(account.getSignature(), Lists.newArrayList(value));
+    }
+
+    /**
+     * Drop everything, when the cache files are deleted
+     */
+    static void clear() {
+        dirents.evictAll();
+        repos.evictAll();
+    }
+
+    private static void logStats() {
+        if (lookups.incrementAndGet() % STATS_INTERVAL != 0) {
+            return;
+        }
+        Log.d(DEBUG_TAG, String.format("dirents: %s, repos: %s", dirents, repos));
+    }
+}
@@ -0,0 +1,93 @@
+package com.seafile.seadroid2.data;
+
+import android.util.Log;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.seafile.seadroid2.SeafException;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Share one server call between threads asking for the same thing at the same time.
+ * <p/>
+ * The first caller for a key makes the call; callers arriving while it is in flight wait for it and get
+ * a copy of its result, or the same exception. Calls are not cached: once a call is done, the next
+ * caller makes a new one. Waiters on a call which failed with a runtime exception get
+ * {@link SeafException#unknownException}.
+ */
+final class RequestCoalescer {
+    private static final String DEBUG_TAG = "RequestCoalescer";
+
+    interface Fetch<T> {
+        List<T> fetch() throws SeafException;
+    }
+
+    private static class Call {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile List<?> result;
+        volatile SeafException err;
+    }
+
+    private static final ConcurrentMap<String, Call> inFlight = Maps.newConcurrentMap();
+
+    private static final AtomicInteger requests = new AtomicInteger();
+    private static final AtomicInteger saved = new AtomicInteger();
+
+    private RequestCoalescer() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> List<T> run(String key, Fetch<T> fetch) throws SeafException {
+        Call call = new Call();
+        Call running = inFlight.putIfAbsent(key, call);
+        if (running != null) {
+            try {
+                running.done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw SeafException.unknownException;
+            }
+            Log.d(DEBUG_TAG, String.format("%s shared, %d of %d requests saved",
+                    key, saved.incrementAndGet(), requests.get() + saved.get()));
+            if (running.err != null) {
+                throw running.err;
+            }
+            return running.result == null ? null : Lists.newArrayList((List<T>) running.result);
+        }
+
+        requests.incrementAndGet();
+        try {
+            List<T> result = fetch.fetch();
+            call.result = result == null ? null : Lists.newArrayList(result);
+            return result;
+        } catch (SeafException e) {
+            call.err = e;
+            throw e;
+        } catch (RuntimeException e) {
+            // the waiters must not take a missing result for an empty one
+            call.err = SeafException.unknownException;
+            throw e;
+        } finally {
+            inFlight.remove(key, call);
+            call.done.countDown();
+        }
+    }
+
+    /**
+     * @return the number of calls made
+     */
+    static int getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return the number of calls saved by sharing one in flight
+     */
+    static int getSavedCount() {
+        return saved.get();
+    }
+}
@@ -1,18 +1,16 @@
 package com.seafile.seadroid2.data;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.text.Collator;
 import java.util.Comparator;
 import java.util.Locale;
 
-import com.seafile.seadroid2.SeadroidApplication;
-import com.seafile.seadroid2.util.PinyinUtils;
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import android.util.Log;
 
+import com.google.gson.stream.JsonReader;
 import com.seafile.seadroid2.R;
+import com.seafile.seadroid2.util.NameCollator;
 import com.seafile.seadroid2.util.Utils;
 
 public class SeafDirent implements SeafItem, Serializable {
@@ -26,25 +24,72 @@ public class SeafDirent implements SeafItem, Serializable {
     public String name;
     public long size;    // size of file, 0 if type is dir
     public long mtime;   // last modified timestamp
+    private transient String sortKey;
 
 
-    static SeafDirent fromJson(JSONObject obj) {
+    /**
+     * Read one dirent object
+     *
+     * @return the dirent, or null if a required field is missing
+     */
+    static SeafDirent fromJson(JsonReader reader) throws IOException {
         SeafDirent dirent = new SeafDirent();
-        try {
-            dirent.id = obj.getString("id");
-            dirent.name = obj.getString("name");
-            dirent.mtime = obj.getLong("mtime");
-            String type = obj.getString("type");
-            if (type.equals("file")) {
-                dirent.type = DirentType.FILE;
-                dirent.size = obj.getLong("size");
-            } else
-                dirent.type = DirentType.DIR;
-            return dirent;
-        } catch (JSONException e) {
-            Log.d(DEBUG_TAG, e.getMessage());
+        String type = null;
+        boolean hasMtime = false, hasSize = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+            case "id":
+                dirent.id = JsonStreams.nextString(reader);
+                break;
+            case "name":
+                dirent.name = JsonStreams.nextString(reader);
+                break;
+            case "mtime":
+                dirent.mtime = reader.nextLong();
+                hasMtime = true;
+                break;
+            case "type":
+                type = JsonStreams.nextString(reader);
+                break;
+            case "size":
+                dirent.size = reader.nextLong();
+                hasSize = true;
+                break;
+            default:
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (dirent.id == null || dirent.name == null || !hasMtime || type == null) {
+            Log.d(DEBUG_TAG, "incomplete dirent " + dirent.name);
             return null;
         }
+        if (type.equals("file")) {
+            if (!hasSize) {
+                Log.d(DEBUG_TAG, "no size for file " + dirent.name);
+                return null;
+            }
+            dirent.type = DirentType.FILE;
+        } else {
+            dirent.type = DirentType.DIR;
+            dirent.size = 0;
+        }
+        // off the UI thread, before the listing gets sorted
+        dirent.getSortKey();
+        return dirent;
+    }
+
+    /**
+     * @return the key to sort by name, see {@link NameCollator}
+     */
+    public String getSortKey() {
+        if (sortKey == null) {
+            sortKey = NameCollator.getSortKey(name);
+        }
+        return sortKey;
     }
 
     public boolean isDir() {
@@ -90,29 +135,7 @@ public class SeafDirent implements SeafItem, Serializable {
 
         @Override
         public int compare(SeafDirent itemA, SeafDirent itemB) {
-            // get the first character unicode from each file name
-            int unicodeA = itemA.name.codePointAt(0);
-            int unicodeB = itemB.name.codePointAt(0);
-
-            String strA, strB;
-
-            // both are Chinese words
-            if ((19968 < unicodeA && unicodeA < 40869) && (19968 < unicodeB && unicodeB < 40869)) {
-                strA = PinyinUtils.toPinyin(SeadroidApplication.getAppContext(), itemA.name).toLowerCase();
-                strB = PinyinUtils.toPinyin(SeadroidApplication.getAppContext(), itemB.name).toLowerCase();
-            } else if ((19968 < unicodeA && unicodeA < 40869) && !(19968 < unicodeB && unicodeB < 40869)) {
-                // itemA is Chinese and itemB is English
-                return 1;
-            } else if (!(19968 < unicodeA && unicodeA < 40869) && (19968 < unicodeB && unicodeB < 40869)) {
-                // itemA is English and itemB is Chinese
-                return -1;
-            } else {
-                // both are English words
-                strA = itemA.name.toLowerCase();
-                strB = itemB.name.toLowerCase();
-            }
-
-            return strA.compareTo(strB);
+            return itemA.getSortKey().compareTo(itemB.getSortKey());
         }
     }
 }
@@ -2,11 +2,10 @@ package com.seafile.seadroid2.data;
 
 import android.util.Log;
 
+import com.google.gson.stream.JsonReader;
 import com.seafile.seadroid2.R;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -39,48 +38,99 @@ public class SeafEvent implements SeafItem {
     private boolean repo_encrypted;
     private boolean more_files;
 
-    public static SeafEvent fromJson(JSONObject obj) {
+    /**
+     * Read one event object
+     *
+     * @return the event, or null if a required field is missing
+     */
+    public static SeafEvent fromJson(JsonReader reader) throws IOException {
         SeafEvent event = new SeafEvent();
-        try {
-            event.author = obj.optString("author");
-            if (event.author.isEmpty()) {
-                event.author = "anonymous";
-                event.anonymous = true;
-            } else {
-                event.anonymous = false;
+        event.author = event.repo_id = event.nick = event.etype = event.repo_name = "";
+        event.avatar = event.commit_id = event.date = event.name = "";
+        event.time_relative = event.converted_cmmt_desc = event.desc = "";
+        boolean hasTime = false, hasRepoEncrypted = false, hasMoreFiles = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+            case "author":
+                event.author = JsonStreams.optString(reader);
+                break;
+            case "repo_id":
+                event.repo_id = JsonStreams.optString(reader);
+                break;
+            case "nick":
+                event.nick = JsonStreams.optString(reader);
+                break;
+            case "etype":
+                event.etype = JsonStreams.optString(reader);
+                break;
+            case "repo_name":
+                event.repo_name = JsonStreams.optString(reader);
+                break;
+            case "time":
+                event.time = reader.nextLong();
+                hasTime = true;
+                break;
+            case "avatar":
+                event.avatar = JsonStreams.optString(reader);
+                break;
+            case "commit_id":
+                event.commit_id = JsonStreams.optString(reader);
+                break;
+            case "date":
+                event.date = JsonStreams.optString(reader);
+                break;
+            case "name":
+                event.name = JsonStreams.optString(reader);
+                break;
+            case "time_relative":
+                event.time_relative = JsonStreams.optString(reader);
+                break;
+            case "converted_cmmt_desc":
+                event.converted_cmmt_desc = JsonStreams.optString(reader);
+                break;
+            case "repo_encrypted":
+                event.repo_encrypted = JsonStreams.nextBoolean(reader, false);
+                hasRepoEncrypted = true;
+                break;
+            case "more_files":
+                event.more_files = JsonStreams.nextBoolean(reader, false);
+                hasMoreFiles = true;
+                break;
+            case "desc":
+                event.desc = JsonStreams.optString(reader);
+                break;
+            default:
+                reader.skipValue();
             }
+        }
+        reader.endObject();
 
-            event.repo_id = obj.optString("repo_id");
-            event.nick = obj.optString("nick");
-            if (event.nick.isEmpty()) {
-                event.nick = "anonymous";
-            }
+        if (!hasTime || !hasRepoEncrypted || !hasMoreFiles) {
+            Log.d(DEBUG_TAG, "incomplete event " + event.commit_id);
+            return null;
+        }
 
-            event.etype = obj.optString("etype");
-            event.repo_name = obj.optString("repo_name");
-            event.time = obj.getLong("time");
-            event.avatar = obj.optString("avatar");
-            event.commit_id = obj.optString("commit_id");
-            event.date = obj.optString("date");
-            event.name = obj.optString("name");
-            event.time_relative = obj.optString("time_relative");
-            event.converted_cmmt_desc = obj.optString("converted_cmmt_desc");
-            event.repo_encrypted = obj.getBoolean("repo_encrypted");
-            event.more_files = obj.getBoolean("more_files");
-
-            event.desc = obj.optString("desc");
-            if (event.etype.equals(EVENT_TYPE_REPO_CREATE)) {
-                event.desc = String.format("Created library \"%s\"", event.repo_name);
-            } else if (event.etype.equals(EVENT_TYPE_REPO_DELETE)) {
-                event.desc = String.format("Deleted library \"%s\"", event.repo_name);
-            }
+        if (event.author.isEmpty()) {
+            event.author = "anonymous";
+            event.anonymous = true;
+        } else {
+            event.anonymous = false;
+        }
 
-            event.desc = translateCommitDesc(event.desc);
-            return event;
-        } catch (JSONException e) {
-            Log.d(DEBUG_TAG, e.getMessage());
-            return null;
+        if (event.nick.isEmpty()) {
+            event.nick = "anonymous";
         }
+
+        if (event.etype.equals(EVENT_TYPE_REPO_CREATE)) {
+            event.desc = String.format("Created library \"%s\"", event.repo_name);
+        } else if (event.etype.equals(EVENT_TYPE_REPO_DELETE)) {
+            event.desc = String.format("Deleted library \"%s\"", event.repo_name);
+        }
+
+        event.desc = translateCommitDesc(event.desc);
+        return event;
     }
 
     private static Matcher fullMatch(Pattern pattern, String str) {
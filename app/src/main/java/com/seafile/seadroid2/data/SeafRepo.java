@@ -2,15 +2,13 @@ package com.seafile.seadroid2.data;
 
 import android.text.TextUtils;
 
+import com.google.gson.stream.JsonReader;
 import com.seafile.seadroid2.R;
-import com.seafile.seadroid2.SeadroidApplication;
 import com.seafile.seadroid2.SettingsManager;
-import com.seafile.seadroid2.util.PinyinUtils;
+import com.seafile.seadroid2.util.NameCollator;
 import com.seafile.seadroid2.util.Utils;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import java.io.IOException;
 import java.util.Comparator;
 
 /**
@@ -33,26 +31,92 @@ public class SeafRepo implements SeafItem {
     public int encVersion;
     public long    size;
     public String  root; // the id of root directory
+    private String sortKey;
 
-    static SeafRepo fromJson(JSONObject obj) throws JSONException{
+    /**
+     * Read one repo object
+     *
+     * @throws IOException if the object is malformed or a required field is missing
+     */
+    static SeafRepo fromJson(JsonReader reader) throws IOException {
         SeafRepo repo = new SeafRepo();
-        repo.id = obj.getString("id");
-        repo.name = obj.getString("name");
-        repo.owner = obj.getString("owner");
-        repo.permission = obj.getString("permission");
-        repo.mtime = obj.getLong("mtime");
-        repo.encrypted = obj.getBoolean("encrypted");
-        repo.root = obj.getString("root");
-        repo.size = obj.getLong("size");
-        repo.isGroupRepo = obj.getString("type").equals("grepo");
-        repo.isPersonalRepo = obj.getString("type").equals("repo");
-        repo.isSharedRepo = obj.getString("type").equals("srepo");
-        repo.magic = obj.optString("magic");
-        repo.encKey = obj.optString("random_key");
-        repo.encVersion = obj.optInt("enc_version");
+        String type = null;
+        boolean hasMtime = false, hasEncrypted = false, hasSize = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+            case "id":
+                repo.id = JsonStreams.nextString(reader);
+                break;
+            case "name":
+                repo.name = JsonStreams.nextString(reader);
+                break;
+            case "owner":
+                repo.owner = JsonStreams.nextString(reader);
+                break;
+            case "permission":
+                repo.permission = JsonStreams.nextString(reader);
+                break;
+            case "mtime":
+                repo.mtime = reader.nextLong();
+                hasMtime = true;
+                break;
+            case "encrypted":
+                repo.encrypted = JsonStreams.nextBoolean(reader, false);
+                hasEncrypted = true;
+                break;
+            case "root":
+                repo.root = JsonStreams.nextString(reader);
+                break;
+            case "size":
+                repo.size = reader.nextLong();
+                hasSize = true;
+                break;
+            case "type":
+                type = JsonStreams.nextString(reader);
+                break;
+            case "magic":
+                repo.magic = JsonStreams.optString(reader);
+                break;
+            case "random_key":
+                repo.encKey = JsonStreams.optString(reader);
+                break;
+            case "enc_version":
+                repo.encVersion = JsonStreams.nextInt(reader, 0);
+                break;
+            default:
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (repo.id == null || repo.name == null || repo.owner == null || repo.permission == null
+                || repo.root == null || type == null || !hasMtime || !hasEncrypted || !hasSize) {
+            throw new IOException("incomplete repo " + repo.id);
+        }
+        repo.isGroupRepo = type.equals("grepo");
+        repo.isPersonalRepo = type.equals("repo");
+        repo.isSharedRepo = type.equals("srepo");
+        if (repo.magic == null)
+            repo.magic = "";
+        if (repo.encKey == null)
+            repo.encKey = "";
+        // off the UI thread, before the list gets sorted
+        repo.getSortKey();
         return repo;
     }
 
+    /**
+     * @return the key to sort by name, see {@link NameCollator}
+     */
+    public String getSortKey() {
+        if (sortKey == null) {
+            sortKey = NameCollator.getSortKey(name);
+        }
+        return sortKey;
+    }
+
     public SeafRepo() {
     }
 
@@ -117,29 +181,7 @@ public class SeafRepo implements SeafItem {
 
         @Override
         public int compare(SeafRepo itemA, SeafRepo itemB) {
-            // get the first character unicode from each file name
-            int unicodeA = itemA.name.codePointAt(0);
-            int unicodeB = itemB.name.codePointAt(0);
-
-            String strA, strB;
-
-            // both are Chinese words
-            if ((19968 < unicodeA && unicodeA < 40869) && (19968 < unicodeB && unicodeB < 40869)) {
-                strA = PinyinUtils.toPinyin(SeadroidApplication.getAppContext(), itemA.name).toLowerCase();
-                strB = PinyinUtils.toPinyin(SeadroidApplication.getAppContext(), itemB.name).toLowerCase();
-            } else if ((19968 < unicodeA && unicodeA < 40869) && !(19968 < unicodeB && unicodeB < 40869)) {
-                // itemA is Chinese and itemB is English
-                return 1;
-            } else if (!(19968 < unicodeA && unicodeA < 40869) && (19968 < unicodeB && unicodeB < 40869)) {
-                // itemA is English and itemB is Chinese
-                return -1;
-            } else {
-                // both are English words
-                strA = itemA.name.toLowerCase();
-                strB = itemB.name.toLowerCase();
-            }
-
-            return strA.compareTo(strB);
+            return itemA.getSortKey().compareTo(itemB.getSortKey());
         }
     }
 }
@@ -1,13 +1,13 @@
 package com.seafile.seadroid2.data;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import android.util.Log;
 
+import com.google.gson.stream.JsonReader;
 import com.seafile.seadroid2.R;
 import com.seafile.seadroid2.util.Utils;
 
+import java.io.IOException;
+
 public class SeafStarredFile implements SeafItem {
     public enum FileType { DIR, FILE };
     private static final String DEBUG_TAG = "SeafStarredFile";
@@ -18,23 +18,47 @@ public class SeafStarredFile implements SeafItem {
     private FileType type;
     private long size;    // size of file, 0 if type is dir
 
-    static SeafStarredFile fromJson(JSONObject obj) {
+    /**
+     * Read one starred file object
+     *
+     * @return the starred file, or null if a required field is missing
+     */
+    static SeafStarredFile fromJson(JsonReader reader) throws IOException {
         SeafStarredFile starredFile = new SeafStarredFile();
-        try {
-            starredFile.repoID = obj.getString("repo");
-            starredFile.mtime = obj.getLong("mtime");
-            starredFile.path = obj.getString("path");
-            starredFile.size = obj.getLong("size");
-            boolean type = obj.getBoolean("dir");
-            if (!type) {
-                starredFile.type = FileType.FILE;
-            } else
-                starredFile.type = FileType.DIR;
-            return starredFile;
-        } catch (JSONException e) {
-            Log.d(DEBUG_TAG, e.getMessage());
+        boolean hasMtime = false, hasSize = false, hasDir = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+            case "repo":
+                starredFile.repoID = JsonStreams.nextString(reader);
+                break;
+            case "mtime":
+                starredFile.mtime = reader.nextLong();
+                hasMtime = true;
+                break;
+            case "path":
+                starredFile.path = JsonStreams.nextString(reader);
+                break;
+            case "size":
+                starredFile.size = reader.nextLong();
+                hasSize = true;
+                break;
+            case "dir":
+                starredFile.type = JsonStreams.nextBoolean(reader, false) ? FileType.DIR : FileType.FILE;
+                hasDir = true;
+                break;
+            default:
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (starredFile.repoID == null || starredFile.path == null || !hasMtime || !hasSize || !hasDir) {
+            Log.d(DEBUG_TAG, "incomplete starred file " + starredFile.path);
             return null;
         }
+        return starredFile;
     }
 
     public long getSize() {
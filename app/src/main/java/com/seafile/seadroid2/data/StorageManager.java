@@ -18,9 +18,11 @@ import com.seafile.seadroid2.account.AccountManager;
 import org.apache.commons.io.FileUtils;
 
 import java.io.File;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class decides where to store Seadroid's data in the file system.
@@ -67,6 +69,10 @@ public abstract class StorageManager implements MediaScannerConnection.OnScanCom
 
     protected static final String DEBUG_TAG = "StorageManager";
 
+    /** name prefix of partial downloads in the temp dir */
+    public static final String PARTIAL_DOWNLOAD_PREFIX = "partial-";
+    private static final long PARTIAL_DOWNLOAD_MAX_AGE = TimeUnit.DAYS.toMillis(3);
+
     private static StorageManager instance = null;
 
     private final Location CLASSIC_LOCATION;
@@ -441,6 +447,28 @@ public abstract class StorageManager implements MediaScannerConnection.OnScanCom
                 list, null, this);
     }
 
+    /**
+     * Deletes partial downloads that were not resumed for {@link #PARTIAL_DOWNLOAD_MAX_AGE}, along with
+     * the state saved next to them. The download of such a file was most likely given up.
+     */
+    public final void pruneTempDir() {
+        final long cutoff = System.currentTimeMillis() - PARTIAL_DOWNLOAD_MAX_AGE;
+        File[] stale = getTempDir().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String filename) {
+                return filename.startsWith(PARTIAL_DOWNLOAD_PREFIX)
+                        && new File(dir, filename).lastModified() < cutoff;
+            }
+        });
+        if (stale == null) {
+            return;
+        }
+        for (File f : stale) {
+            Log.d(DEBUG_TAG, "Delete stale partial download " + f.getName());
+            f.delete();
+        }
+    }
+
     /**
      * Deletes full cache
      * remember to clear cache from database after called this method
@@ -450,6 +478,7 @@ public abstract class StorageManager implements MediaScannerConnection.OnScanCom
 
         FileUtils.deleteQuietly(getMediaDir());
         FileUtils.deleteQuietly(getJsonCacheDir());
+        ListingCache.clear();
         FileUtils.deleteQuietly(getTempDir());
         FileUtils.deleteQuietly(getThumbnailsDir());
 
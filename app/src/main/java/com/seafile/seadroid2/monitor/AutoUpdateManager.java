@@ -96,13 +96,8 @@ public class AutoUpdateManager implements Runnable, CachedFileChangedListener {
             @Override
             public void run() {
                 for (AutoUpdateInfo info : infos) {
-                    if (info.canLocalDecrypt()) {
-                        txService.addTaskToUploadQue(info.account, info.repoID, info.repoName,
-                                info.parentDir, info.localPath, true, true, info.version);
-                    } else {
-                        txService.addUploadTask(info.account, info.repoID, info.repoName,
-                                info.parentDir, info.localPath, true, true);
-                    }
+                    txService.addAutoUpdateTaskToUploadQue(info.account, info.repoID, info.repoName,
+                            info.parentDir, info.localPath, info.canLocalDecrypt() ? info.version : -1);
                 }
             }
         });
@@ -4,15 +4,12 @@ import android.app.PendingIntent;
 import android.content.Intent;
 import com.seafile.seadroid2.R;
 import com.seafile.seadroid2.SeadroidApplication;
-import com.seafile.seadroid2.transfer.DownloadTaskInfo;
 import com.seafile.seadroid2.transfer.DownloadTaskManager;
-import com.seafile.seadroid2.transfer.TaskState;
+import com.seafile.seadroid2.transfer.TransferProgressBus;
 import com.seafile.seadroid2.transfer.TransferService;
 import com.seafile.seadroid2.ui.CustomNotificationBuilder;
 import com.seafile.seadroid2.ui.activity.TransferActivity;
 
-import java.util.List;
-
 /**
  * Download notification provider
  *
@@ -38,13 +35,7 @@ public class DownloadNotificationProvider extends BaseNotificationProvider {
         else if (getState().equals(NotificationState.NOTIFICATION_STATE_COMPLETED))
             progressStatus = SeadroidApplication.getAppContext().getString(R.string.notification_download_completed);
         else if (getState().equals(NotificationState.NOTIFICATION_STATE_PROGRESS)) {
-            int downloadingCount = 0;
-            List<DownloadTaskInfo> infos = txService.getAllDownloadTaskInfos();
-            for (DownloadTaskInfo info : infos) {
-                if (info.state.equals(TaskState.INIT)
-                        || info.state.equals(TaskState.TRANSFERRING))
-                    downloadingCount++;
-            }
+            int downloadingCount = txMgr.getProgressBus().getSummary().activeCount;
             if (downloadingCount != 0)
                 progressStatus = SeadroidApplication.getAppContext().getResources().
                         getQuantityString(R.plurals.notification_download_info,
@@ -60,21 +51,9 @@ public class DownloadNotificationProvider extends BaseNotificationProvider {
         if (txService == null)
             return NotificationState.NOTIFICATION_STATE_COMPLETED;
 
-        List<DownloadTaskInfo> infos = txService.getAllDownloadTaskInfos();
-
-        int progressCount = 0;
-        int errorCount = 0;
-
-        for (DownloadTaskInfo info : infos) {
-            if (info == null)
-                continue;
-            if (info.state.equals(TaskState.INIT)
-                    || info.state.equals(TaskState.TRANSFERRING))
-                progressCount++;
-            else if (info.state.equals(TaskState.FAILED)
-                    || info.state.equals(TaskState.CANCELLED))
-                errorCount++;
-        }
+        TransferProgressBus.Summary summary = txMgr.getProgressBus().getSummary();
+        int progressCount = summary.activeCount;
+        int errorCount = summary.errorCount;
 
         if (progressCount == 0 && errorCount == 0)
             return NotificationState.NOTIFICATION_STATE_COMPLETED;
@@ -119,23 +98,10 @@ public class DownloadNotificationProvider extends BaseNotificationProvider {
 
     @Override
     protected int getProgress() {
-        long downloadedSize = 0l;
-        long totalSize = 0l;
         if (txService == null)
             return 0;
 
-        List<DownloadTaskInfo> infos = txService.getAllDownloadTaskInfos();
-        for (DownloadTaskInfo info : infos) {
-            if (info == null)
-                continue;
-            downloadedSize += info.finished;
-            totalSize += info.fileSize;
-        }
-
-        // avoid ArithmeticException
-        if (totalSize == 0l)
-            return 0;
-        return (int) (downloadedSize * 100 / totalSize);
+        return txMgr.getProgressBus().getSummary().getProgress();
     }
 
 }
\ No newline at end of file
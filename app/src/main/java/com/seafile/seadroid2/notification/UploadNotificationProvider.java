@@ -4,15 +4,12 @@ import android.app.PendingIntent;
 import android.content.Intent;
 import com.seafile.seadroid2.R;
 import com.seafile.seadroid2.SeadroidApplication;
-import com.seafile.seadroid2.transfer.TaskState;
+import com.seafile.seadroid2.transfer.TransferProgressBus;
 import com.seafile.seadroid2.transfer.TransferService;
-import com.seafile.seadroid2.transfer.UploadTaskInfo;
 import com.seafile.seadroid2.transfer.UploadTaskManager;
 import com.seafile.seadroid2.ui.CustomNotificationBuilder;
 import com.seafile.seadroid2.ui.activity.TransferActivity;
 
-import java.util.List;
-
 /**
  * Upload notification provider
  *
@@ -39,13 +36,7 @@ public class UploadNotificationProvider extends BaseNotificationProvider {
         else if (getState().equals(NotificationState.NOTIFICATION_STATE_COMPLETED))
             progressStatus = SeadroidApplication.getAppContext().getString(R.string.notification_upload_completed);
         else if (getState().equals(NotificationState.NOTIFICATION_STATE_PROGRESS)) {
-            int uploadingCount = 0;
-            List<UploadTaskInfo> infos = txService.getNoneCameraUploadTaskInfos();
-            for (UploadTaskInfo info : infos) {
-                if (info.state.equals(TaskState.INIT)
-                        || info.state.equals(TaskState.TRANSFERRING))
-                    uploadingCount++;
-            }
+            int uploadingCount = txMgr.getProgressBus().getSummary().activeCount;
 
             if (uploadingCount != 0)
                 progressStatus = SeadroidApplication.getAppContext().getResources().
@@ -82,23 +73,10 @@ public class UploadNotificationProvider extends BaseNotificationProvider {
 
     @Override
     protected int getProgress() {
-        long uploadedSize = 0l;
-        long totalSize = 0l;
         if (txService == null)
             return 0;
 
-        List<UploadTaskInfo> infos = txService.getNoneCameraUploadTaskInfos();
-        for (UploadTaskInfo info : infos) {
-            if (info == null)
-                continue;
-            uploadedSize += info.uploadedSize;
-            totalSize += info.totalSize;
-        }
-
-        if (totalSize == 0)
-            return 0;
-
-        return (int) (uploadedSize * 100 / totalSize);
+        return txMgr.getProgressBus().getSummary().getProgress();
     }
 
     @Override
@@ -106,21 +84,9 @@ public class UploadNotificationProvider extends BaseNotificationProvider {
         if (txService == null)
             return NotificationState.NOTIFICATION_STATE_COMPLETED;
 
-        List<UploadTaskInfo> infos = txService.getNoneCameraUploadTaskInfos();
-
-        int progressCount = 0;
-        int errorCount = 0;
-
-        for (UploadTaskInfo info : infos) {
-            if (info == null)
-                continue;
-            if (info.state.equals(TaskState.INIT)
-                    || info.state.equals(TaskState.TRANSFERRING))
-                progressCount++;
-            else if (info.state.equals(TaskState.FAILED)
-                    || info.state.equals(TaskState.CANCELLED))
-                errorCount++;
-        }
+        TransferProgressBus.Summary summary = txMgr.getProgressBus().getSummary();
+        int progressCount = summary.activeCount;
+        int errorCount = summary.errorCount;
 
         if (progressCount == 0 && errorCount == 0)
             return NotificationState.NOTIFICATION_STATE_COMPLETED;
@@ -0,0 +1,142 @@
+package com.seafile.seadroid2.transfer;
+
+import android.util.Log;
+
+import com.seafile.seadroid2.SettingsManager;
+import com.seafile.seadroid2.util.Utils;
+
+/**
+ * Adapt the number of concurrent transfer tasks to the measured throughput.
+ * <p/>
+ * Bytes reported by the tasks are summed over windows of {@link #WINDOW_MS}. At the end of each window,
+ * while tasks are waiting for a free slot:
+ * <ul>
+ * <li>if the last step added a task and the throughput grew by at least {@link #GAIN_THRESHOLD}, add one more</li>
+ * <li>if the last step added a task and the throughput did not grow, take it back</li>
+ * <li>if the throughput fell by more than {@link #DROP_THRESHOLD} at the same concurrency, remove one (congestion)</li>
+ * <li>if tasks complete in less than {@link #SHORT_TASK_MS} on average, add one, as small files
+ * are bound by request latency rather than bandwidth</li>
+ * <li>after {@link #PROBE_WINDOWS} steady windows, add one to probe for spare bandwidth</li>
+ * </ul>
+ * The concurrency stays within the bounds from {@link SettingsManager}. The latest decision is kept
+ * in {@link #getDecision()} and logged.
+ */
+class ConcurrencyController {
+    private static final String DEBUG_TAG = "ConcurrencyController";
+
+    private static final long WINDOW_MS = 5000;
+    private static final double GAIN_THRESHOLD = 0.10;
+    private static final double DROP_THRESHOLD = 0.25;
+    private static final long SHORT_TASK_MS = 2000;
+    private static final int PROBE_WINDOWS = 6;
+    private static final long IDLE_MS = 4 * WINDOW_MS;
+
+    private final TransferManager manager;
+
+    private long windowStart = System.currentTimeMillis();
+    private long windowBytes;
+    private int windowCompleted;
+    private long windowTaskTime;
+
+    private double lastThroughput = -1;
+    private int lastConcurrency;
+    /** +1 if the last step added a task, -1 if it removed one, 0 if it held */
+    private int lastStep;
+    private int steadyWindows;
+    private String decision = "initial";
+
+    ConcurrencyController(TransferManager manager) {
+        this.manager = manager;
+    }
+
+    synchronized void onBytesTransferred(long bytes) {
+        if (bytes > 0) {
+            windowBytes += bytes;
+        }
+        evaluateIfDue();
+    }
+
+    synchronized void onTaskCompleted(long durationMs) {
+        windowCompleted++;
+        windowTaskTime += durationMs;
+        evaluateIfDue();
+    }
+
+    /**
+     * @return the current concurrency and why it was chosen
+     */
+    synchronized String getDecision() {
+        return decision;
+    }
+
+    private void evaluateIfDue() {
+        long now = System.currentTimeMillis();
+        long elapsed = now - windowStart;
+        if (elapsed < WINDOW_MS) {
+            return;
+        }
+        if (elapsed > IDLE_MS) {
+            // nothing was transferred for a while, the window says nothing about the link
+            windowStart = now;
+            windowBytes = 0;
+            windowCompleted = 0;
+            windowTaskTime = 0;
+            lastThroughput = -1;
+            return;
+        }
+
+        final double throughput = windowBytes * 1000.0 / elapsed;
+        final int concurrency = manager.getTotalMaxCount();
+        final int min = SettingsManager.instance().getTransferMinConcurrency();
+        final int max = Math.max(min, SettingsManager.instance().getTransferMaxConcurrency());
+
+        int target = concurrency;
+        String reason;
+        if (!manager.hasWaitingTasks()) {
+            reason = "no waiting tasks";
+        } else if (lastThroughput < 0 || lastConcurrency != concurrency) {
+            // nothing comparable yet, or the limit was changed from outside
+            lastStep = 0;
+            reason = "first measurement";
+        } else if (lastStep > 0) {
+            if (throughput >= lastThroughput * (1 + GAIN_THRESHOLD)) {
+                target = concurrency + 1;
+                reason = "throughput grew after adding a task";
+            } else {
+                target = concurrency - 1;
+                reason = "no gain from the last task added";
+            }
+        } else if (throughput < lastThroughput * (1 - DROP_THRESHOLD)) {
+            target = concurrency - 1;
+            reason = "throughput dropped";
+        } else if (lastStep == 0 && windowCompleted > 0 && windowTaskTime / windowCompleted < SHORT_TASK_MS) {
+            target = concurrency + 1;
+            reason = "short tasks";
+        } else if (++steadyWindows >= PROBE_WINDOWS) {
+            // conditions change, so probe upwards again once in a while
+            target = concurrency + 1;
+            reason = "probing";
+        } else {
+            reason = "steady";
+        }
+        target = Math.max(min, Math.min(max, target));
+
+        decision = String.format("%d tasks, %s/s at %d (%s)",
+                target, Utils.readableFileSize((long) throughput), concurrency, reason);
+        if (target != concurrency) {
+            Log.d(DEBUG_TAG, decision);
+            manager.setTotalMaxCount(target);
+        }
+
+        lastStep = Integer.signum(target - concurrency);
+        if (lastStep != 0) {
+            steadyWindows = 0;
+        }
+        lastThroughput = throughput;
+        lastConcurrency = target;
+        windowStart = now;
+        windowBytes = 0;
+        windowCompleted = 0;
+        windowTaskTime = 0;
+    }
+}
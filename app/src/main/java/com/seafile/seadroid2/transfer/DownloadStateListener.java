@@ -5,7 +5,6 @@ package com.seafile.seadroid2.transfer;
  *
  */
 public interface DownloadStateListener {
-    void onFileDownloadProgress(int taskID);
     void onFileDownloaded(int taskID);
     void onFileDownloadFailed(int taskID);
 }
@@ -21,7 +21,6 @@ public class DownloadTask extends TransferTask {
     private String localPath;
     private DownloadStateListener downloadStateListener;
     private boolean byBlock;
-    private boolean updateTotal;
     private int encVersion;
 
     public DownloadTask(int taskID, Account account, String repoName, String repoID, String path, boolean byBlock, int encVersion,
@@ -38,13 +37,14 @@ public class DownloadTask extends TransferTask {
      */
     @Override
     protected void onProgressUpdate(Long... values) {
+        // blocks are downloaded concurrently, so the flag travels with the value
+        boolean updateTotal = values.length > 1 && values[1] == 1L;
         if (totalSize == -1 || updateTotal) {
             totalSize = values[0];
-            state = TaskState.TRANSFERRING;
+            setState(TaskState.TRANSFERRING);
             return;
         }
-        finished = values[0];
-        downloadStateListener.onFileDownloadProgress(taskID);
+        setFinished(values[0]);
     }
 
     @Override
@@ -57,8 +57,7 @@ public class DownloadTask extends TransferTask {
 
                             @Override
                             public void onProgressNotify(long total, boolean updateTotal) {
-                                DownloadTask.this.updateTotal = updateTotal;
-                                publishProgress(total);
+                                publishProgress(total, updateTotal ? 1L : 0L);
                             }
 
                             @Override
@@ -97,6 +96,11 @@ public class DownloadTask extends TransferTask {
             err = SeafException.unknownException;
             e.printStackTrace();
             return null;
+        } finally {
+            // a cancelled download is not resumed
+            if (isCancelled()) {
+                DataManager.deletePartialDownloads(repoID, path);
+            }
         }
     }
 
@@ -104,11 +108,11 @@ public class DownloadTask extends TransferTask {
     protected void onPostExecute(File file) {
         if (downloadStateListener != null) {
             if (file != null) {
-                state = TaskState.FINISHED;
+                setState(TaskState.FINISHED);
                 localPath = file.getPath();
                 downloadStateListener.onFileDownloaded(taskID);
             } else {
-                state = TaskState.FAILED;
+                setState(TaskState.FAILED);
                 if (err == null)
                     err = SeafException.unknownException;
                 downloadStateListener.onFileDownloadFailed(taskID);
@@ -118,7 +122,7 @@ public class DownloadTask extends TransferTask {
 
     @Override
     protected void onCancelled() {
-        state = TaskState.CANCELLED;
+        setState(TaskState.CANCELLED);
     }
 
     @Override
@@ -131,4 +135,12 @@ public class DownloadTask extends TransferTask {
     public String getLocalPath() {
         return localPath;
     }
+
+    public boolean isByBlock() {
+        return byBlock;
+    }
+
+    public int getEncVersion() {
+        return encVersion;
+    }
 }
\ No newline at end of file
@@ -4,10 +4,11 @@ import android.content.Intent;
 import android.support.v4.content.LocalBroadcastManager;
 
 import com.google.common.collect.Lists;
-import com.seafile.seadroid2.util.ConcurrentAsyncTask;
 import com.seafile.seadroid2.SeadroidApplication;
 import com.seafile.seadroid2.account.Account;
+import com.seafile.seadroid2.data.DataManager;
 import com.seafile.seadroid2.notification.DownloadNotificationProvider;
+import com.seafile.seadroid2.util.ConcurrentAsyncTask;
 import com.seafile.seadroid2.util.Utils;
 
 import java.util.ArrayList;
@@ -22,10 +23,37 @@ public class DownloadTaskManager extends TransferManager implements DownloadStat
 
     public static final String BROADCAST_FILE_DOWNLOAD_SUCCESS = "downloaded";
     public static final String BROADCAST_FILE_DOWNLOAD_FAILED = "downloadFailed";
-    public static final String BROADCAST_FILE_DOWNLOAD_PROGRESS = "downloadProgress";
 
     private static DownloadNotificationProvider mNotifProvider;
 
+    public DownloadTaskManager() {
+        progressBus.addListener(new TransferProgressBus.Listener() {
+            @Override
+            public void onTransferProgress(TransferProgressBus.Snapshot snapshot) {
+                if (mNotifProvider != null)
+                    mNotifProvider.updateNotification();
+            }
+        });
+    }
+
+    /**
+     * A running task deletes its partial download itself once it stops, see {@link DownloadTask}.
+     */
+    @Override
+    protected void onTaskDiscarded(TransferTask task) {
+        if (task.getState() == TaskState.TRANSFERRING) {
+            return;
+        }
+        final String repoID = task.getRepoID();
+        final String path = task.getPath();
+        ConcurrentAsyncTask.submit(new Runnable() {
+            @Override
+            public void run() {
+                DataManager.deletePartialDownloads(repoID, path);
+            }
+        });
+    }
+
     /**
      * Add a new download task.
      * call this method to execute a task immediately.
@@ -40,22 +68,18 @@ public class DownloadTaskManager extends TransferManager implements DownloadStat
      */
     public int addTask(Account account, String repoName, String repoID, String path, boolean byBlock, int encVersion) {
         TransferTask task = new DownloadTask(++notificationID, account, repoName, repoID, path, byBlock, encVersion, this);
-        TransferTask oldTask = null;
-        if (allTaskList.contains(task)) {
-            oldTask = allTaskList.get(allTaskList.indexOf(task));
-        }
-        if (oldTask != null) {
-            if (oldTask.getState().equals(TaskState.CANCELLED)
-                    || oldTask.getState().equals(TaskState.FAILED)
-                    || oldTask.getState().equals(TaskState.FINISHED)) {
-                allTaskList.remove(oldTask);
-            } else {
+        synchronized (this) {
+            TransferTask oldTask = getTask(task);
+            if (oldTask != null
+                    && !oldTask.getState().equals(TaskState.CANCELLED)
+                    && !oldTask.getState().equals(TaskState.FAILED)
+                    && !oldTask.getState().equals(TaskState.FINISHED)) {
                 // return taskID of old task
                 return oldTask.getTaskID();
             }
+            // replaces the finished old task if any
+            executeNow(task);
         }
-        allTaskList.add(task);
-        ConcurrentAsyncTask.execute(task);
         return task.getTaskID();
     }
 
@@ -89,7 +113,7 @@ public class DownloadTaskManager extends TransferManager implements DownloadStat
      */
     public List<DownloadTaskInfo> getTaskInfoListByPath(String repoID, String dir) {
         ArrayList<DownloadTaskInfo> infos = Lists.newArrayList();
-        for (TransferTask task : allTaskList) {
+        for (TransferTask task : getAllTasks()) {
             if (!task.getRepoID().equals(repoID))
                 continue;
 
@@ -109,7 +133,7 @@ public class DownloadTaskManager extends TransferManager implements DownloadStat
      */
     public List<DownloadTaskInfo> getTaskInfoListByRepo(String repoID) {
         ArrayList<DownloadTaskInfo> infos = Lists.newArrayList();
-        for (TransferTask task : allTaskList) {
+        for (TransferTask task : getAllTasks()) {
             if (!task.getRepoID().equals(repoID))
                 continue;
 
@@ -123,16 +147,20 @@ public class DownloadTaskManager extends TransferManager implements DownloadStat
         DownloadTask task = (DownloadTask) getTask(taskID);
         if (task == null || !task.canRetry())
             return;
-        addTaskToQue(task.getAccount(), task.getRepoName(), task.getRepoID(), task.getPath());
+        addTaskToQue(task.getAccount(), task.getRepoName(), task.getRepoID(), task.getPath(),
+                task.isByBlock(), task.getEncVersion());
     }
 
-    private void notifyProgress(int taskID) {
-        DownloadTaskInfo info = (DownloadTaskInfo) getTaskInfo(taskID);
-        if (info == null)
-            return;
-
-        if (mNotifProvider != null)
-            mNotifProvider.updateNotification();
+    /**
+     * Queue the downloads left in the journal by a previous process
+     */
+    public void restoreFromJournal() {
+        for (TransferDBHelper.JournaledTask item :
+                TransferDBHelper.getTransferDBHelper().getTasks(TransferDBHelper.TYPE_DOWNLOAD)) {
+            DownloadTask task = new DownloadTask(++notificationID, item.account, item.repoName, item.repoID,
+                    item.path, item.byBlock, item.version, this);
+            restoreTask(task, item.state, item.finished);
+        }
     }
 
     public void saveNotifProvider(DownloadNotificationProvider provider) {
@@ -156,14 +184,6 @@ public class DownloadTaskManager extends TransferManager implements DownloadStat
     }
 
     // -------------------------- listener method --------------------//
-    @Override
-    public void onFileDownloadProgress(int taskID) {
-        Intent localIntent = new Intent(BROADCAST_ACTION).putExtra("type",
-                BROADCAST_FILE_DOWNLOAD_PROGRESS).putExtra("taskID", taskID);
-        LocalBroadcastManager.getInstance(SeadroidApplication.getAppContext()).sendBroadcast(localIntent);
-        notifyProgress(taskID);
-    }
-
     @Override
     public void onFileDownloaded(int taskID) {
         remove(taskID);
@@ -171,7 +191,6 @@ public class DownloadTaskManager extends TransferManager implements DownloadStat
         Intent localIntent = new Intent(BROADCAST_ACTION).putExtra("type",
                 BROADCAST_FILE_DOWNLOAD_SUCCESS).putExtra("taskID", taskID);
         LocalBroadcastManager.getInstance(SeadroidApplication.getAppContext()).sendBroadcast(localIntent);
-        notifyProgress(taskID);
     }
 
     @Override
@@ -181,6 +200,5 @@ public class DownloadTaskManager extends TransferManager implements DownloadStat
         Intent localIntent = new Intent(BROADCAST_ACTION).putExtra("type",
                 BROADCAST_FILE_DOWNLOAD_FAILED).putExtra("taskID", taskID);
         LocalBroadcastManager.getInstance(SeadroidApplication.getAppContext()).sendBroadcast(localIntent);
-        notifyProgress(taskID);
     }
 }
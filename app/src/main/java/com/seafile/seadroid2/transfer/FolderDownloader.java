@@ -0,0 +1,177 @@
+package com.seafile.seadroid2.transfer;
+
+import android.content.Intent;
+import android.support.v4.content.LocalBroadcastManager;
+import android.util.Log;
+
+import com.seafile.seadroid2.SeadroidApplication;
+import com.seafile.seadroid2.SeafException;
+import com.seafile.seadroid2.account.Account;
+import com.seafile.seadroid2.data.DataManager;
+import com.seafile.seadroid2.data.SeafDirent;
+import com.seafile.seadroid2.util.NamedThreadFactory;
+import com.seafile.seadroid2.util.Utils;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Download all files under a folder.
+ * <p/>
+ * Directories are listed concurrently on a small pool, and every file found is queued in
+ * {@link DownloadTaskManager} right away, so downloads start while the tree is still being walked.
+ * Files whose cached copy is current are skipped.
+ * <p/>
+ * Sub folders whose id in the parent listing matches the cached one are unchanged, down to the
+ * last file, so they are walked from the dirent cache without a request. Walking an unchanged tree
+ * again costs one request for the top folder.
+ * <p/>
+ * Owned by {@link TransferService}, so a walk is not lost when the activity is recreated.
+ * The end of a walk is announced with a {@link #BROADCAST_FOLDER_DOWNLOAD_DONE} broadcast.
+ */
+public class FolderDownloader {
+    private static final String DEBUG_TAG = "FolderDownloader";
+
+    public static final String BROADCAST_FOLDER_DOWNLOAD_DONE = "folderDownloadDone";
+    public static final String EXTRA_REPO_ID = "repoID";
+    public static final String EXTRA_DIR = "dir";
+    public static final String EXTRA_FILE_COUNT = "fileCount";
+    public static final String EXTRA_FAILED = "failed";
+
+    /**
+     * directories listed at the same time, over all walks
+     */
+    private static final int LISTING_THREADS = 4;
+
+    private final DownloadTaskManager downloadTaskManager;
+    private final ExecutorService executor =
+            Executors.newFixedThreadPool(LISTING_THREADS, new NamedThreadFactory(DEBUG_TAG));
+
+    FolderDownloader(DownloadTaskManager downloadTaskManager) {
+        this.downloadTaskManager = downloadTaskManager;
+    }
+
+    /**
+     * Start downloading a folder
+     *
+     * @param parentDir the folder reported in the broadcast, usually the one shown when the download was started
+     * @param dirPath the folder to download
+     * @param recurse whether to download the sub folders as well
+     * @param byBlock download by blocks, for repos decrypted locally
+     * @param encVersion encryption version if byBlock, -1 otherwise
+     */
+    public void download(Account account, String repoName, String repoID, String parentDir, String dirPath,
+                         boolean recurse, boolean byBlock, int encVersion) {
+        Walk walk = new Walk(account, repoName, repoID, parentDir, recurse, byBlock, encVersion);
+        walk.list(dirPath, null);
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * State of one folder download
+     */
+    private class Walk {
+        final Account account;
+        final String repoName;
+        final String repoID;
+        final String parentDir;
+        final boolean recurse;
+        final boolean byBlock;
+        final int encVersion;
+        final DataManager dataManager;
+
+        /** directories submitted and not listed yet */
+        final AtomicInteger pending = new AtomicInteger();
+        final AtomicInteger fileCount = new AtomicInteger();
+        /** directories listed by the server and from the cache */
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicInteger cacheHits = new AtomicInteger();
+        volatile SeafException err;
+
+        Walk(Account account, String repoName, String repoID, String parentDir,
+             boolean recurse, boolean byBlock, int encVersion) {
+            this.account = account;
+            this.repoName = repoName;
+            this.repoID = repoID;
+            this.parentDir = parentDir;
+            this.recurse = recurse;
+            this.byBlock = byBlock;
+            this.encVersion = encVersion;
+            this.dataManager = new DataManager(account);
+        }
+
+        /**
+         * @param dirID id of the directory in the listing of its parent, null if unknown
+         */
+        void list(final String dir, final String dirID) {
+            pending.incrementAndGet();
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (err == null) {
+                            listDir(dir, dirID);
+                        }
+                    } catch (SeafException e) {
+                        Log.d(DEBUG_TAG, "Failed to list " + dir + ": " + e.getMessage());
+                        // stop descending, the directories already submitted drain quickly
+                        err = e;
+                    } finally {
+                        if (pending.decrementAndGet() == 0) {
+                            done();
+                        }
+                    }
+                }
+            });
+        }
+
+        private void listDir(String dir, String dirID) throws SeafException {
+            List<SeafDirent> dirents = dataManager.getCachedDirentsIfCurrent(repoID, dir, dirID);
+            if (dirents != null) {
+                cacheHits.incrementAndGet();
+            } else {
+                requests.incrementAndGet();
+                dirents = dataManager.getDirentsFromServer(repoID, dir);
+            }
+            if (dirents == null) {
+                return;
+            }
+
+            for (SeafDirent dirent : dirents) {
+                String path = Utils.pathJoin(dir, dirent.name);
+                if (dirent.isDir()) {
+                    if (recurse) {
+                        list(path, dirent.id);
+                    }
+                    continue;
+                }
+
+                File localCachedFile = dataManager.getLocalCachedFile(repoName, repoID, path, dirent.id);
+                if (localCachedFile != null) {
+                    continue;
+                }
+
+                downloadTaskManager.addTaskToQue(account, repoName, repoID, path, byBlock, encVersion);
+                fileCount.incrementAndGet();
+            }
+        }
+
+        private void done() {
+            Log.d(DEBUG_TAG, String.format("%s: %d files queued, %d folders listed by the server, %d from cache%s",
+                    parentDir, fileCount.get(), requests.get(), cacheHits.get(), err == null ? "" : ", failed"));
+            Intent localIntent = new Intent(TransferManager.BROADCAST_ACTION)
+                    .putExtra("type", BROADCAST_FOLDER_DOWNLOAD_DONE)
+                    .putExtra(EXTRA_REPO_ID, repoID)
+                    .putExtra(EXTRA_DIR, parentDir)
+                    .putExtra(EXTRA_FILE_COUNT, fileCount.get())
+                    .putExtra(EXTRA_FAILED, err != null);
+            LocalBroadcastManager.getInstance(SeadroidApplication.getAppContext()).sendBroadcast(localIntent);
+        }
+    }
+}
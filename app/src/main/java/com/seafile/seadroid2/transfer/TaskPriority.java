@@ -0,0 +1,14 @@
+package com.seafile.seadroid2.transfer;
+
+/**
+ * Scheduling class of a transfer task, in the order waiting tasks are started.
+ *
+ */
+public enum TaskPriority {
+    /** started by the user, e.g. uploading or downloading a file from the browser */
+    USER,
+    /** uploads of locally modified files, see {@link com.seafile.seadroid2.monitor.AutoUpdateManager} */
+    AUTO_UPDATE,
+    /** camera uploads */
+    CAMERA
+}
@@ -0,0 +1,118 @@
+package com.seafile.seadroid2.transfer;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A group of tasks whose end can be waited for, see {@link TransferManager#newBatch}.
+ * <p/>
+ * The manager tells the batch when one of its tasks finishes, fails or is cancelled, so waiting costs
+ * nothing until the last one ends. The infos of the ended tasks are kept for the waiter.
+ */
+public class TransferBatch {
+    private final TransferManager manager;
+    private final Set<Integer> pending = Sets.newHashSet();
+    private final List<TransferTaskInfo> finished = Lists.newArrayList();
+    private final List<TransferTaskInfo> failed = Lists.newArrayList();
+    private int unknownCount;
+    private boolean cancelled;
+
+    TransferBatch(TransferManager manager) {
+        this.manager = manager;
+    }
+
+    static boolean isEnded(TaskState state) {
+        return state == TaskState.FINISHED || state == TaskState.FAILED || state == TaskState.CANCELLED;
+    }
+
+    /**
+     * Add a task returned by the manager. A task which already ended, or which the manager doesn't know,
+     * is accounted for right away.
+     */
+    public synchronized void add(int taskID) {
+        pending.add(taskID);
+        TransferTaskInfo info = manager.getTaskInfo(taskID);
+        if (info == null) {
+            pending.remove(taskID);
+            unknownCount++;
+            notifyAll();
+        } else if (isEnded(info.state)) {
+            onTaskEnded(info);
+        }
+    }
+
+    /**
+     * Called by the manager when a task reaches an end state
+     */
+    synchronized void onTaskEnded(TransferTaskInfo info) {
+        if (!pending.remove(info.taskID)) {
+            return;
+        }
+        if (info.state == TaskState.FINISHED) {
+            finished.add(info);
+        } else {
+            failed.add(info);
+        }
+        if (pending.isEmpty()) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Wait until all tasks added so far have ended, or the batch is cancelled
+     */
+    public synchronized void await() throws InterruptedException {
+        while (!pending.isEmpty() && !cancelled) {
+            wait();
+        }
+    }
+
+    /**
+     * Stop waiting, and stop following the tasks
+     */
+    public void cancel() {
+        synchronized (this) {
+            cancelled = true;
+            notifyAll();
+        }
+        manager.removeBatch(this);
+    }
+
+    /**
+     * Stop following the tasks, once the waiter is done with the batch
+     */
+    public void close() {
+        manager.removeBatch(this);
+    }
+
+    /**
+     * @return ids of the tasks which have not ended yet
+     */
+    public synchronized List<Integer> getPendingIds() {
+        return Lists.newArrayList(pending);
+    }
+
+    /**
+     * @return infos of the tasks which finished
+     */
+    public synchronized List<TransferTaskInfo> getFinished() {
+        return Lists.newArrayList(finished);
+    }
+
+    /**
+     * @return infos of the tasks which failed or were cancelled
+     */
+    public synchronized List<TransferTaskInfo> getFailed() {
+        return Lists.newArrayList(failed);
+    }
+
+    /**
+     * @return the number of tasks added which the manager didn't know, they were never queued
+     */
+    public synchronized int getUnknownCount() {
+        return unknownCount;
+    }
+}
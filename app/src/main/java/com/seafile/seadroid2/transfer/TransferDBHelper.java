@@ -0,0 +1,302 @@
+package com.seafile.seadroid2.transfer;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.seafile.seadroid2.SeadroidApplication;
+import com.seafile.seadroid2.account.Account;
+import com.seafile.seadroid2.account.AccountManager;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Journal of the transfer queue, so queued transfers survive the service being killed.
+ * <p/>
+ * One row per task, keyed like {@link TransferTask#equals(Object)} by type, account, repo and path.
+ * Rows are written when a task is queued, updated on state changes and progress checkpoints,
+ * and deleted when the task finishes, is cancelled or removed from the list.
+ * <p/>
+ * Kept out of {@link com.seafile.seadroid2.data.DatabaseHelper}, which drops its tables on upgrade.
+ */
+public class TransferDBHelper extends SQLiteOpenHelper {
+    private static final String DEBUG_TAG = "TransferDBHelper";
+
+    // If you change the database schema, you must increment the database
+    // version.
+    public static final int DATABASE_VERSION = 1;
+    public static final String DATABASE_NAME = "transfer.db";
+
+    static final int TYPE_UPLOAD = 0;
+    static final int TYPE_DOWNLOAD = 1;
+
+    private static final String TRANSFER_QUEUE_TABLE_NAME = "TransferQueue";
+
+    private static final String TRANSFER_QUEUE_COLUMN_ID = "id";
+    private static final String TRANSFER_QUEUE_COLUMN_TYPE = "type";
+    private static final String TRANSFER_QUEUE_COLUMN_ACCOUNT = "account";
+    private static final String TRANSFER_QUEUE_COLUMN_REPO_ID = "repo_id";
+    private static final String TRANSFER_QUEUE_COLUMN_REPO_NAME = "repo_name";
+    /** remote path of a download, local path of an upload */
+    private static final String TRANSFER_QUEUE_COLUMN_PATH = "path";
+    /** remote parent dir of an upload */
+    private static final String TRANSFER_QUEUE_COLUMN_DIR = "dir";
+    private static final String TRANSFER_QUEUE_COLUMN_IS_UPDATE = "is_update";
+    private static final String TRANSFER_QUEUE_COLUMN_IS_COPY_TO_LOCAL = "is_copy_to_local";
+    private static final String TRANSFER_QUEUE_COLUMN_BY_BLOCK = "by_block";
+    private static final String TRANSFER_QUEUE_COLUMN_VERSION = "version";
+    private static final String TRANSFER_QUEUE_COLUMN_PRIORITY = "priority";
+    private static final String TRANSFER_QUEUE_COLUMN_STATE = "state";
+    private static final String TRANSFER_QUEUE_COLUMN_FINISHED = "finished";
+    private static final String TRANSFER_QUEUE_COLUMN_TOTAL_SIZE = "total_size";
+
+    private static final String SQL_CREATE_TRANSFER_QUEUE_TABLE =
+            "CREATE TABLE " + TRANSFER_QUEUE_TABLE_NAME + " ("
+                    + TRANSFER_QUEUE_COLUMN_ID + " INTEGER PRIMARY KEY, "
+                    + TRANSFER_QUEUE_COLUMN_TYPE + " INTEGER NOT NULL, "
+                    + TRANSFER_QUEUE_COLUMN_ACCOUNT + " TEXT NOT NULL, "
+                    + TRANSFER_QUEUE_COLUMN_REPO_ID + " TEXT NOT NULL, "
+                    + TRANSFER_QUEUE_COLUMN_REPO_NAME + " TEXT NOT NULL, "
+                    + TRANSFER_QUEUE_COLUMN_PATH + " TEXT NOT NULL, "
+                    + TRANSFER_QUEUE_COLUMN_DIR + " TEXT, "
+                    + TRANSFER_QUEUE_COLUMN_IS_UPDATE + " INTEGER NOT NULL, "
+                    + TRANSFER_QUEUE_COLUMN_IS_COPY_TO_LOCAL + " INTEGER NOT NULL, "
+                    + TRANSFER_QUEUE_COLUMN_BY_BLOCK + " INTEGER NOT NULL, "
+                    + TRANSFER_QUEUE_COLUMN_VERSION + " INTEGER NOT NULL, "
+                    + TRANSFER_QUEUE_COLUMN_PRIORITY + " TEXT NOT NULL, "
+                    + TRANSFER_QUEUE_COLUMN_STATE + " TEXT NOT NULL, "
+                    + TRANSFER_QUEUE_COLUMN_FINISHED + " BIGINT NOT NULL, "
+                    + TRANSFER_QUEUE_COLUMN_TOTAL_SIZE + " BIGINT NOT NULL);";
+
+    private static final String[] FULL_PROJECTION = {
+            TRANSFER_QUEUE_COLUMN_TYPE,
+            TRANSFER_QUEUE_COLUMN_ACCOUNT,
+            TRANSFER_QUEUE_COLUMN_REPO_ID,
+            TRANSFER_QUEUE_COLUMN_REPO_NAME,
+            TRANSFER_QUEUE_COLUMN_PATH,
+            TRANSFER_QUEUE_COLUMN_DIR,
+            TRANSFER_QUEUE_COLUMN_IS_UPDATE,
+            TRANSFER_QUEUE_COLUMN_IS_COPY_TO_LOCAL,
+            TRANSFER_QUEUE_COLUMN_BY_BLOCK,
+            TRANSFER_QUEUE_COLUMN_VERSION,
+            TRANSFER_QUEUE_COLUMN_PRIORITY,
+            TRANSFER_QUEUE_COLUMN_STATE,
+            TRANSFER_QUEUE_COLUMN_FINISHED,
+            TRANSFER_QUEUE_COLUMN_TOTAL_SIZE,};
+
+    private static final String KEY_WHERE_CLAUSE = String.format("%s = ? and %s = ? and %s = ? and %s = ?",
+            TRANSFER_QUEUE_COLUMN_TYPE,
+            TRANSFER_QUEUE_COLUMN_ACCOUNT,
+            TRANSFER_QUEUE_COLUMN_REPO_ID,
+            TRANSFER_QUEUE_COLUMN_PATH);
+
+    // Use only single dbHelper to prevent multi-thread issue and db is closed exception
+    // Reference
+    // http://stackoverflow.com/questions/2493331/what-are-the-best-practices-for-sqlite-on-android
+    private static TransferDBHelper dbHelper = null;
+    private SQLiteDatabase database = null;
+
+    public static synchronized TransferDBHelper getTransferDBHelper() {
+        if (dbHelper != null)
+            return dbHelper;
+        dbHelper = new TransferDBHelper(SeadroidApplication.getAppContext());
+        dbHelper.database = dbHelper.getWritableDatabase();
+        return dbHelper;
+    }
+
+    private TransferDBHelper(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        createTransferQueueTable(db);
+    }
+
+    private void createTransferQueueTable(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_TRANSFER_QUEUE_TABLE);
+
+        String sql;
+        sql = String.format("CREATE INDEX transfer_queue_key_index ON %s (%s, %s, %s, %s)",
+                TRANSFER_QUEUE_TABLE_NAME,
+                TRANSFER_QUEUE_COLUMN_TYPE,
+                TRANSFER_QUEUE_COLUMN_ACCOUNT,
+                TRANSFER_QUEUE_COLUMN_REPO_ID,
+                TRANSFER_QUEUE_COLUMN_PATH);
+        db.execSQL(sql);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS " + TRANSFER_QUEUE_TABLE_NAME + ";");
+        onCreate(db);
+    }
+
+    @Override
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        onUpgrade(db, oldVersion, newVersion);
+    }
+
+    private static int typeOf(TransferTask task) {
+        return task instanceof UploadTask ? TYPE_UPLOAD : TYPE_DOWNLOAD;
+    }
+
+    private static String[] keyOf(TransferTask task) {
+        return new String[] { String.valueOf(typeOf(task)), task.getAccount().getSignature(),
+                task.getRepoID(), task.getPath() };
+    }
+
+    /**
+     * Record a queued task, replacing the row of an older task with the same key
+     */
+    public void saveTask(TransferTask task) {
+        ContentValues values = new ContentValues();
+        values.put(TRANSFER_QUEUE_COLUMN_TYPE, typeOf(task));
+        values.put(TRANSFER_QUEUE_COLUMN_ACCOUNT, task.getAccount().getSignature());
+        values.put(TRANSFER_QUEUE_COLUMN_REPO_ID, task.getRepoID());
+        values.put(TRANSFER_QUEUE_COLUMN_REPO_NAME, task.getRepoName());
+        values.put(TRANSFER_QUEUE_COLUMN_PATH, task.getPath());
+        if (task instanceof UploadTask) {
+            UploadTask upload = (UploadTask) task;
+            values.put(TRANSFER_QUEUE_COLUMN_DIR, upload.getDir());
+            values.put(TRANSFER_QUEUE_COLUMN_IS_UPDATE, upload.isUpdate() ? 1 : 0);
+            values.put(TRANSFER_QUEUE_COLUMN_IS_COPY_TO_LOCAL, upload.isCopyToLocal() ? 1 : 0);
+            values.put(TRANSFER_QUEUE_COLUMN_BY_BLOCK, upload.isByBlock() ? 1 : 0);
+            values.put(TRANSFER_QUEUE_COLUMN_VERSION, upload.getVersion());
+        } else {
+            DownloadTask download = (DownloadTask) task;
+            values.put(TRANSFER_QUEUE_COLUMN_IS_UPDATE, 0);
+            values.put(TRANSFER_QUEUE_COLUMN_IS_COPY_TO_LOCAL, 0);
+            values.put(TRANSFER_QUEUE_COLUMN_BY_BLOCK, download.isByBlock() ? 1 : 0);
+            values.put(TRANSFER_QUEUE_COLUMN_VERSION, download.getEncVersion());
+        }
+        values.put(TRANSFER_QUEUE_COLUMN_PRIORITY, task.getPriority().name());
+        values.put(TRANSFER_QUEUE_COLUMN_STATE, task.getState().name());
+        values.put(TRANSFER_QUEUE_COLUMN_FINISHED, task.getFinished());
+        values.put(TRANSFER_QUEUE_COLUMN_TOTAL_SIZE, task.getTotalSize());
+
+        database.beginTransaction();
+        try {
+            database.delete(TRANSFER_QUEUE_TABLE_NAME, KEY_WHERE_CLAUSE, keyOf(task));
+            database.insert(TRANSFER_QUEUE_TABLE_NAME, null, values);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Record the state and progress of a task, if it is in the journal
+     */
+    public void updateTask(TransferTask task, TaskState state, long finished, long totalSize) {
+        ContentValues values = new ContentValues();
+        values.put(TRANSFER_QUEUE_COLUMN_STATE, state.name());
+        values.put(TRANSFER_QUEUE_COLUMN_FINISHED, finished);
+        values.put(TRANSFER_QUEUE_COLUMN_TOTAL_SIZE, totalSize);
+        database.update(TRANSFER_QUEUE_TABLE_NAME, values, KEY_WHERE_CLAUSE, keyOf(task));
+    }
+
+    public void removeTask(TransferTask task) {
+        database.delete(TRANSFER_QUEUE_TABLE_NAME, KEY_WHERE_CLAUSE, keyOf(task));
+    }
+
+    /**
+     * Load the journaled tasks of one type, in queue order.
+     * Rows whose account was removed, or whose upload source is gone, are dropped.
+     */
+    public List<JournaledTask> getTasks(int type) {
+        List<JournaledTask> tasks = Lists.newArrayList();
+        List<JournaledTask> invalidTasks = Lists.newLinkedList();
+
+        Cursor c = database.query(TRANSFER_QUEUE_TABLE_NAME, FULL_PROJECTION,
+                TRANSFER_QUEUE_COLUMN_TYPE + " = ?", new String[] { String.valueOf(type) },
+                null, // don't group the rows
+                null, // don't filter by row groups
+                TRANSFER_QUEUE_COLUMN_ID // The sort order
+                );
+
+        c.moveToFirst();
+
+        Map<String, Account> accounts = getAllAccounts();
+        while (!c.isAfterLast()) {
+            JournaledTask item = cursorToJournaledTask(c, accounts);
+            c.moveToNext();
+
+            if (item.account == null
+                    || (item.type == TYPE_UPLOAD && !new File(item.path).exists())) {
+                invalidTasks.add(item);
+            } else {
+                tasks.add(item);
+            }
+        }
+
+        c.close();
+
+        for (JournaledTask item : invalidTasks) {
+            database.delete(TRANSFER_QUEUE_TABLE_NAME, KEY_WHERE_CLAUSE,
+                    new String[] { String.valueOf(item.type), item.accountSignature, item.repoID, item.path });
+        }
+
+        Log.d(DEBUG_TAG, String.format("loaded %d journaled tasks of type %d, dropped %d",
+                tasks.size(), type, invalidTasks.size()));
+        return tasks;
+    }
+
+    private Map<String, Account> getAllAccounts() {
+        AccountManager accountMgr = new AccountManager(SeadroidApplication.getAppContext());
+        Map<String, Account> accounts = Maps.newHashMap();
+        for (Account account : accountMgr.getAccountList()) {
+            accounts.put(account.getSignature(), account);
+        }
+
+        return accounts;
+    }
+
+    private JournaledTask cursorToJournaledTask(Cursor c, Map<String, Account> accounts) {
+        JournaledTask item = new JournaledTask();
+        item.type = c.getInt(0);
+        item.accountSignature = c.getString(1);
+        item.account = accounts.get(item.accountSignature);
+        item.repoID = c.getString(2);
+        item.repoName = c.getString(3);
+        item.path = c.getString(4);
+        item.dir = c.getString(5);
+        item.isUpdate = c.getInt(6) != 0;
+        item.isCopyToLocal = c.getInt(7) != 0;
+        item.byBlock = c.getInt(8) != 0;
+        item.version = c.getInt(9);
+        item.priority = TaskPriority.valueOf(c.getString(10));
+        item.state = TaskState.valueOf(c.getString(11));
+        item.finished = c.getLong(12);
+        item.totalSize = c.getLong(13);
+        return item;
+    }
+
+    /**
+     * A journal row
+     */
+    public static class JournaledTask {
+        int type;
+        String accountSignature;
+        Account account;
+        String repoID;
+        String repoName;
+        String path;
+        String dir;
+        boolean isUpdate;
+        boolean isCopyToLocal;
+        boolean byBlock;
+        int version;
+        TaskPriority priority;
+        TaskState state;
+        long finished;
+        long totalSize;
+    }
+}
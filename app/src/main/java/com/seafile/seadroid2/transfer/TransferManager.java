@@ -2,16 +2,37 @@ package com.seafile.seadroid2.transfer;
 
 import android.util.Log;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.seafile.seadroid2.util.ConcurrentAsyncTask;
+import com.seafile.seadroid2.util.NamedThreadFactory;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Manages file downloading and uploading.
  * <p/>
  * Currently use an AsyncTask for an file.
+ * <p/>
+ * Tasks are indexed by id and by state, so lookups don't scan the task list and readers don't take the lock.
+ * Waiting tasks are queued per {@link TaskPriority}: user tasks are started before auto update tasks,
+ * which are started before camera upload tasks. Each class has its own concurrency limit, and all classes
+ * together are bounded by a total limit.
+ * <p/>
+ * User tasks are journaled in {@link TransferDBHelper} and restored by {@link TransferService} after the
+ * process was killed. Auto update and camera upload tasks are not, their owners queue them again.
  */
 public abstract class TransferManager {
     private static final String DEBUG_TAG = "TransferManager";
@@ -23,27 +44,152 @@ public abstract class TransferManager {
      */
     protected int notificationID;
 
-    protected static final int TRANSFER_MAX_COUNT = 2;
+    private static final int DEFAULT_TOTAL_MAX_COUNT = 3;
+
+    /**
+     * minimum interval between two progress checkpoints of a task in the journal
+     */
+    private static final long CHECKPOINT_INTERVAL = 5000;
+
+    /**
+     * writes the journal off the calling thread, in order
+     */
+    private static final ExecutorService journalExecutor =
+            Executors.newSingleThreadExecutor(new NamedThreadFactory("TransferJournal"));
+
     /**
      * contains all transfer tasks, including failed, cancelled, finished, transferring, waiting tasks.
+     * Task ids grow, so iteration follows insertion order.
+     */
+    private final ConcurrentSkipListMap<Integer, TransferTask> allTasks = new ConcurrentSkipListMap<>();
+    /**
+     * the same tasks for constant time lookup by id
+     */
+    private final Map<Integer, TransferTask> tasksById = new ConcurrentHashMap<>();
+    /**
+     * the latest task for an account, repo and path, see {@link TransferTask#equals(Object)}
+     */
+    private final Map<TransferTask, TransferTask> tasksByKey = Maps.newHashMap();
+    /**
+     * task ids by task state
+     */
+    private final EnumMap<TaskState, Set<Integer>> tasksByState = new EnumMap<>(TaskState.class);
+
+    /**
+     * waiting tasks of each class, in queue order
+     */
+    private final EnumMap<TaskPriority, LinkedHashMap<Integer, TransferTask>> waiting = new EnumMap<>(TaskPriority.class);
+    /**
+     * currently transferring tasks of each class
+     */
+    private final EnumMap<TaskPriority, Map<Integer, TransferTask>> transferring = new EnumMap<>(TaskPriority.class);
+    private final EnumMap<TaskPriority, Integer> maxCounts = new EnumMap<>(TaskPriority.class);
+    private int totalMaxCount = DEFAULT_TOTAL_MAX_COUNT;
+    private int transferringCount;
+
+    private final ConcurrencyController concurrencyController = new ConcurrencyController(this);
+
+    protected final TransferProgressBus progressBus = new TransferProgressBus(this);
+
+    /**
+     * batches waiting for their tasks to end
+     */
+    private final Set<TransferBatch> batches = new CopyOnWriteArraySet<>();
+
+    protected TransferManager() {
+        for (TaskState state : TaskState.values()) {
+            tasksByState.put(state, new ConcurrentSkipListSet<Integer>());
+        }
+        for (TaskPriority priority : TaskPriority.values()) {
+            waiting.put(priority, new LinkedHashMap<Integer, TransferTask>());
+            transferring.put(priority, Maps.<Integer, TransferTask>newHashMap());
+        }
+        // user tasks are only bounded by the total limit
+        maxCounts.put(TaskPriority.USER, Integer.MAX_VALUE);
+        maxCounts.put(TaskPriority.AUTO_UPDATE, 1);
+        maxCounts.put(TaskPriority.CAMERA, 2);
+    }
+
+    /**
+     * Set how many tasks of a class may transfer at the same time.
+     */
+    public synchronized void setMaxCount(TaskPriority priority, int max) {
+        maxCounts.put(priority, Math.max(1, max));
+        doNext();
+    }
+
+    /**
+     * Set how many tasks of all classes together may transfer at the same time.
      */
-    protected List<TransferTask> allTaskList = Lists.newArrayList();
+    public synchronized void setTotalMaxCount(int max) {
+        totalMaxCount = Math.max(1, max);
+        doNext();
+    }
+
+    public synchronized int getTotalMaxCount() {
+        return totalMaxCount;
+    }
+
+    /**
+     * @return the bus delivering progress and state changes of the tasks
+     */
+    public TransferProgressBus getProgressBus() {
+        return progressBus;
+    }
+
+    /**
+     * Start a group of tasks to wait for, see {@link TransferBatch}.
+     * Close it when done so the manager stops reporting to it.
+     */
+    public TransferBatch newBatch() {
+        TransferBatch batch = new TransferBatch(this);
+        batches.add(batch);
+        return batch;
+    }
+
+    void removeBatch(TransferBatch batch) {
+        batches.remove(batch);
+    }
+
     /**
-     * contains currently transferring tasks
+     * @return whether a task counts in the summary shown in the notification
      */
-    protected List<TransferTask> transferringList = Lists.newArrayList();
+    protected boolean isCountedInSummary(TransferTask task) {
+        return true;
+    }
+
     /**
-     * contains waiting tasks
+     * @return the current total limit and why {@link ConcurrencyController} chose it
      */
-    protected List<TransferTask> waitingList = Lists.newArrayList();
+    public String getConcurrencyDecision() {
+        return concurrencyController.getDecision();
+    }
 
-    protected synchronized TransferTask getTask(int taskID) {
-        for (TransferTask task : allTaskList) {
-            if (task.getTaskID() == taskID) {
-                return task;
+    synchronized boolean hasWaitingTasks() {
+        for (LinkedHashMap<Integer, TransferTask> queue : waiting.values()) {
+            if (!queue.isEmpty()) {
+                return true;
             }
         }
-        return null;
+        return false;
+    }
+
+    protected TransferTask getTask(int taskID) {
+        return tasksById.get(taskID);
+    }
+
+    /**
+     * @return the latest task for the same account, repo and path as the given one
+     */
+    protected synchronized TransferTask getTask(TransferTask key) {
+        return tasksByKey.get(key);
+    }
+
+    /**
+     * @return all tasks in insertion order, a weakly consistent view
+     */
+    protected Collection<TransferTask> getAllTasks() {
+        return allTasks.values();
     }
 
     public TransferTaskInfo getTaskInfo(int taskID) {
@@ -56,68 +202,136 @@ public abstract class TransferManager {
     }
 
     private synchronized boolean hasInQue(TransferTask transferTask) {
-        if (waitingList.contains(transferTask)) {
-            // Log.d(DEBUG_TAG, "in  Que  " + taskID + " " + repoName + path + "in waiting list");
-            return true;
+        TransferTask task = tasksByKey.get(transferTask);
+        if (task == null) {
+            return false;
         }
+        return waiting.get(task.getPriority()).containsKey(task.getTaskID())
+                || transferring.get(task.getPriority()).containsKey(task.getTaskID());
+    }
 
-        if (transferringList.contains(transferTask)) {
-            // Log.d(DEBUG_TAG, "in  Que  " + taskID + " " + repoName + path + " in downloading list");
-            return true;
+    /**
+     * Register a task, replacing the previous one for the same account, repo and path if any.
+     */
+    protected synchronized void addTask(TransferTask task) {
+        TransferTask old = tasksByKey.remove(task);
+        if (old != null) {
+            removeFromIndexes(old);
         }
-        return false;
+
+        tasksByKey.put(task, task);
+        tasksById.put(task.getTaskID(), task);
+        allTasks.put(task.getTaskID(), task);
+        tasksByState.get(task.getState()).add(task.getTaskID());
+        task.setManager(this);
+        progressBus.post(task);
+    }
+
+    private void removeFromIndexes(TransferTask task) {
+        allTasks.remove(task.getTaskID());
+        tasksById.remove(task.getTaskID());
+        tasksByState.get(task.getState()).remove(task.getTaskID());
+        if (tasksByKey.get(task) == task) {
+            tasksByKey.remove(task);
+        }
+        progressBus.postRemoved(task.getTaskID());
     }
 
     protected void addTaskToQue(TransferTask task) {
         if (!hasInQue(task)) {
             // remove the cancelled or failed task if any
             synchronized (this) {
-                allTaskList.remove(task);
-
                 // add new created task
-                allTaskList.add(task);
+                addTask(task);
 
                 // Log.d(DEBUG_TAG, "add Que  " + taskID + " " + repoName + path);
-                waitingList.add(task);
+                waiting.get(task.getPriority()).put(task.getTaskID(), task);
+                journalSave(task);
             }
             doNext();
         }
     }
 
+    /**
+     * Start a task right away, bypassing the queue. It still counts against the limits of its class.
+     */
+    protected synchronized void executeNow(TransferTask task) {
+        addTask(task);
+        transferring.get(task.getPriority()).put(task.getTaskID(), task);
+        transferringCount++;
+        journalSave(task);
+        ConcurrentAsyncTask.execute(task);
+    }
+
+    /**
+     * Bring back a task from the journal. Failed tasks are listed for a retry, the others are queued again.
+     */
+    protected void restoreTask(TransferTask task, TaskState state, long finished) {
+        task.finished = finished;
+        if (state == TaskState.FAILED) {
+            task.state = TaskState.FAILED;
+            addTask(task);
+        } else {
+            addTaskToQue(task);
+        }
+    }
+
+    /**
+     * Start waiting tasks, highest priority first, as long as the limits allow.
+     */
     public synchronized void doNext() {
-        if (!waitingList.isEmpty()
-                && transferringList.size() < TRANSFER_MAX_COUNT) {
-            Log.d(DEBUG_TAG, "do next!");
+        while (transferringCount < totalMaxCount) {
+            TransferTask task = pollNext();
+            if (task == null) {
+                return;
+            }
 
-            TransferTask task = waitingList.remove(0);
-            transferringList.add(task);
+            Log.d(DEBUG_TAG, "do next! " + task.getPriority());
+            transferring.get(task.getPriority()).put(task.getTaskID(), task);
+            transferringCount++;
 
             ConcurrentAsyncTask.execute(task);
         }
     }
 
+    private TransferTask pollNext() {
+        for (TaskPriority priority : TaskPriority.values()) {
+            LinkedHashMap<Integer, TransferTask> queue = waiting.get(priority);
+            if (queue.isEmpty() || transferring.get(priority).size() >= maxCounts.get(priority)) {
+                continue;
+            }
+            Iterator<TransferTask> iter = queue.values().iterator();
+            TransferTask task = iter.next();
+            iter.remove();
+            return task;
+        }
+        return null;
+    }
+
     protected void cancel(int taskID) {
         TransferTask task = getTask(taskID);
         if (task != null) {
+            onTaskDiscarded(task);
             task.cancel();
-
         }
 
         remove(taskID);
     }
 
-    protected synchronized void remove(int taskID) {
-
-        TransferTask toCancel = getTask(taskID);
-        if (toCancel == null)
-            return;
+    /**
+     * Called when the user cancels or removes a task, to drop what was kept to resume it.
+     */
+    protected void onTaskDiscarded(TransferTask task) {
+    }
 
-        if (!waitingList.isEmpty()) {
-            waitingList.remove(toCancel);
-        }
+    protected synchronized void remove(int taskID) {
+        // the task may already be gone from the task list, so look into the queues directly
+        for (TaskPriority priority : TaskPriority.values()) {
+            waiting.get(priority).remove(taskID);
 
-        if (!transferringList.isEmpty()) {
-            transferringList.remove(toCancel);
+            if (transferring.get(priority).remove(taskID) != null) {
+                transferringCount--;
+            }
         }
     }
 
@@ -125,17 +339,61 @@ public abstract class TransferManager {
         TransferTask task = getTask(taskID);
         if (task != null) {
             synchronized (this) {
-                allTaskList.remove(task);
+                removeFromIndexes(task);
+            }
+            journalRemove(task);
+            onTaskDiscarded(task);
+        }
+    }
+
+    /**
+     * Keep the state index up to date, called by the task itself.
+     */
+    synchronized void onTaskStateChanged(TransferTask task, TaskState oldState, TaskState newState) {
+        if (TransferBatch.isEnded(newState) && !batches.isEmpty()) {
+            TransferTaskInfo info = task.getTaskInfo();
+            for (TransferBatch batch : batches) {
+                batch.onTaskEnded(info);
             }
         }
+        if (!tasksById.containsKey(task.getTaskID())) {
+            return;
+        }
+        tasksByState.get(oldState).remove(task.getTaskID());
+        tasksByState.get(newState).add(task.getTaskID());
+        progressBus.post(task);
+
+        if (newState == TaskState.FINISHED || newState == TaskState.CANCELLED) {
+            journalRemove(task);
+        } else {
+            journalUpdate(task);
+        }
+    }
+
+    /**
+     * Feed the throughput measurement, called by the task itself. Must not hold the manager lock,
+     * the controller calls back into the manager.
+     */
+    void onTaskProgress(TransferTask task, long bytes) {
+        concurrencyController.onBytesTransferred(bytes);
+        progressBus.post(task);
+
+        long now = System.currentTimeMillis();
+        if (now - task.lastCheckpoint >= CHECKPOINT_INTERVAL) {
+            task.lastCheckpoint = now;
+            journalUpdate(task);
+        }
     }
 
-    public synchronized List<TransferTask> getTasksByState(TaskState taskState) {
+    void onTaskCompleted(TransferTask task, long durationMs) {
+        concurrencyController.onTaskCompleted(durationMs);
+    }
+
+    public List<TransferTask> getTasksByState(TaskState taskState) {
         List<TransferTask> taskList = Lists.newArrayList();
-        Iterator<TransferTask> iter = allTaskList.iterator();
-        while (iter.hasNext()) {
-            TransferTask task = iter.next();
-            if (task.state.equals(taskState)) {
+        for (int taskID : tasksByState.get(taskState)) {
+            TransferTask task = getTask(taskID);
+            if (task != null) {
                 taskList.add(task);
             }
         }
@@ -143,24 +401,22 @@ public abstract class TransferManager {
     }
 
     /**
-     * remove tasks from {@link #allTaskList} by comparing the taskState,
+     * remove tasks from the task list by comparing the taskState,
      * all tasks with the same taskState will be removed.
      *
      * @param taskState
      *          taskState
      */
     public synchronized void removeByState(TaskState taskState) {
-        Iterator<TransferTask> iter = allTaskList.iterator();
-        while (iter.hasNext()) {
-            TransferTask task = iter.next();
-            if (task.getState().equals(taskState)) {
-                iter.remove();
-            }
+        for (TransferTask task : getTasksByState(taskState)) {
+            removeFromIndexes(task);
+            journalRemove(task);
+            onTaskDiscarded(task);
         }
     }
 
     /**
-     * remove tasks from {@link #allTaskList} by traversing the taskId list
+     * remove tasks from the task list by traversing the taskId list
      *
      * @param ids
      *          taskId list
@@ -168,7 +424,11 @@ public abstract class TransferManager {
     public synchronized void removeByIds(List<Integer> ids) {
         for (int taskID : ids) {
             TransferTask transferTask = getTask(taskID);
-            allTaskList.remove(transferTask);
+            if (transferTask != null) {
+                removeFromIndexes(transferTask);
+                journalRemove(transferTask);
+                onTaskDiscarded(transferTask);
+            }
         }
     }
 
@@ -179,18 +439,12 @@ public abstract class TransferManager {
      *          false, otherwise.
      */
     public boolean isTransferring() {
-        List<? extends TransferTaskInfo> transferTaskInfos = getAllTaskInfoList();
-        for (TransferTaskInfo transferTaskInfo : transferTaskInfos) {
-            if (transferTaskInfo.state.equals(TaskState.TRANSFERRING))
-                return true;
-        }
-        return false;
+        return !tasksByState.get(TaskState.TRANSFERRING).isEmpty();
     }
 
     public void cancelAll() {
-        List<? extends TransferTaskInfo> transferTaskInfos = getAllTaskInfoList();
-        for (TransferTaskInfo transferTaskInfo : transferTaskInfos) {
-            cancel(transferTaskInfo.taskID);
+        for (TransferTask task : getAllTasks()) {
+            cancel(task.getTaskID());
         }
     }
 
@@ -200,13 +454,59 @@ public abstract class TransferManager {
         }
     }
 
-    public synchronized List<? extends TransferTaskInfo> getAllTaskInfoList() {
+    public List<? extends TransferTaskInfo> getAllTaskInfoList() {
         ArrayList<TransferTaskInfo> infos = Lists.newArrayList();
-        for (TransferTask task : allTaskList) {
+        for (TransferTask task : getAllTasks()) {
             infos.add(task.getTaskInfo());
         }
 
         return infos;
     }
 
+    // -------------------------- journal --------------------//
+
+    private static boolean isJournaled(TransferTask task) {
+        return task.getPriority() == TaskPriority.USER;
+    }
+
+    private void journalSave(final TransferTask task) {
+        if (!isJournaled(task)) {
+            return;
+        }
+        journalExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                TransferDBHelper.getTransferDBHelper().saveTask(task);
+            }
+        });
+    }
+
+    private void journalUpdate(final TransferTask task) {
+        if (!isJournaled(task)) {
+            return;
+        }
+        // take the values now, the task moves on while the write waits
+        final TaskState state = task.getState();
+        final long finished = task.getFinished();
+        final long totalSize = task.getTotalSize();
+        journalExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                TransferDBHelper.getTransferDBHelper().updateTask(task, state, finished, totalSize);
+            }
+        });
+    }
+
+    private void journalRemove(final TransferTask task) {
+        if (!isJournaled(task)) {
+            return;
+        }
+        journalExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                TransferDBHelper.getTransferDBHelper().removeTask(task);
+            }
+        });
+    }
+
 }
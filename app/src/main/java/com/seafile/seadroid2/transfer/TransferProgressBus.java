@@ -0,0 +1,207 @@
+package com.seafile.seadroid2.transfer;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Deliver transfer progress to the UI at a fixed rate.
+ * <p/>
+ * Tasks report every progress and state change, which can be hundreds per second with many concurrent
+ * transfers. The bus only marks the task as changed; at most every {@link #INTERVAL_MS} it takes one snapshot
+ * of each changed task and hands the changes to the listeners on the main thread.
+ * It also keeps a summary of all tasks up to date from those changes, so notifications don't
+ * have to walk the whole task list.
+ */
+public class TransferProgressBus {
+
+    private static final long INTERVAL_MS = 500;
+
+    /**
+     * Receives the changes since the last delivery, on the main thread
+     */
+    public interface Listener {
+        void onTransferProgress(Snapshot snapshot);
+    }
+
+    /**
+     * Counts and bytes of all tasks of a manager
+     */
+    public static class Summary {
+        /** tasks waiting or transferring */
+        public final int activeCount;
+        /** tasks failed or cancelled */
+        public final int errorCount;
+        public final long transferredBytes;
+        public final long totalBytes;
+
+        Summary(int activeCount, int errorCount, long transferredBytes, long totalBytes) {
+            this.activeCount = activeCount;
+            this.errorCount = errorCount;
+            this.transferredBytes = transferredBytes;
+            this.totalBytes = totalBytes;
+        }
+
+        /**
+         * @return percentage of the bytes transferred
+         */
+        public int getProgress() {
+            // avoid ArithmeticException
+            if (totalBytes == 0)
+                return 0;
+            return (int) (transferredBytes * 100 / totalBytes);
+        }
+    }
+
+    /**
+     * Changes since the last delivery
+     */
+    public static class Snapshot {
+        /** the latest info of tasks added or changed */
+        public final List<TransferTaskInfo> changed;
+        /** ids of tasks removed from the task list */
+        public final List<Integer> removed;
+        public final Summary summary;
+
+        Snapshot(List<TransferTaskInfo> changed, List<Integer> removed, Summary summary) {
+            this.changed = Collections.unmodifiableList(changed);
+            this.removed = Collections.unmodifiableList(removed);
+            this.summary = summary;
+        }
+    }
+
+    /**
+     * What a task contributed to the summary at the last snapshot
+     */
+    private static class Counted {
+        final TaskState state;
+        final long finished;
+        final long total;
+
+        Counted(TaskState state, long finished, long total) {
+            this.state = state;
+            this.finished = finished;
+            this.total = total;
+        }
+    }
+
+    private final TransferManager manager;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private final Map<Integer, TransferTask> dirty = Maps.newLinkedHashMap();
+    private final List<Integer> removed = Lists.newArrayList();
+    private boolean scheduled;
+    private long lastDelivery;
+
+    private final Map<Integer, Counted> counted = Maps.newHashMap();
+    private int activeCount;
+    private int errorCount;
+    private long transferredBytes;
+    private long totalBytes;
+
+    private final Runnable deliver = new Runnable() {
+        @Override
+        public void run() {
+            Snapshot snapshot = takeSnapshot();
+            for (Listener listener : listeners) {
+                listener.onTransferProgress(snapshot);
+            }
+        }
+    };
+
+    TransferProgressBus(TransferManager manager) {
+        this.manager = manager;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return the summary as of the last delivery
+     */
+    public synchronized Summary getSummary() {
+        return new Summary(activeCount, errorCount, transferredBytes, totalBytes);
+    }
+
+    /**
+     * Mark a task as changed, cheap enough for every progress update
+     */
+    synchronized void post(TransferTask task) {
+        dirty.put(task.getTaskID(), task);
+        schedule();
+    }
+
+    synchronized void postRemoved(int taskID) {
+        dirty.remove(taskID);
+        removed.add(taskID);
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled) {
+            return;
+        }
+        scheduled = true;
+        long delay = Math.max(0, lastDelivery + INTERVAL_MS - SystemClock.uptimeMillis());
+        handler.postDelayed(deliver, delay);
+    }
+
+    private synchronized Snapshot takeSnapshot() {
+        scheduled = false;
+        lastDelivery = SystemClock.uptimeMillis();
+
+        List<TransferTaskInfo> changed = Lists.newArrayListWithCapacity(dirty.size());
+        for (TransferTask task : dirty.values()) {
+            changed.add(task.getTaskInfo());
+            count(task.getTaskID(), manager.isCountedInSummary(task)
+                    ? new Counted(task.getState(), task.getFinished(), Math.max(0, task.getTotalSize()))
+                    : null);
+        }
+        for (int taskID : removed) {
+            count(taskID, null);
+        }
+
+        Snapshot snapshot = new Snapshot(changed, Lists.newArrayList(removed),
+                new Summary(activeCount, errorCount, transferredBytes, totalBytes));
+        dirty.clear();
+        removed.clear();
+        return snapshot;
+    }
+
+    /**
+     * Replace what a task contributes to the summary
+     */
+    private void count(int taskID, Counted now) {
+        Counted before = now == null ? counted.remove(taskID) : counted.put(taskID, now);
+        if (before != null) {
+            add(before, -1);
+        }
+        if (now != null) {
+            add(now, 1);
+        }
+    }
+
+    private void add(Counted c, int sign) {
+        if (c.state == TaskState.INIT || c.state == TaskState.TRANSFERRING) {
+            activeCount += sign;
+        } else if (c.state == TaskState.FAILED || c.state == TaskState.CANCELLED) {
+            errorCount += sign;
+        }
+        transferredBytes += sign * c.finished;
+        totalBytes += sign * c.total;
+    }
+}
@@ -6,8 +6,10 @@ import android.os.Binder;
 import android.os.IBinder;
 import android.util.Log;
 import com.seafile.seadroid2.account.Account;
+import com.seafile.seadroid2.data.StorageManager;
 import com.seafile.seadroid2.notification.DownloadNotificationProvider;
 import com.seafile.seadroid2.notification.UploadNotificationProvider;
+import com.seafile.seadroid2.util.ConcurrentAsyncTask;
 
 import java.util.List;
 
@@ -26,16 +28,30 @@ public class TransferService extends Service {
 
     private DownloadTaskManager downloadTaskManager;
     private UploadTaskManager uploadTaskManager;
+    private FolderDownloader folderDownloader;
 
     @Override
     public void onCreate() {
         downloadTaskManager = new DownloadTaskManager();
         uploadTaskManager = new UploadTaskManager();
+        folderDownloader = new FolderDownloader(downloadTaskManager);
+
+        // pick up where a killed process left off
+        uploadTaskManager.restoreFromJournal();
+        downloadTaskManager.restoreFromJournal();
+
+        ConcurrentAsyncTask.submit(new Runnable() {
+            @Override
+            public void run() {
+                StorageManager.getInstance().pruneTempDir();
+            }
+        });
     }
 
     @Override
     public void onDestroy() {
         Log.d(DEBUG_TAG, "onDestroy");
+        folderDownloader.shutdown();
     }
 
     @Override
@@ -132,6 +148,26 @@ public class TransferService extends Service {
         return addTaskToUploadQue(account, repoID, repoName, dir, filePath, isUpdate, isCopyToLocal);
     }
 
+    /**
+     * Queue the upload of a locally modified file, see {@link com.seafile.seadroid2.monitor.AutoUpdateManager}.
+     * Such uploads run after the ones started by the user.
+     *
+     * @param version the encryption version if the file is encrypted locally, -1 otherwise
+     * @return the task id
+     */
+    public int addAutoUpdateTaskToUploadQue(Account account, String repoID, String repoName, String dir,
+                                            String filePath, int version) {
+        return uploadTaskManager.addTaskToQue(account, repoID, repoName, dir, filePath, true, true,
+                version != -1, version, TaskPriority.AUTO_UPDATE);
+    }
+
+    /**
+     * Start a group of upload tasks to wait for
+     */
+    public TransferBatch newUploadBatch() {
+        return uploadTaskManager.newBatch();
+    }
+
     public UploadTaskInfo getUploadTaskInfo(int taskID) {
         return (UploadTaskInfo) uploadTaskManager.getTaskInfo(taskID);
     }
@@ -219,6 +255,17 @@ public class TransferService extends Service {
         downloadTaskManager.addTaskToQue(account, repoName, repoID, path, byBlock, encVersion);
     }
 
+    /**
+     * Queue the files under a folder for download, see {@link FolderDownloader}
+     *
+     * @param parentDir the folder shown when the download was started
+     * @param dirPath the folder to download
+     */
+    public void downloadFolder(Account account, String repoName, String repoID, String parentDir, String dirPath,
+                               boolean recurse, boolean byBlock, int encVersion) {
+        folderDownloader.download(account, repoName, repoID, parentDir, dirPath, recurse, byBlock, encVersion);
+    }
+
     public List<DownloadTaskInfo> getAllDownloadTaskInfos() {
         return (List<DownloadTaskInfo>) downloadTaskManager.getAllTaskInfoList();
     }
@@ -304,6 +351,20 @@ public class TransferService extends Service {
         downloadTaskManager.cancelAllDownloadNotification();
     }
 
+    /**
+     * @return how many uploads run concurrently and why, for tuning
+     */
+    public String getUploadConcurrencyDecision() {
+        return uploadTaskManager.getConcurrencyDecision();
+    }
+
+    /**
+     * @return how many downloads run concurrently and why, for tuning
+     */
+    public String getDownloadConcurrencyDecision() {
+        return downloadTaskManager.getConcurrencyDecision();
+    }
+
     // -------------------------- upload notification --------------------//
 
     public void saveUploadNotifProvider(UploadNotificationProvider provider) {
@@ -22,6 +22,11 @@ public abstract class TransferTask extends AsyncTask<Void, Long, File> {
     protected long totalSize, finished;
     protected TaskState state;
     protected SeafException err;
+    protected TaskPriority priority = TaskPriority.USER;
+    private TransferManager manager;
+    private long startTime;
+    /** when progress was last written to the journal */
+    long lastCheckpoint;
 
     public TransferTask(int taskID, Account account, String repoName, String repoID, String path) {
         this.account = account;
@@ -39,10 +44,46 @@ public abstract class TransferTask extends AsyncTask<Void, Long, File> {
         if (state != TaskState.INIT && state != TaskState.TRANSFERRING) {
             return;
         }
-        state = TaskState.CANCELLED;
+        setState(TaskState.CANCELLED);
         super.cancel(true);
     }
 
+    /**
+     * Change the state and let the manager update its index
+     */
+    protected void setState(TaskState newState) {
+        TaskState oldState = state;
+        state = newState;
+        if (newState == TaskState.TRANSFERRING) {
+            startTime = System.currentTimeMillis();
+        }
+        if (manager != null && oldState != newState) {
+            manager.onTaskStateChanged(this, oldState, newState);
+            if (newState == TaskState.FINISHED && startTime > 0) {
+                manager.onTaskCompleted(this, System.currentTimeMillis() - startTime);
+            }
+        }
+    }
+
+    /**
+     * Record progress and report the new bytes to the manager
+     */
+    protected void setFinished(long finished) {
+        long delta = finished - this.finished;
+        this.finished = finished;
+        if (manager != null) {
+            manager.onTaskProgress(this, delta);
+        }
+    }
+
+    void setManager(TransferManager manager) {
+        this.manager = manager;
+    }
+
+    public TaskPriority getPriority() {
+        return priority;
+    }
+
     protected boolean canRetry() {
         return state == TaskState.CANCELLED || state == TaskState.FAILED;
     }
@@ -5,7 +5,6 @@ package com.seafile.seadroid2.transfer;
  *
  */
 public interface UploadStateListener {
-    void onFileUploadProgress(int taskID);
     void onFileUploaded(int taskID);
     void onFileUploadCancelled(int taskID);
     void onFileUploadFailed(int taskID);
@@ -55,21 +55,20 @@ public class UploadTask extends TransferTask {
         if (state != TaskState.INIT && state != TaskState.TRANSFERRING) {
             return;
         }
-        state = TaskState.CANCELLED;
+        setState(TaskState.CANCELLED);
         super.cancel(true);
     }
 
     @Override
     protected void onPreExecute() {
-        state = TaskState.TRANSFERRING;
+        setState(TaskState.TRANSFERRING);
     }
 
     @Override
     protected void onProgressUpdate(Long... values) {
         long uploaded = values[0];
         Log.d(DEBUG_TAG, "Uploaded " + uploaded);
-        this.finished = uploaded;
-        uploadStateListener.onFileUploadProgress(taskID);
+        setFinished(uploaded);
     }
 
     @Override
@@ -108,7 +107,7 @@ public class UploadTask extends TransferTask {
 
     @Override
     protected void onPostExecute(File file) {
-        state = err == null ? TaskState.FINISHED : TaskState.FAILED;
+        setState(err == null ? TaskState.FINISHED : TaskState.FAILED);
         if (uploadStateListener != null) {
             if (err == null) {
                 uploadStateListener.onFileUploaded(taskID);
@@ -139,4 +138,12 @@ public class UploadTask extends TransferTask {
         return isUpdate;
     }
 
+    public boolean isByBlock() {
+        return byBlock;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
 }
\ No newline at end of file
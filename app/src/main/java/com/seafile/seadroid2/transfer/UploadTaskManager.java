@@ -19,31 +19,46 @@ public class UploadTaskManager extends TransferManager implements UploadStateLis
 
     public static final String BROADCAST_FILE_UPLOAD_SUCCESS = "uploaded";
     public static final String BROADCAST_FILE_UPLOAD_FAILED = "uploadFailed";
-    public static final String BROADCAST_FILE_UPLOAD_PROGRESS = "uploadProgress";
     public static final String BROADCAST_FILE_UPLOAD_CANCELLED = "uploadCancelled";
 
     private static UploadNotificationProvider mNotifyProvider;
 
-    public int addTaskToQue(Account account, String repoID, String repoName, String dir, String filePath, boolean isUpdate, boolean isCopyToLocal) {
-        if (repoID == null || repoName == null)
-            return 0;
+    public UploadTaskManager() {
+        progressBus.addListener(new TransferProgressBus.Listener() {
+            @Override
+            public void onTransferProgress(TransferProgressBus.Snapshot snapshot) {
+                notifyProgress(snapshot);
+            }
+        });
+    }
 
-        // create a new one to avoid IllegalStateException
-        UploadTask task = new UploadTask(++notificationID, account, repoID, repoName, dir, filePath, isUpdate, isCopyToLocal, false, -1, this);
-        addTaskToQue(task);
-        return task.getTaskID();
+    public int addTaskToQue(Account account, String repoID, String repoName, String dir, String filePath, boolean isUpdate, boolean isCopyToLocal) {
+        return addTaskToQue(account, repoID, repoName, dir, filePath, isUpdate, isCopyToLocal, false, -1, defaultPriority(isCopyToLocal));
     }
 
     public int addTaskToQue(Account account, String repoID, String repoName, String dir, String filePath, boolean isUpdate, boolean isCopyToLocal, int version) {
+        return addTaskToQue(account, repoID, repoName, dir, filePath, isUpdate, isCopyToLocal, true, version, defaultPriority(isCopyToLocal));
+    }
+
+    public int addTaskToQue(Account account, String repoID, String repoName, String dir, String filePath, boolean isUpdate,
+                            boolean isCopyToLocal, boolean byBlock, int version, TaskPriority priority) {
         if (repoID == null || repoName == null)
             return 0;
 
         // create a new one to avoid IllegalStateException
-        UploadTask task = new UploadTask(++notificationID, account, repoID, repoName, dir, filePath, isUpdate, isCopyToLocal, true, version, this);
+        UploadTask task = new UploadTask(++notificationID, account, repoID, repoName, dir, filePath, isUpdate, isCopyToLocal, byBlock, version, this);
+        task.priority = priority;
         addTaskToQue(task);
         return task.getTaskID();
     }
 
+    /**
+     * use isCopyToLocal as a flag to mark a camera photo upload task if false
+     */
+    private static TaskPriority defaultPriority(boolean isCopyToLocal) {
+        return isCopyToLocal ? TaskPriority.USER : TaskPriority.CAMERA;
+    }
+
     public List<UploadTaskInfo> getNoneCameraUploadTaskInfos() {
         List<UploadTaskInfo> noneCameraUploadTaskInfos = Lists.newArrayList();
         List<UploadTaskInfo> uploadTaskInfos = (List<UploadTaskInfo>) getAllTaskInfoList();
@@ -63,24 +78,45 @@ public class UploadTaskManager extends TransferManager implements UploadStateLis
         UploadTask task = (UploadTask) getTask(taskID);
         if (task == null || !task.canRetry())
             return;
-        addTaskToQue(task.getAccount(), task.getRepoID(), task.getRepoName(), task.getDir(), task.getPath(), task.isUpdate(), task.isCopyToLocal());
+        addTaskToQue(task.getAccount(), task.getRepoID(), task.getRepoName(), task.getDir(), task.getPath(), task.isUpdate(),
+                task.isCopyToLocal(), task.isByBlock(), task.getVersion(), task.getPriority());
     }
 
-    private void notifyProgress(int taskID) {
-        UploadTaskInfo info = (UploadTaskInfo) getTaskInfo(taskID);
-        if (info == null)
+    /**
+     * Queue the uploads left in the journal by a previous process
+     */
+    public void restoreFromJournal() {
+        for (TransferDBHelper.JournaledTask item :
+                TransferDBHelper.getTransferDBHelper().getTasks(TransferDBHelper.TYPE_UPLOAD)) {
+            UploadTask task = new UploadTask(++notificationID, item.account, item.repoID, item.repoName, item.dir,
+                    item.path, item.isUpdate, item.isCopyToLocal, item.byBlock, item.version, this);
+            task.priority = item.priority;
+            restoreTask(task, item.state, item.finished);
+        }
+    }
+
+    /**
+     * camera photo upload tasks are not shown in the notification
+     */
+    @Override
+    protected boolean isCountedInSummary(TransferTask task) {
+        return ((UploadTask) task).isCopyToLocal();
+    }
+
+    private void notifyProgress(TransferProgressBus.Snapshot snapshot) {
+        if (mNotifyProvider == null)
             return;
 
         // use isCopyToLocal as a flag to mark a camera photo upload task if false
         // mark a file upload task if true
-        if (!info.isCopyToLocal)
-            return;
+        boolean fileUploadChanged = !snapshot.removed.isEmpty();
+        for (TransferTaskInfo info : snapshot.changed) {
+            fileUploadChanged |= ((UploadTaskInfo) info).isCopyToLocal;
+        }
 
-        //Log.d(DEBUG_TAG, "notify key " + info.repoID);
-        if (mNotifyProvider != null) {
+        if (fileUploadChanged) {
             mNotifyProvider.updateNotification();
         }
-
     }
 
     public void saveUploadNotifProvider(UploadNotificationProvider provider) {
@@ -104,14 +140,6 @@ public class UploadTaskManager extends TransferManager implements UploadStateLis
     }
 
     // -------------------------- listener method --------------------//
-    @Override
-    public void onFileUploadProgress(int taskID) {
-        Intent localIntent = new Intent(BROADCAST_ACTION).putExtra("type",
-                BROADCAST_FILE_UPLOAD_PROGRESS).putExtra("taskID", taskID);
-        LocalBroadcastManager.getInstance(SeadroidApplication.getAppContext()).sendBroadcast(localIntent);
-        notifyProgress(taskID);
-    }
-
     @Override
     public void onFileUploaded(int taskID) {
         remove(taskID);
@@ -119,7 +147,6 @@ public class UploadTaskManager extends TransferManager implements UploadStateLis
         Intent localIntent = new Intent(BROADCAST_ACTION).putExtra("type",
                 BROADCAST_FILE_UPLOAD_SUCCESS).putExtra("taskID", taskID);
         LocalBroadcastManager.getInstance(SeadroidApplication.getAppContext()).sendBroadcast(localIntent);
-        notifyProgress(taskID);
     }
 
     @Override
@@ -127,7 +154,6 @@ public class UploadTaskManager extends TransferManager implements UploadStateLis
         Intent localIntent = new Intent(BROADCAST_ACTION).putExtra("type",
                 BROADCAST_FILE_UPLOAD_CANCELLED).putExtra("taskID", taskID);
         LocalBroadcastManager.getInstance(SeadroidApplication.getAppContext()).sendBroadcast(localIntent);
-        notifyProgress(taskID);
     }
 
     @Override
@@ -137,7 +163,6 @@ public class UploadTaskManager extends TransferManager implements UploadStateLis
         Intent localIntent = new Intent(BROADCAST_ACTION).putExtra("type",
                 BROADCAST_FILE_UPLOAD_FAILED).putExtra("taskID", taskID);
         LocalBroadcastManager.getInstance(SeadroidApplication.getAppContext()).sendBroadcast(localIntent);
-        notifyProgress(taskID);
     }
 
 }
@@ -60,6 +60,7 @@ import com.seafile.seadroid2.notification.DownloadNotificationProvider;
 import com.seafile.seadroid2.notification.UploadNotificationProvider;
 import com.seafile.seadroid2.transfer.DownloadTaskInfo;
 import com.seafile.seadroid2.transfer.DownloadTaskManager;
+import com.seafile.seadroid2.transfer.FolderDownloader;
 import com.seafile.seadroid2.transfer.PendingUploadInfo;
 import com.seafile.seadroid2.transfer.TransferManager;
 import com.seafile.seadroid2.transfer.TransferService;
@@ -1529,123 +1530,47 @@ public class BrowserActivity extends BaseActivity
             return;
         }
 
-        ConcurrentAsyncTask.execute(new DownloadDirTask(),
+        // txService maybe null if layout orientation has changed
+        // e.g. landscape and portrait switch
+        if (txService == null)
+            return;
+
+        final String repoID = navContext.getRepoID();
+        final SeafRepo repo = dataManager.getCachedRepoByID(repoID);
+        boolean byBlock = repo != null && repo.canLocalDecrypt();
+        txService.downloadFolder(account,
                 navContext.getRepoName(),
-                navContext.getRepoID(),
+                repoID,
                 dirPath,
-                String.valueOf(recurse),
-                fileName);
+                Utils.pathJoin(dirPath, fileName),
+                recurse,
+                byBlock,
+                byBlock ? repo.encVersion : -1);
     }
 
-    private class DownloadDirTask extends AsyncTask<String, Void, List<SeafDirent> > {
-
-        private String repoName;
-        private String repoID;
-        private String fileName;
-        private String dirPath;
-        private int fileCount;
-        private boolean recurse;
-        private ArrayList<String> dirPaths = Lists.newArrayList();
-        private SeafException err = null;
-
-        @Override
-        protected List<SeafDirent> doInBackground(String... params) {
-            if (params.length != 5) {
-                Log.d(DEBUG_TAG, "Wrong params to LoadDirTask");
-                return null;
-            }
-
-            repoName = params[0];
-            repoID = params[1];
-            dirPath = params[2];
-            recurse = Boolean.valueOf(params[3]);
-            fileName = params[4];
-
-
-            ArrayList<SeafDirent> dirents = Lists.newArrayList();
-
-            dirPaths.add(Utils.pathJoin(dirPath, fileName));
-
-            // don`t use for each loop here
-            for (int i = 0; i < dirPaths.size(); i++) {
-
-                List<SeafDirent> currentDirents;
-                try {
-                    currentDirents = dataManager.getDirentsFromServer(repoID, dirPaths.get(i));
-                } catch (SeafException e) {
-                    err = e;
-                    e.printStackTrace();
-                    return null;
-                }
-
-                if (currentDirents == null)
-                    continue;
-
-                for (SeafDirent seafDirent : currentDirents) {
-                    if (seafDirent.isDir()) {
-                        if (recurse) {
-                            dirPaths.add(Utils.pathJoin(dirPaths.get(i), seafDirent.name));
-                        }
-                    } else {
-                        File localCachedFile = dataManager.getLocalCachedFile(repoName,
-                                repoID,
-                                Utils.pathJoin(dirPaths.get(i),
-                                        seafDirent.name),
-                                seafDirent.id);
-                        if (localCachedFile != null) {
-                            continue;
-                        }
-
-                        // txService maybe null if layout orientation has changed
-                        // e.g. landscape and portrait switch
-                        if (txService == null)
-                            return null;
-
-                        final SeafRepo repo = dataManager.getCachedRepoByID(repoID);
-                        if (repo != null && repo.canLocalDecrypt()) {
-                            txService.addTaskToDownloadQue(account,
-                                    repoName,
-                                    repoID,
-                                    Utils.pathJoin(dirPaths.get(i),
-                                            seafDirent.name),
-                                    true,
-                                    repo.encVersion);
-                        } else {
-                            txService.addTaskToDownloadQue(account,
-                                    repoName,
-                                    repoID,
-                                    Utils.pathJoin(dirPaths.get(i),
-                                            seafDirent.name));
-                        }
-                        fileCount++;
-                    }
-                }
-            }
-
-            return dirents;
+    /**
+     * Called when {@link com.seafile.seadroid2.transfer.FolderDownloader} has queued all files of a folder
+     */
+    private void onFolderDownloadDone(String repoID, String dirPath, int fileCount, boolean failed) {
+        if (failed) {
+            ToastUtils.show(this, R.string.transfer_list_network_error);
+        } else if (fileCount == 0) {
+            ToastUtils.show(this, R.string.transfer_download_no_task);
+        } else {
+            ToastUtils.show(this, getResources().getQuantityString(R.plurals.transfer_download_started, fileCount, fileCount));
         }
 
-        @Override
-        protected void onPostExecute(List<SeafDirent> dirents) {
-            if (dirents == null) {
-                if (err != null) {
-                    ToastUtils.show(BrowserActivity.this, R.string.transfer_list_network_error);
-                }
-                return;
-            }
+        if (txService == null)
+            return;
 
-            if (fileCount == 0)
-                ToastUtils.show(BrowserActivity.this, R.string.transfer_download_no_task);
-            else {
-                ToastUtils.show(BrowserActivity.this, getResources().getQuantityString(R.plurals.transfer_download_started, fileCount, fileCount));
-                if (!txService.hasDownloadNotifProvider()) {
-                    DownloadNotificationProvider provider = new DownloadNotificationProvider(txService.getDownloadTaskManager(),
-                            txService);
-                    txService.saveDownloadNotifProvider(provider);
-                }
-            }
+        if (fileCount > 0 && !txService.hasDownloadNotifProvider()) {
+            DownloadNotificationProvider provider = new DownloadNotificationProvider(txService.getDownloadTaskManager(),
+                    txService);
+            txService.saveDownloadNotifProvider(provider);
+        }
 
-            // set download tasks info to adapter in order to update download progress in UI thread
+        // set download tasks info to adapter in order to update download progress in UI thread
+        if (repoID.equals(navContext.getRepoID()) && dirPath.equals(navContext.getDirPath())) {
             getReposFragment().getAdapter().setDownloadTaskList(txService.getDownloadTaskInfosByPath(repoID, dirPath));
         }
     }
@@ -2279,6 +2204,11 @@ public class BrowserActivity extends BaseActivity
             } else if (type.equals(UploadTaskManager.BROADCAST_FILE_UPLOAD_FAILED)) {
                 int taskID = intent.getIntExtra("taskID", 0);
                 onFileUploadFailed(taskID);
+            } else if (type.equals(FolderDownloader.BROADCAST_FOLDER_DOWNLOAD_DONE)) {
+                onFolderDownloadDone(intent.getStringExtra(FolderDownloader.EXTRA_REPO_ID),
+                        intent.getStringExtra(FolderDownloader.EXTRA_DIR),
+                        intent.getIntExtra(FolderDownloader.EXTRA_FILE_COUNT, 0),
+                        intent.getBooleanExtra(FolderDownloader.EXTRA_FAILED, false));
             }
         }
 
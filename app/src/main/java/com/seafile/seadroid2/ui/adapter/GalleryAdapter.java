@@ -81,12 +81,8 @@ public class GalleryAdapter extends PagerAdapter {
         if (file.exists()) {
             ImageLoader.getInstance().displayImage("file://" + file.getAbsolutePath().toString(), photoView, options);
         } else {
+            progressBar.setVisibility(View.VISIBLE);
             ConcurrentAsyncTask.execute(new DownloadTask(++taskID, mAccount, repoName, repoID, filePath, false, -1, new DownloadStateListener() {
-                @Override
-                public void onFileDownloadProgress(int taskID) {
-                    progressBar.setVisibility(View.VISIBLE);
-                }
-
                 @Override
                 public void onFileDownloaded(int taskID) {
                     //Log.d(DEBUG_TAG, "DownloadTask >> onFileDownloaded");
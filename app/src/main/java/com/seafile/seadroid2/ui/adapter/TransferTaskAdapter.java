@@ -12,8 +12,11 @@ import android.widget.ProgressBar;
 import android.widget.TextView;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.seafile.seadroid2.R;
 import com.seafile.seadroid2.transfer.DownloadTaskInfo;
+import com.seafile.seadroid2.transfer.TransferProgressBus;
 import com.seafile.seadroid2.transfer.TransferTaskInfo;
 import com.seafile.seadroid2.transfer.UploadTaskInfo;
 import com.seafile.seadroid2.ui.activity.TransferActivity;
@@ -21,7 +24,10 @@ import com.seafile.seadroid2.util.Utils;
 
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Adapter class for both uploading and downloading tasks
@@ -32,7 +38,7 @@ public class TransferTaskAdapter extends BaseAdapter {
 
     private SparseBooleanArray mSelectedItemsIds;
     private List<Integer> mSelectedItemsPositions = Lists.newArrayList();
-    private List<? extends TransferTaskInfo> mTransferTaskInfos;
+    private List<TransferTaskInfo> mTransferTaskInfos;
     /** flag to mark if action mode was activated, used to update the state of multi selection buttons */
     private boolean actionModeStarted;
     private TransferActivity mActivity;
@@ -51,7 +57,7 @@ public class TransferTaskAdapter extends BaseAdapter {
      */
     public TransferTaskAdapter(TransferActivity activity,
                                List<? extends TransferTaskInfo> transferTaskInfos) {
-        this.mTransferTaskInfos = transferTaskInfos;
+        this.mTransferTaskInfos = Lists.<TransferTaskInfo>newArrayList(transferTaskInfos);
         this.mActivity = activity;
         this.mSelectedItemsIds = new SparseBooleanArray();
     }
@@ -89,10 +95,50 @@ public class TransferTaskAdapter extends BaseAdapter {
     }
 
     public void setTransferTaskInfos(List<? extends TransferTaskInfo> infos) {
-        mTransferTaskInfos = infos;
+        mTransferTaskInfos = Lists.newArrayList(infos);
         Collections.sort(mTransferTaskInfos, new TaskInfoComparator());
     }
 
+    /**
+     * Apply the changes delivered by {@link TransferProgressBus}, touching only the affected rows.
+     * The list is sorted again only if a task was added or changed its state.
+     */
+    public void applySnapshot(TransferProgressBus.Snapshot snapshot) {
+        boolean resort = false;
+
+        if (!snapshot.removed.isEmpty()) {
+            Set<Integer> removed = Sets.newHashSet(snapshot.removed);
+            Iterator<TransferTaskInfo> iter = mTransferTaskInfos.iterator();
+            while (iter.hasNext()) {
+                if (removed.contains(iter.next().taskID)) {
+                    iter.remove();
+                }
+            }
+        }
+
+        if (!snapshot.changed.isEmpty()) {
+            Map<Integer, Integer> positions = Maps.newHashMap();
+            for (int i = 0; i < mTransferTaskInfos.size(); i++) {
+                positions.put(mTransferTaskInfos.get(i).taskID, i);
+            }
+            for (TransferTaskInfo info : snapshot.changed) {
+                Integer position = positions.get(info.taskID);
+                if (position == null) {
+                    mTransferTaskInfos.add(info);
+                    resort = true;
+                } else {
+                    TransferTaskInfo old = mTransferTaskInfos.set(position, info);
+                    resort |= old.state != info.state;
+                }
+            }
+        }
+
+        if (resort) {
+            Collections.sort(mTransferTaskInfos, new TaskInfoComparator());
+        }
+        notifyDataSetChanged();
+    }
+
     @Override
     public boolean hasStableIds() {
         // make adapter with stable ids by return true.
@@ -5,6 +5,7 @@ import android.util.Log;
 import com.seafile.seadroid2.R;
 import com.seafile.seadroid2.transfer.DownloadTaskInfo;
 import com.seafile.seadroid2.transfer.TaskState;
+import com.seafile.seadroid2.transfer.TransferProgressBus;
 import com.seafile.seadroid2.transfer.TransferTaskInfo;
 import com.seafile.seadroid2.ui.adapter.TransferTaskAdapter;
 
@@ -29,6 +30,11 @@ public class DownloadTaskFragment extends TransferTaskFragment {
         return txService.getAllDownloadTaskInfos();
     }
 
+    @Override
+    protected TransferProgressBus getProgressBus() {
+        return txService.getDownloadTaskManager().getProgressBus();
+    }
+
     @Override
     protected void setUpTransferList() {
 
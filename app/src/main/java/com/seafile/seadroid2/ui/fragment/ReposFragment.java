@@ -24,6 +24,7 @@ import android.widget.ListView;
 import android.widget.TextView;
 
 import com.cocosw.bottomsheet.BottomSheet;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.seafile.seadroid2.R;
 import com.seafile.seadroid2.SeafConnection;
@@ -31,6 +32,7 @@ import com.seafile.seadroid2.SeafException;
 import com.seafile.seadroid2.SettingsManager;
 import com.seafile.seadroid2.account.Account;
 import com.seafile.seadroid2.data.DataManager;
+import com.seafile.seadroid2.data.DirentPrefetcher;
 import com.seafile.seadroid2.data.SeafCachedFile;
 import com.seafile.seadroid2.data.SeafDirent;
 import com.seafile.seadroid2.data.SeafGroup;
@@ -87,6 +89,8 @@ public class ReposFragment extends ListFragment {
     private boolean isTimerStarted;
     private final Handler mTimer = new Handler();
 
+    private final DirentPrefetcher prefetcher = new DirentPrefetcher();
+
     private DataManager getDataManager() {
         return mActivity.getDataManager();
     }
@@ -300,6 +304,7 @@ public class ReposFragment extends ListFragment {
         // Log.d(DEBUG_TAG, "ReposFragment onStop");
         super.onStop();
         stopTimer();
+        prefetcher.cancel();
     }
 
     @Override
@@ -340,6 +345,7 @@ public class ReposFragment extends ListFragment {
         if (mActivity == null)
             return;
 
+        prefetcher.cancel();
         mErrorText.setVisibility(View.GONE);
         mListContainer.setVisibility(View.VISIBLE);
 
@@ -529,6 +535,14 @@ public class ReposFragment extends ListFragment {
             mListView.setVisibility(View.VISIBLE);
             restoreDirentScrollPosition(restoreScrollPosition, repoID, dirPath);
             mEmptyView.setVisibility(View.GONE);
+
+            List<SeafDirent> shown = Lists.newArrayListWithCapacity(adapter.getCount());
+            for (int i = 0; i < adapter.getCount(); i++) {
+                if (adapter.getItem(i) instanceof SeafDirent) {
+                    shown.add((SeafDirent) adapter.getItem(i));
+                }
+            }
+            prefetcher.onDirectoryShown(getDataManager(), repoID, dirPath, shown);
         } else {
             // Directory is empty
             mListView.setVisibility(View.GONE);
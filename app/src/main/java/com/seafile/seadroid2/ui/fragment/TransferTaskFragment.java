@@ -6,7 +6,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.Bundle;
-import android.os.Handler;
 import android.os.IBinder;
 import android.support.v4.app.ListFragment;
 import android.support.v7.view.ActionMode;
@@ -24,6 +23,7 @@ import android.widget.TextView;
 
 import com.google.common.collect.Lists;
 import com.seafile.seadroid2.R;
+import com.seafile.seadroid2.transfer.TransferProgressBus;
 import com.seafile.seadroid2.transfer.TransferService;
 import com.seafile.seadroid2.transfer.TransferTaskInfo;
 import com.seafile.seadroid2.ui.ToastUtils;
@@ -45,7 +45,6 @@ public abstract class TransferTaskFragment extends ListFragment {
     protected TextView emptyView;
     private View mListContainer;
     private View mProgressContainer;
-    protected final Handler mTimer = new Handler();
     protected TransferService txService = null;
     private ActionMode mActionMode;
 
@@ -124,7 +123,7 @@ public abstract class TransferTaskFragment extends ListFragment {
                 mTransferTaskListView.setVisibility(View.VISIBLE);
                 emptyView.setVisibility(View.GONE);
                 setUpTransferList();
-                startTimer();
+                startListening();
             }
         }
 
@@ -136,6 +135,8 @@ public abstract class TransferTaskFragment extends ListFragment {
 
     protected abstract List<? extends TransferTaskInfo> getTransferTaskInfos();
 
+    protected abstract TransferProgressBus getProgressBus();
+
     protected abstract void setUpTransferList();
 
     @Override
@@ -158,30 +159,35 @@ public abstract class TransferTaskFragment extends ListFragment {
     @Override
     public void onStop() {
         super.onStop();
-        stopTimer();
+        stopListening();
         if (txService != null) {
             mActivity.unbindService(mConnection);
             txService = null;
         }
     }
 
-    // refresh list by mTimer
-    private void startTimer() {
-        Log.d(DEBUG_TAG, "timer started");
-        mTimer.postDelayed(new Runnable() {
-
-            @Override
-            public void run() {
-                adapter.setTransferTaskInfos(getTransferTaskInfos());
-                adapter.notifyDataSetChanged();
-                //Log.d(DEBUG_TAG, "timer post refresh signal " + System.currentTimeMillis());
-                mTimer.postDelayed(this, 1 * 1000);
+    // refresh the changed rows when the progress bus delivers
+    private final TransferProgressBus.Listener mProgressListener = new TransferProgressBus.Listener() {
+        @Override
+        public void onTransferProgress(TransferProgressBus.Snapshot snapshot) {
+            if (adapter != null) {
+                adapter.applySnapshot(snapshot);
             }
-        }, 1 * 1000);
+        }
+    };
+
+    private void startListening() {
+        Log.d(DEBUG_TAG, "listening to progress");
+        getProgressBus().addListener(mProgressListener);
+        // catch up with changes between setting up the list and subscribing
+        adapter.setTransferTaskInfos(getTransferTaskInfos());
+        adapter.notifyDataSetChanged();
     }
 
-    public void stopTimer() {
-        mTimer.removeCallbacksAndMessages(null);
+    public void stopListening() {
+        if (txService != null) {
+            getProgressBus().removeListener(mProgressListener);
+        }
     }
 
     private void showLoading(boolean show) {
@@ -3,6 +3,7 @@ package com.seafile.seadroid2.ui.fragment;
 import android.os.Bundle;
 import com.seafile.seadroid2.R;
 import com.seafile.seadroid2.transfer.TaskState;
+import com.seafile.seadroid2.transfer.TransferProgressBus;
 import com.seafile.seadroid2.transfer.TransferTaskInfo;
 import com.seafile.seadroid2.transfer.UploadTaskInfo;
 import com.seafile.seadroid2.ui.adapter.TransferTaskAdapter;
@@ -29,6 +30,11 @@ public class UploadTaskFragment extends TransferTaskFragment {
         return txService.getAllUploadTaskInfos();
     }
 
+    @Override
+    protected TransferProgressBus getProgressBus() {
+        return txService.getUploadTaskManager().getProgressBus();
+    }
+
     @Override
     protected void setUpTransferList() {
         List<UploadTaskInfo> infos = txService.getAllUploadTaskInfos();
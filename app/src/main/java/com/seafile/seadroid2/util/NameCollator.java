@@ -0,0 +1,36 @@
+package com.seafile.seadroid2.util;
+
+/**
+ * Sort order of file and library names.
+ * <p/>
+ * Names starting with a chinese character come after the others, and are sorted by their pinyin.
+ * Other names are sorted ignoring case.
+ * <p/>
+ * Converting a name to pinyin costs a lookup per character, so instead of doing it on every comparison
+ * each item computes its {@link #getSortKey sort key} once, and comparators compare the keys.
+ */
+public final class NameCollator {
+    private static final char OTHER = '0';
+    private static final char CHINESE = '1';
+
+    private NameCollator() {
+    }
+
+    private static boolean isChinese(int codePoint) {
+        return 19968 < codePoint && codePoint < 40869;
+    }
+
+    /**
+     * @return a key such that comparing the keys of two names with {@link String#compareTo}
+     * gives the order of the names
+     */
+    public static String getSortKey(String name) {
+        if (name == null || name.isEmpty()) {
+            return String.valueOf(OTHER);
+        }
+        if (isChinese(name.codePointAt(0))) {
+            return CHINESE + PinyinUtils.toPinyin(null, name).toLowerCase();
+        }
+        return OTHER + name.toLowerCase();
+    }
+}
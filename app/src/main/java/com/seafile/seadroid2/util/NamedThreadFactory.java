@@ -0,0 +1,20 @@
+package com.seafile.seadroid2.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread factory which gives its threads a readable name, e.g. "BlockDownloader #1"
+ */
+public class NamedThreadFactory implements ThreadFactory {
+    private final AtomicInteger mCount = new AtomicInteger(1);
+    private final String name;
+
+    public NamedThreadFactory(String name) {
+        this.name = name;
+    }
+
+    public Thread newThread(Runnable r) {
+        return new Thread(r, name + " #" + mCount.getAndIncrement());
+    }
+}
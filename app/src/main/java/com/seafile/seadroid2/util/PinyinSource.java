@@ -16,10 +16,6 @@
 
 package com.seafile.seadroid2.util;
 
-import android.content.Context;
-
-import java.io.*;
-
 /**
  * the pinyin source
  * <p/>
@@ -64,48 +60,4 @@ public abstract class PinyinSource {
                 .append("xie   yue   ")
                 .toString();
     }
-
-    /**
-     * to store the file to the app folder.
-     *
-     * @param context Android Context
-     * @return success
-     */
-    public static boolean toFile(Context context) {
-        FileOutputStream os = null;
-        try {
-            File file = new File(context.getFilesDir().getAbsolutePath() + "/pinyin4android");
-            if (file.exists()) {
-                file.delete();
-            }
-            file.createNewFile();
-            os = new FileOutputStream(file);
-            os.write(getSource().getBytes());
-            os.flush();
-            return true;
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
-        } finally {
-            try {
-                if (null != os) os.close();
-            } catch (IOException e) {
-                //
-            }
-        }
-    }
-
-    /**
-     * get the file if it is not exist , it will be store first
-     *
-     * @param context Android Context
-     * @return Pinyin Source File
-     */
-    public static File getFile(Context context) {
-        File file = new File(context.getFilesDir().getAbsolutePath() + "/pinyin4android");
-        if (!file.exists()) {
-            toFile(context);
-        }
-        return file;
-    }
-}
\ No newline at end of file
+}
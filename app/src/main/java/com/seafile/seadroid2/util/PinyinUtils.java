@@ -17,9 +17,11 @@
 package com.seafile.seadroid2.util;
 
 import android.content.Context;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.RandomAccessFile;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * This class is pinyin4android main interface .
@@ -27,15 +29,58 @@ import java.io.RandomAccessFile;
  * PinyinUtil.toPinyin(Context context,char c);
  * PinyinUtil.toPinyin(Context context,String hanzi);
  * <p/>
+ * The pinyin table is kept in memory, see {@link NameCollator} to sort by pinyin.
+ * <p/>
  * User: Ryan
  * Date: 11-5-29
  * Time: 21:13
  */
 public abstract class PinyinUtils {
+    private static final char FIRST = 0x4E00;
+    private static final int SYLLABLE_WIDTH = 6;
+
+    /**
+     * The pinyin table, loaded in memory on first use: the distinct syllables, and for each character
+     * from {@link #FIRST} the index of its syllable.
+     */
+    private static class Table {
+        static final String[] SYLLABLES;
+        static final short[] INDEX;
+
+        static {
+            String source = PinyinSource.getSource();
+            Map<String, Short> ids = new HashMap<String, Short>();
+            List<String> syllables = new ArrayList<String>();
+            INDEX = new short[source.length() / SYLLABLE_WIDTH];
+            for (int i = 0; i < INDEX.length; i++) {
+                String syllable = source.substring(i * SYLLABLE_WIDTH, (i + 1) * SYLLABLE_WIDTH).trim();
+                Short id = ids.get(syllable);
+                if (id == null) {
+                    id = (short) syllables.size();
+                    ids.put(syllable, id);
+                    syllables.add(syllable);
+                }
+                INDEX[i] = id;
+            }
+            SYLLABLES = syllables.toArray(new String[syllables.size()]);
+        }
+    }
+
+    /**
+     * @return the syllable of a chinese character, or null if it is not in the table
+     */
+    private static String lookup(char c) {
+        int i = c - FIRST;
+        if (i < 0 || i >= Table.INDEX.length) {
+            return null;
+        }
+        return Table.SYLLABLES[Table.INDEX[i]];
+    }
+
     /**
      * to convert chinese to pinyin
      *
-     * @param context Android Context
+     * @param context Android Context, not used since the table is in memory
      * @param c       the chinese character
      * @return pinyin
      */
@@ -47,70 +92,37 @@ public abstract class PinyinUtils {
             return String.valueOf(c);
         }
         if (c == 0x3007) return "ling";
-        if (c < 4E00 || c > 0x9FA5) {
-            return null;
-        }
-        RandomAccessFile is = null;
-        try {
-            is = new RandomAccessFile(PinyinSource.getFile(context), "r");
-            long sp = (c - 0x4E00) * 6;
-            is.seek(sp);
-            byte[] buf = new byte[6];
-            is.read(buf);
-            return new String(buf).trim();
-        } catch (FileNotFoundException e) {
-            //
-        } catch (IOException e) {
-            //
-        } finally {
-            try {
-                if (null != is) is.close();
-            } catch (IOException e) {
-                //
-            }
-        }
-        return null;
+        return lookup(c);
     }
 
     /**
      * to convert chinese to pinyin
      *
-     * @param context Android Context
+     * @param context Android Context, not used since the table is in memory
      * @param hanzi   the chinese string
-     * @return pinyin
+     * @return pinyin, characters which are neither letters nor chinese are kept as they are
      */
     public static String toPinyin(Context context, String hanzi) {
-        StringBuffer sb = new StringBuffer("");
-        RandomAccessFile is = null;
-        try {
-            is = new RandomAccessFile(PinyinSource.getFile(context), "r");
-            for (int i = 0; i < hanzi.length(); i++) {
-                char ch = hanzi.charAt(i);
-                if (ch >= 'A' && ch <= 'Z') {
-                    sb.append((char) (ch + 32));
-                    continue;
-                }
-                if (ch >= 'a' && ch <= 'z') {
-                    sb.append(ch);
-                    continue;
-                }
-                if (ch == 0x3007) {
-                    sb.append("ling").append(' ');
-                } else if (ch >= 0x4E00 || ch <= 0x9FA5) {
-                    long sp = (ch - 0x4E00) * 6;
-                    is.seek(sp);
-                    byte[] buf = new byte[6];
-                    is.read(buf);
-                    sb.append(new String(buf).trim()).append(' ');
-                }
+        StringBuilder sb = new StringBuilder(hanzi.length() * 4);
+        for (int i = 0; i < hanzi.length(); i++) {
+            char ch = hanzi.charAt(i);
+            if (ch >= 'A' && ch <= 'Z') {
+                sb.append((char) (ch + 32));
+                continue;
+            }
+            if (ch >= 'a' && ch <= 'z') {
+                sb.append(ch);
+                continue;
+            }
+            if (ch == 0x3007) {
+                sb.append("ling").append(' ');
+                continue;
             }
-        } catch (IOException e) {
-            //
-        } finally {
-            try {
-                if (null != is) is.close();
-            } catch (IOException e) {
-                //
+            String syllable = lookup(ch);
+            if (syllable != null) {
+                sb.append(syllable).append(' ');
+            } else {
+                sb.append(ch);
             }
         }
         return sb.toString().trim();
@@ -3,6 +3,7 @@ package com.seafile.seadroid2.util;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.database.Cursor;
@@ -13,6 +14,7 @@ import android.net.NetworkInfo;
 import android.net.NetworkInfo.DetailedState;
 import android.net.Uri;
 import android.net.http.SslCertificate;
+import android.os.BatteryManager;
 import android.os.Build;
 import android.os.Bundle;
 import android.provider.OpenableColumns;
@@ -328,6 +330,31 @@ public class Utils {
 
         return false;
     }
+
+    /**
+     * @return true if the active network is not metered, like most Wi-Fi networks
+     */
+    public static boolean isUnmeteredNetworkOn() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return isWiFiOn();
+        }
+        ConnectivityManager connMgr = (ConnectivityManager)
+                SeadroidApplication.getAppContext().getSystemService(
+                        Context.CONNECTIVITY_SERVICE);
+
+        NetworkInfo active = connMgr.getActiveNetworkInfo();
+        return active != null && active.isConnected() && !connMgr.isActiveNetworkMetered();
+    }
+
+    /**
+     * @return true if the device is plugged in
+     */
+    public static boolean isCharging() {
+        Intent battery = SeadroidApplication.getAppContext().registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
     public static String pathJoin (String first, String... rest) {
         StringBuilder result = new StringBuilder(first);
         for (String b: rest) {
@@ -0,0 +1,148 @@
+package com.seafile.seadroid2.data;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class DirentCacheFileTest {
+    private static final String EMPTY_FILE_ID = "0000000000000000000000000000000000000000";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static SeafDirent dirent(SeafDirent.DirentType type, String name, String id, long size, long mtime) {
+        SeafDirent dirent = new SeafDirent();
+        dirent.type = type;
+        dirent.name = name;
+        dirent.id = id;
+        dirent.size = size;
+        dirent.mtime = mtime;
+        return dirent;
+    }
+
+    private static void assertDirentsEqual(List<SeafDirent> expected, List<SeafDirent> actual) {
+        Assert.assertNotNull(actual);
+        Assert.assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            SeafDirent e = expected.get(i), a = actual.get(i);
+            Assert.assertEquals(e.type, a.type);
+            Assert.assertEquals(e.name, a.name);
+            Assert.assertEquals(e.id, a.id);
+            Assert.assertEquals(e.size, a.size);
+            Assert.assertEquals(e.mtime, a.mtime);
+        }
+    }
+
+    private List<SeafDirent> sample() {
+        return Arrays.asList(
+                dirent(SeafDirent.DirentType.DIR, "Photos", "b6fa3a0b1f7fa4c3a0c3e5b44a4c2a9ba2b4e4f1", 0, 1466000000L),
+                dirent(SeafDirent.DirentType.FILE, "notes.txt", "3f0da9a0709c5fb9f23957608dabef01becc3a8c", 1234, 1466000001L),
+                dirent(SeafDirent.DirentType.FILE, "empty-1", EMPTY_FILE_ID, 0, 1466000002L),
+                dirent(SeafDirent.DirentType.FILE, "empty-2", EMPTY_FILE_ID, 0, 1466000003L),
+                dirent(SeafDirent.DirentType.FILE, "big.mkv", "a9993e364706816aba3e25717850c26c9cd0d89d", 5L * 1024 * 1024 * 1024, 1466000004L));
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        File file = folder.newFile();
+        List<SeafDirent> dirents = sample();
+        DirentCacheFile.write(file, dirents);
+        assertDirentsEqual(dirents, DirentCacheFile.read(file));
+    }
+
+    @Test
+    public void testNonAsciiNames() throws IOException {
+        File file = folder.newFile();
+        List<SeafDirent> dirents = Arrays.asList(
+                dirent(SeafDirent.DirentType.DIR, "中文目录", "b6fa3a0b1f7fa4c3a0c3e5b44a4c2a9ba2b4e4f1", 0, 1466000000L),
+                dirent(SeafDirent.DirentType.FILE, "Übersicht.pdf", "3f0da9a0709c5fb9f23957608dabef01becc3a8c", 42, 1466000001L),
+                dirent(SeafDirent.DirentType.FILE, "📷 photo.jpg", "a9993e364706816aba3e25717850c26c9cd0d89d", 7, 1466000002L));
+        DirentCacheFile.write(file, dirents);
+        assertDirentsEqual(dirents, DirentCacheFile.read(file));
+    }
+
+    @Test
+    public void testMissingString() throws IOException {
+        File file = folder.newFile();
+        List<SeafDirent> dirents = Arrays.asList(
+                dirent(SeafDirent.DirentType.FILE, "no-id", null, 1, 1466000000L));
+        DirentCacheFile.write(file, dirents);
+        List<SeafDirent> read = DirentCacheFile.read(file);
+        assertDirentsEqual(dirents, read);
+        Assert.assertNull(read.get(0).id);
+    }
+
+    @Test
+    public void testEmptyList() throws IOException {
+        File file = folder.newFile();
+        DirentCacheFile.write(file, new ArrayList<SeafDirent>());
+        List<SeafDirent> read = DirentCacheFile.read(file);
+        Assert.assertNotNull(read);
+        Assert.assertTrue(read.isEmpty());
+    }
+
+    @Test
+    public void testMissingFile() {
+        Assert.assertNull(DirentCacheFile.read(new File(folder.getRoot(), "missing")));
+    }
+
+    @Test
+    public void testTruncatedFile() throws IOException {
+        File file = folder.newFile();
+        DirentCacheFile.write(file, sample());
+        long length = file.length();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // in the string data
+            raf.setLength(length - 3);
+            Assert.assertNull(DirentCacheFile.read(file));
+            // in the columns
+            raf.setLength(40);
+            Assert.assertNull(DirentCacheFile.read(file));
+            // in the header
+            raf.setLength(6);
+            Assert.assertNull(DirentCacheFile.read(file));
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void testBadMagic() throws IOException {
+        File file = folder.newFile();
+        DirentCacheFile.write(file, sample());
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.writeInt(0x12345678);
+        } finally {
+            raf.close();
+        }
+        Assert.assertNull(DirentCacheFile.read(file));
+    }
+
+    @Test
+    public void testOtherVersion() throws IOException {
+        File file = folder.newFile();
+        DirentCacheFile.write(file, sample());
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(4);
+            raf.writeInt(DirentCacheFile.VERSION + 1);
+        } finally {
+            raf.close();
+        }
+        Assert.assertNull(DirentCacheFile.read(file));
+    }
+}
@@ -0,0 +1,162 @@
+package com.seafile.seadroid2.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Sort time of a large mixed-script listing, the way the comparators used to sort it and with
+ * {@link NameCollator} sort keys.
+ * <p/>
+ * The comparators used to convert both names to pinyin on every comparison, looking each chinese
+ * character up in the pinyin table file with a {@link RandomAccessFile}. Now the table is in memory
+ * and each name is converted once.
+ * <p/>
+ * Not part of the unit tests, run its {@link #main} with the test classpath.
+ */
+public class NameCollatorBenchmark {
+    private static final int SIZE = 5000;
+    private static final int RUNS = 5;
+
+    private static final char FIRST = 0x4E00;
+    private static final int SYLLABLE_WIDTH = 6;
+
+    public static void main(String[] args) throws IOException {
+        final File table = File.createTempFile("pinyin4android", null);
+        try {
+            FileOutputStream out = new FileOutputStream(table);
+            try {
+                out.write(PinyinSource.getSource().getBytes());
+            } finally {
+                out.close();
+            }
+            run(table);
+        } finally {
+            table.delete();
+        }
+    }
+
+    private static void run(final File table) {
+        List<String> names = randomNames(SIZE, new Random(42));
+
+        long fileBased = Long.MAX_VALUE, sortKeys = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            List<String> copy = new ArrayList<String>(names);
+            long start = System.nanoTime();
+            Collections.sort(copy, new Comparator<String>() {
+                @Override
+                public int compare(String a, String b) {
+                    return fileSortKey(table, a).compareTo(fileSortKey(table, b));
+                }
+            });
+            fileBased = Math.min(fileBased, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            List<Keyed> keyed = new ArrayList<Keyed>(names.size());
+            for (String name : names) {
+                keyed.add(new Keyed(name));
+            }
+            Collections.sort(keyed);
+            sortKeys = Math.min(sortKeys, System.nanoTime() - start);
+
+            for (int i = 0; i < copy.size(); i++) {
+                if (!copy.get(i).equals(keyed.get(i).name)) {
+                    throw new AssertionError("orders differ at " + i + ": " + copy.get(i) + ", " + keyed.get(i).name);
+                }
+            }
+        }
+
+        System.out.println(String.format("sorting %d names: %.1f ms with the table file on every comparison, %.1f ms with sort keys",
+                SIZE, fileBased / 1e6, sortKeys / 1e6));
+    }
+
+    /**
+     * {@link NameCollator#getSortKey}, converting with the table file like the old PinyinUtils
+     */
+    private static String fileSortKey(File table, String name) {
+        if (name.isEmpty()) {
+            return "0";
+        }
+        int first = name.codePointAt(0);
+        if (19968 < first && first < 40869) {
+            return "1" + filePinyin(table, name).toLowerCase();
+        }
+        return "0" + name.toLowerCase();
+    }
+
+    private static String filePinyin(File table, String hanzi) {
+        StringBuilder sb = new StringBuilder();
+        RandomAccessFile is = null;
+        try {
+            is = new RandomAccessFile(table, "r");
+            for (int i = 0; i < hanzi.length(); i++) {
+                char ch = hanzi.charAt(i);
+                if (ch >= 'A' && ch <= 'Z') {
+                    sb.append((char) (ch + 32));
+                } else if (ch >= 'a' && ch <= 'z') {
+                    sb.append(ch);
+                } else if (ch >= FIRST && (ch - FIRST) * SYLLABLE_WIDTH < is.length()) {
+                    is.seek((ch - FIRST) * SYLLABLE_WIDTH);
+                    byte[] buf = new byte[SYLLABLE_WIDTH];
+                    is.readFully(buf);
+                    sb.append(new String(buf).trim()).append(' ');
+                } else {
+                    sb.append(ch);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            try {
+                if (is != null) is.close();
+            } catch (IOException e) {
+                //
+            }
+        }
+        return sb.toString().trim();
+    }
+
+    private static class Keyed implements Comparable<Keyed> {
+        final String name;
+        final String key;
+
+        Keyed(String name) {
+            this.name = name;
+            this.key = NameCollator.getSortKey(name);
+        }
+
+        @Override
+        public int compareTo(Keyed other) {
+            return key.compareTo(other.key);
+        }
+    }
+
+    /**
+     * Names of 2 to 12 characters, half of them chinese, the others latin with digits
+     */
+    private static List<String> randomNames(int count, Random random) {
+        List<String> names = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            int len = 2 + random.nextInt(11);
+            StringBuilder sb = new StringBuilder(len);
+            boolean chinese = random.nextBoolean();
+            for (int j = 0; j < len; j++) {
+                if (chinese) {
+                    sb.append((char) (0x4E01 + random.nextInt(0x9FA4 - 0x4E01)));
+                } else if (random.nextInt(5) == 0) {
+                    sb.append((char) ('0' + random.nextInt(10)));
+                } else {
+                    sb.append((char) ((random.nextBoolean() ? 'a' : 'A') + random.nextInt(26)));
+                }
+            }
+            names.add(sb.toString());
+        }
+        return names;
+    }
+}
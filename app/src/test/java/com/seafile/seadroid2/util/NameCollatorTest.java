@@ -0,0 +1,33 @@
+package com.seafile.seadroid2.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class NameCollatorTest {
+    @Test
+    public void testOrder() {
+        List<String> names = new ArrayList<>(Arrays.asList("中文", "b.txt", "阿里", "A.txt", "c", "北京"));
+        Collections.sort(names, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return NameCollator.getSortKey(a).compareTo(NameCollator.getSortKey(b));
+            }
+        });
+        Assert.assertEquals(Arrays.asList("A.txt", "b.txt", "c", "阿里", "北京", "中文"), names);
+    }
+
+    @Test
+    public void testPinyin() {
+        Assert.assertEquals("zhong wen", PinyinUtils.toPinyin(null, "中文"));
+        Assert.assertEquals("abzhong 1", PinyinUtils.toPinyin(null, "AB中1"));
+    }
+}